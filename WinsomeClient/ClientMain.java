@@ -192,16 +192,16 @@ public class ClientMain {
                 "\n\tlist following" +
                 "\n\tfollow <username>" +
                 "\n\tunfollow <username>" +
-                "\n\tblog" +
+                "\n\tblog [limit] [before <idPost>]" +
                 "\n\tpost <title> | <content>" +
-                "\n\tshow post <idPost>" +
+                "\n\tshow post <idPost> [commentsFrom] [limit]" +
                 "\n\tshow feed" +
                 "\n\tdelete <idPost>" +
                 "\n\trewin <idPost>" +
                 "\n\trate <idPost> <vote>        (with: <vote> +1 or -1)" +
                 "\n\tcomment <idPost> <comment>" +
-                "\n\twallet" +
-                "\n\twallet btc" +
+                "\n\twallet [limit] [before <n>]" +
+                "\n\twallet btc [limit] [before <n>]" +
                 "\n\texit"
         );
     }
@@ -499,7 +499,7 @@ public class ClientMain {
 
                     // caso di parsing del messaggio di risposta del server
                     if (line.startsWith("list") || line.startsWith("show") || line.startsWith("wallet")
-                            || line.equals("blog") || line.startsWith("tags") || line.startsWith("search")) {
+                            || line.startsWith("blog") || line.startsWith("tags") || line.startsWith("search")) {
                         System.out.print("<<< ");
                         client.parseMessage(reader.readLine());
                         continue;
@@ -0,0 +1,317 @@
+package WinsomeServer;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class AuthorPosts {
+    /**
+     * OVERVIEW: classe mutable (thread-safe) che memorizza i post di un singolo autore ordinati per id
+     *           crescente (gli id sono generati in modo monotono crescente, quindi l'ordine coincide
+     *           con quello di creazione). I post sono memorizzati in una lista di blocchi (chunk) di
+     *           dimensione fissa, ognuno con gli id ordinati, in modo da avere:
+     *              - inserimento in coda in O(1);
+     *              - ricerca ed eliminazione in O(log n) (ricerca binaria sui chunk e nel chunk);
+     *              - lettura di una pagina di post (dal piu' recente) in O(log n + limit).
+     */
+
+    // numero massimo di post contenuti in un chunk
+    private static final int CHUNK_SIZE = 256;
+
+    // lista dei chunk ordinati per id (ogni chunk non e' mai vuoto)
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+    // numero totale di post memorizzati
+    private int size = 0;
+
+
+
+    /*******************************
+     ***** CLASSE PRIVATA CHUNK *****
+     *******************************/
+    private static class Chunk {
+        /**
+         * OVERVIEW: blocco di al piu' CHUNK_SIZE post con id ordinati in modo crescente.
+         */
+        // id dei post del chunk (ordinati)
+        final long[] ids = new long[CHUNK_SIZE];
+        // post del chunk (stesso ordine degli id)
+        final Post[] posts = new Post[CHUNK_SIZE];
+        // numero di post presenti nel chunk
+        int size = 0;
+
+        /**
+         * @effects restituisce la posizione dell'id 'id' nel chunk se presente, altrimenti
+         *          (-(punto di inserimento) - 1).
+         */
+        int indexOf(long id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        /**
+         * @effects inserisce il post 'p' con id 'id' in posizione 'index' spostando i successivi.
+         */
+        void insert(int index, long id, Post p) {
+            System.arraycopy(ids, index, ids, index+1, size-index);
+            System.arraycopy(posts, index, posts, index+1, size-index);
+            ids[index] = id;
+            posts[index] = p;
+            size++;
+        }
+
+        /**
+         * @effects rimuove il post in posizione 'index' e lo restituisce.
+         */
+        Post remove(int index) {
+            Post p = posts[index];
+            System.arraycopy(ids, index+1, ids, index, size-index-1);
+            System.arraycopy(posts, index+1, posts, index, size-index-1);
+            posts[--size] = null;
+            return p;
+        }
+    }
+
+
+
+    /**
+     * @effects crea un insieme vuoto di post.
+     */
+    public AuthorPosts() {}
+
+
+
+    /**
+     * @effects crea un insieme di post contenente tutti i post (non null) della lista 'posts'.
+     * @param posts lista dei post da inserire (in qualsiasi ordine).
+     *              [posts != null]
+     */
+    public AuthorPosts(List<Post> posts) {
+        for (Post p : posts)
+            if (p != null)
+                add(p);
+    }
+
+
+
+    /**
+     * @effects restituisce l'indice del chunk che potrebbe contenere l'id 'id' (l'ultimo chunk il
+     *          cui primo id e' <= 'id'), oppure -1 se 'id' e' minore di tutti gli id memorizzati.
+     */
+    private int chunkIndexOf(long id) {
+        int low = 0, high = chunks.size()-1, result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (chunks.get(mid).ids[0] <= id) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+
+
+    /**
+     * @effects aggiunge il post 'p' mantenendo l'ordinamento per id. Se l'id e' maggiore di
+     *          tutti quelli presenti (caso tipico) l'inserimento avviene in coda in O(1).
+     *          Restituisce false se un post con lo stesso id e' gia' presente, true altrimenti.
+     * @param p post da aggiungere.
+     *          [p != null]
+     */
+    public synchronized boolean add(Post p) {
+        long id = p.getLongId();
+
+        // caso tipico: inserimento in coda
+        Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size()-1);
+        if (last == null || last.ids[last.size-1] < id) {
+            if (last == null || last.size == CHUNK_SIZE) {
+                last = new Chunk();
+                chunks.add(last);
+            }
+            last.insert(last.size, id, p);
+            size++;
+            return true;
+        }
+
+        // caso di inserimento fuori ordine (es: caricamento da file non ordinato)
+        int c = Math.max(chunkIndexOf(id), 0);
+        Chunk chunk = chunks.get(c);
+        int index = chunk.indexOf(id);
+        if (index >= 0)
+            return false;
+        index = -index - 1;
+
+        // caso di chunk pieno: divisione del chunk in due meta'
+        if (chunk.size == CHUNK_SIZE) {
+            Chunk right = new Chunk();
+            int half = CHUNK_SIZE / 2;
+            System.arraycopy(chunk.ids, half, right.ids, 0, CHUNK_SIZE-half);
+            System.arraycopy(chunk.posts, half, right.posts, 0, CHUNK_SIZE-half);
+            Arrays.fill(chunk.posts, half, CHUNK_SIZE, null);
+            right.size = CHUNK_SIZE-half;
+            chunk.size = half;
+            chunks.add(c+1, right);
+            if (index > half) {
+                chunk = right;
+                index -= half;
+            }
+        }
+        chunk.insert(index, id, p);
+        size++;
+        return true;
+    }
+
+
+
+    /**
+     * @effects restituisce il post con id 'id' oppure null se non presente.
+     */
+    public synchronized Post get(long id) {
+        int c = chunkIndexOf(id);
+        if (c < 0)
+            return null;
+        Chunk chunk = chunks.get(c);
+        int index = chunk.indexOf(id);
+        return index >= 0 ? chunk.posts[index] : null;
+    }
+
+
+
+    /**
+     * @effects restituisce true se e' presente il post con id 'id', false altrimenti.
+     */
+    public boolean contains(long id) {
+        return get(id) != null;
+    }
+
+
+
+    /**
+     * @effects rimuove il post con id 'id' e lo restituisce (null se non presente).
+     */
+    public synchronized Post remove(long id) {
+        int c = chunkIndexOf(id);
+        if (c < 0)
+            return null;
+        Chunk chunk = chunks.get(c);
+        int index = chunk.indexOf(id);
+        if (index < 0)
+            return null;
+
+        Post p = chunk.remove(index);
+        size--;
+
+        // caso di chunk rimasto vuoto
+        if (chunk.size == 0)
+            chunks.remove(c);
+        return p;
+    }
+
+
+
+    /**
+     * @effects rimuove tutti i post che soddisfano il predicato 'filter' e restituisce il numero
+     *          di post rimossi.
+     */
+    public synchronized int removeIf(Predicate<Post> filter) {
+        int removed = 0;
+        for (int c = chunks.size()-1; c >= 0; c--) {
+            Chunk chunk = chunks.get(c);
+            for (int i = chunk.size-1; i >= 0; i--)
+                if (filter.test(chunk.posts[i])) {
+                    chunk.remove(i);
+                    removed++;
+                }
+            if (chunk.size == 0)
+                chunks.remove(c);
+        }
+        size -= removed;
+        return removed;
+    }
+
+
+
+    /**
+     * @effects restituisce al piu' 'limit' post a partire dal piu' recente con id strettamente
+     *          minore di 'beforeId' (in ordine dal piu' recente al meno recente).
+     * @param limit numero massimo di post restituiti.
+     *              [limit > 0]
+     * @param beforeId id a partire dal quale (escluso) restituire i post.
+     *                 Se = a Long.MAX_VALUE si parte dal post piu' recente.
+     */
+    public synchronized List<Post> page(int limit, long beforeId) {
+        List<Post> page = new ArrayList<>(Math.min(Math.max(limit, 0), size));
+        int c = chunkIndexOf(beforeId-1);
+        if (c < 0)
+            return page;
+
+        // posizione dell'ultimo post con id < beforeId nel chunk di partenza
+        Chunk chunk = chunks.get(c);
+        int index = chunk.indexOf(beforeId);
+        index = (index >= 0 ? index : -index - 1) - 1;
+
+        // lettura all'indietro dei post
+        while (page.size() < limit && c >= 0) {
+            for (; index >= 0 && page.size() < limit; index--)
+                page.add(chunk.posts[index]);
+            if (--c >= 0) {
+                chunk = chunks.get(c);
+                index = chunk.size-1;
+            }
+        }
+        return page;
+    }
+
+
+
+    /**
+     * @effects esegue l'azione 'action' su ogni post (in ordine di id crescente).
+     */
+    public synchronized void forEach(Consumer<Post> action) {
+        for (Chunk chunk : chunks)
+            for (int i = 0; i < chunk.size; i++)
+                action.accept(chunk.posts[i]);
+    }
+
+
+
+    /**
+     * @effects restituisce una lista contenente tutti i post (in ordine di id crescente).
+     */
+    public synchronized List<Post> toList() {
+        List<Post> list = new ArrayList<>(size);
+        forEach(list::add);
+        return list;
+    }
+
+
+
+    /**
+     * @effects restituisce l'id massimo tra quelli dei post memorizzati (0 se vuoto).
+     */
+    public synchronized long lastId() {
+        if (chunks.isEmpty())
+            return 0;
+        Chunk last = chunks.get(chunks.size()-1);
+        return last.ids[last.size-1];
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di post memorizzati.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+
+
+    /**
+     * @effects restituisce true se non ci sono post memorizzati, false altrimenti.
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -94,21 +94,52 @@ public class ClientCommunicationTask implements Runnable {
                 case "delete": { winsomeServer.deletePost(tokens.nextToken());                      break; }
                 case "rewin": { winsomeServer.rewinPost(tokens.nextToken());                        break; }
                 case "rate": { winsomeServer.rate(tokens.nextToken(),tokens.nextToken());           break; }
-                case "blog": { winsomeServer.viewBlog();                                            break; }
+                case "blog": {
+                    // formato: blog [limit] [before <idPost>]
+                    int limit = 0;
+                    String before = null;
+                    while (tokens.hasMoreTokens()) {
+                        String token = tokens.nextToken();
+                        if (token.equals("before"))
+                            before = tokens.nextToken();
+                        else if (limit == 0)
+                            try {
+                                limit = Integer.parseInt(token);
+                            } catch (NumberFormatException e) {
+                                while (true) tokens.nextToken();
+                            }
+                        else
+                            while (true) tokens.nextToken();
+                    }
+                    winsomeServer.viewBlog(limit, before);
+                    break;
+                }
                 case "tags": { winsomeServer.getTags(tokens.nextToken());                           break; }
                 case "search": { winsomeServer.searchUser(tokens.nextToken());                      break; }
                 case "wallet": {
-                    String token = null;
-                    try {
-                        token = tokens.nextToken();
-                    } catch (NoSuchElementException e) {
-                        winsomeServer.getWallet();
-                        break;
+                    // formato: wallet [btc] [limit] [before <n>]
+                    boolean btc = false;
+                    int limit = 0;
+                    String before = null;
+                    while (tokens.hasMoreTokens()) {
+                        String token = tokens.nextToken();
+                        if (token.equals("btc") && !btc && limit == 0 && before == null)
+                            btc = true;
+                        else if (token.equals("before"))
+                            before = tokens.nextToken();
+                        else if (limit == 0)
+                            try {
+                                limit = Integer.parseInt(token);
+                            } catch (NumberFormatException e) {
+                                while (true) tokens.nextToken();
+                            }
+                        else
+                            while (true) tokens.nextToken();
                     }
-                    if (token.equals("btc"))
-                        winsomeServer.getWalletInBitcoin();
+                    if (btc)
+                        winsomeServer.getWalletInBitcoin(limit, before);
                     else
-                        while (true) tokens.nextToken();
+                        winsomeServer.getWallet(limit, before);
                     break;
                 }
                 case "comment": {
@@ -152,8 +183,20 @@ public class ClientCommunicationTask implements Runnable {
                 }
                 case "show": {
                     String token = tokens.nextToken();
-                    if (token.equals("post"))
-                        winsomeServer.showPost(tokens.nextToken());
+                    if (token.equals("post")) {
+                        // formato: show post <idPost> [commentsFrom] [limit]
+                        String idPost = tokens.nextToken();
+                        int from = 0, limit = 0;
+                        try {
+                            if (tokens.hasMoreTokens())
+                                from = Integer.parseInt(tokens.nextToken());
+                            if (tokens.hasMoreTokens())
+                                limit = Integer.parseInt(tokens.nextToken());
+                        } catch (NumberFormatException e) {
+                            while (true) tokens.nextToken();
+                        }
+                        winsomeServer.showPost(idPost, from, limit);
+                    }
                     else if (token.equals("feed"))
                         winsomeServer.showFeed();
                     else
@@ -202,9 +245,10 @@ public class ClientCommunicationTask implements Runnable {
                 case "post": { out.println("post <title> | <text>");                            break; }
                 case "rate": { out.println("rate <idPost> <vote>");                             break; }
                 case "comment": { out.println("comment <idPost> <comment>");                    break; }
-                case "wallet": { out.println("wallet btc");                                     break; }
+                case "wallet": { out.println("wallet [btc] [limit] [before <n>]");              break; }
+                case "blog": { out.println("blog [limit] [before <idPost>]");                   break; }
                 case "create": { out.println("create <title> | <content>");                     break; }
-                case "show": { out.println("show post <idPost> OR show feed");                  break; }
+                case "show": { out.println("show post <idPost> [commentsFrom] [limit] OR show feed"); break; }
                 default: { out.println("Error: bad message's format");                          break; }
             }
 
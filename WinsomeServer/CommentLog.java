@@ -0,0 +1,188 @@
+package WinsomeServer;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+public class CommentLog {
+    /**
+     * OVERVIEW: classe mutable che rappresenta il log append-only dei commenti di un post.
+     *           Ogni commento e' memorizzato come (id dell'autore, timestamp, handle del testo)
+     *           in array di primitivi suddivisi in blocchi (chunk): il testo resta su disco
+     *           (vedi CommentStore) finche' non viene richiesto esplicitamente.
+     *           L'ultimo chunk parte con una capacita' ridotta e cresce fino a CHUNK_SIZE, in modo da
+     *           non sprecare memoria per i post con pochi commenti.
+     *           La classe non e' thread-safe: la sincronizzazione e' a carico di chi la utilizza.
+     */
+
+    // numero massimo di commenti in un chunk
+    private static final int CHUNK_SIZE = 256;
+
+    // lista dei chunk del log (tutti pieni tranne l'ultimo)
+    private final List<Chunk> chunks = new ArrayList<>();
+    // numero totale di commenti
+    private int size = 0;
+
+
+
+    /********************************
+     ***** CLASSE PRIVATA CHUNK *****
+     ********************************/
+    private static class Chunk {
+        /**
+         * OVERVIEW: blocco di al piu' CHUNK_SIZE commenti memorizzati per colonne.
+         */
+        // id degli autori dei commenti
+        int[] authors = new int[4];
+        // istanti di creazione dei commenti (in ms)
+        long[] timestamps = new long[4];
+        // handle dei testi dei commenti
+        long[] handles = new long[4];
+        // numero di commenti nel chunk
+        int size = 0;
+    }
+
+
+
+    /************************************
+     ***** CLASSE PUBBLICA COMMENT  *****
+     ************************************/
+    public static class Comment {
+        /**
+         * OVERVIEW: classe immutable che rappresenta un commento letto dal log. Il testo viene
+         *           letto da disco solo all'invocazione di getText().
+         */
+        // id dell'autore del commento
+        public final int authorId;
+        // istante di creazione del commento (in ms)
+        public final long timestamp;
+        // handle del testo del commento
+        public final long handle;
+
+        private Comment(int authorId, long timestamp, long handle) {
+            this.authorId = authorId;
+            this.timestamp = timestamp;
+            this.handle = handle;
+        }
+
+        /**
+         * @effects restituisce l'username dell'autore del commento.
+         */
+        public String getAuthor() {
+            return UserIndex.nameOf(authorId);
+        }
+
+        /**
+         * @effects restituisce la stringa che indica data e ora del commento.
+         */
+        public String getTimestamp() {
+            return new Timestamp(timestamp).toString();
+        }
+
+        /**
+         * @effects legge da disco e restituisce il testo del commento.
+         */
+        public String getText() {
+            return CommentStore.read(handle);
+        }
+    }
+
+
+
+    /**
+     * @effects aggiunge in coda al log il commento (authorId, timestamp, handle).
+     */
+    public void add(int authorId, long timestamp, long handle) {
+        Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size()-1);
+
+        // caso di chunk pieno (o assente)
+        if (last == null || last.size == CHUNK_SIZE) {
+            last = new Chunk();
+            chunks.add(last);
+        }
+
+        // caso di chunk da ingrandire (fino a CHUNK_SIZE)
+        if (last.size == last.authors.length) {
+            int capacity = Math.min(CHUNK_SIZE, last.size*2);
+            last.authors = Arrays.copyOf(last.authors, capacity);
+            last.timestamps = Arrays.copyOf(last.timestamps, capacity);
+            last.handles = Arrays.copyOf(last.handles, capacity);
+        }
+
+        last.authors[last.size] = authorId;
+        last.timestamps[last.size] = timestamp;
+        last.handles[last.size] = handle;
+        last.size++;
+        size++;
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di commenti presenti nel log.
+     */
+    public int size() {
+        return size;
+    }
+
+
+
+    /**
+     * @effects restituisce l'id dell'autore dell'i-esimo commento.
+     */
+    public int authorAt(int i) {
+        return chunks.get(i / CHUNK_SIZE).authors[i % CHUNK_SIZE];
+    }
+
+
+
+    /**
+     * @effects restituisce l'istante di creazione (in ms) dell'i-esimo commento.
+     */
+    public long timestampAt(int i) {
+        return chunks.get(i / CHUNK_SIZE).timestamps[i % CHUNK_SIZE];
+    }
+
+
+
+    /**
+     * @effects restituisce l'handle del testo dell'i-esimo commento.
+     */
+    public long handleAt(int i) {
+        return chunks.get(i / CHUNK_SIZE).handles[i % CHUNK_SIZE];
+    }
+
+
+
+    /**
+     * @effects restituisce al piu' 'limit' commenti a partire dalla posizione 'from' (in ordine
+     *          di inserimento) senza leggerne il testo.
+     * @param from posizione del primo commento restituito.
+     *             [from >= 0]
+     * @param limit numero massimo di commenti restituiti.
+     *              [limit >= 0]
+     */
+    public List<Comment> page(int from, int limit) {
+        List<Comment> page = new ArrayList<>();
+        for (int i = Math.max(from, 0); i < size && page.size() < limit; i++) {
+            Chunk chunk = chunks.get(i / CHUNK_SIZE);
+            int j = i % CHUNK_SIZE;
+            page.add(new Comment(chunk.authors[j], chunk.timestamps[j], chunk.handles[j]));
+        }
+        return page;
+    }
+
+
+
+    /**
+     * @effects esegue l'azione 'action' sull'id dell'autore di ogni commento (in ordine di
+     *          inserimento) senza effettuare copie e senza leggere il testo dei commenti.
+     */
+    public void forEachAuthor(IntConsumer action) {
+        for (Chunk chunk : chunks)
+            for (int i = 0; i < chunk.size; i++)
+                action.accept(chunk.authors[i]);
+    }
+}
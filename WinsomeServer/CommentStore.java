@@ -0,0 +1,103 @@
+package WinsomeServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class CommentStore {
+    /**
+     * OVERVIEW: classe statica che memorizza il testo dei commenti in un file append-only su disco.
+     *           Ad ogni commento viene associato un "handle" (offset nel file e lunghezza in byte)
+     *           che permette di rileggerne il testo solo quando viene effettivamente richiesto,
+     *           evitando di mantenere in memoria il testo di tutti i commenti.
+     *           Formato dell'handle: [offset (48 bit) | lunghezza in byte (16 bit)].
+     *           Il file viene reso persistente con sync() prima di ogni snapshot, dato che gli
+     *           snapshot contengono solo gli handle.
+     *           Limite noto: lo spazio del testo dei commenti dei post cancellati non viene
+     *           recuperato (il file cresce finche' non viene ricreato il database), perche'
+     *           compattarlo richiederebbe di riscrivere gli handle di tutti i post.
+     */
+
+    /** nome del file contenente il testo dei commenti **/
+    private static final String commentsFileName = "WinsomeServer/Database/comments";
+
+    /** canale di accesso al file (aperto al primo utilizzo) **/
+    private static FileChannel channel = null;
+
+    /** posizione di scrittura del prossimo commento **/
+    private static long writePosition = 0;
+
+
+
+    /**
+     * @effects restituisce il canale di accesso al file dei commenti (aprendolo se necessario).
+     * @throws IOException se avviene un errore nell'apertura del file.
+     */
+    private static synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(commentsFileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writePosition = channel.size();
+        }
+        return channel;
+    }
+
+
+
+    /**
+     * @effects aggiunge in coda al file il testo 'text' e restituisce l'handle che permette di
+     *          rileggerlo.
+     * @param text testo del commento.
+     *             [(text != null) && (text.getBytes(UTF_8).length < 65536)]
+     * @throws IOException se avviene un errore nella scrittura su file.
+     */
+    public static synchronized long append(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF)
+            throw new IOException("comment too long");
+
+        FileChannel ch = getChannel();
+        long offset = writePosition;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            writePosition += ch.write(buffer, writePosition);
+
+        return (offset << 16) | bytes.length;
+    }
+
+
+
+    /**
+     * @effects forza la scrittura su disco del testo dei commenti aggiunti finora.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    public static synchronized void sync() throws IOException {
+        getChannel().force(false);
+    }
+
+
+
+    /**
+     * @effects restituisce il testo del commento associato all'handle 'handle' oppure una stringa
+     *          che segnala l'assenza del commento se non e' stato possibile leggerlo.
+     * @param handle handle restituito da append().
+     */
+    public static String read(long handle) {
+        long offset = handle >>> 16;
+        int length = (int) (handle & 0xFFFF);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            FileChannel ch = getChannel();
+            while (buffer.hasRemaining())
+                if (ch.read(buffer, offset + buffer.position()) < 0)
+                    return "[unavailable]";
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "[unavailable]";
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,211 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class Compression {
+    /**
+     * OVERVIEW: classe statica che gestisce gli algoritmi di compressione (codec) usati per i file
+     *           dello snapshot e per i blocchi di record del journal. Ogni codec e' identificato da un
+     *           id (scritto nei file compressi, in modo che in lettura venga usato il codec con cui
+     *           il file e' stato scritto) e da un nome (usato nel file di configurazione).
+     *           Codec disponibili:
+     *              - NONE (id 0): nessuna compressione;
+     *              - DEFLATE (id 1): Deflater del JDK con livello configurabile (vedi setLevel()).
+     *           Altri codec (es: algoritmi piu' veloci) possono essere aggiunti con register().
+     */
+
+    /*********************************
+     ***** INTERFACCIA DEL CODEC *****
+     *********************************/
+    public interface Codec {
+        /**
+         * OVERVIEW: interfaccia implementata da un algoritmo di compressione: id e nome univoci e
+         *           stream di compressione e decompressione. La chiusura dello stream di
+         *           compressione deve completare il contenuto compresso e chiudere 'out'.
+         */
+        byte id();
+        String name();
+        OutputStream compress(OutputStream out) throws IOException;
+        InputStream decompress(InputStream in) throws IOException;
+    }
+
+
+
+    /** id dei codec predefiniti **/
+    public static final byte NONE_ID = 0;
+    public static final byte DEFLATE_ID = 1;
+
+    /** dimensione del buffer degli stream di compressione e decompressione **/
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** codec registrati per id e per nome **/
+    private static final Map<Byte,Codec> byId = new ConcurrentHashMap<>();
+    private static final Map<String,Codec> byName = new ConcurrentHashMap<>();
+
+    /** livello di compressione del codec DEFLATE (da 1 a 9) **/
+    private static volatile int level = 6;
+
+    /** codec che non comprime **/
+    public static final Codec NONE = new Codec() {
+        public byte id() { return NONE_ID; }
+        public String name() { return "NONE"; }
+        public OutputStream compress(OutputStream out) { return out; }
+        public InputStream decompress(InputStream in) { return in; }
+    };
+
+    /** codec Deflater del JDK **/
+    public static final Codec DEFLATE = new Codec() {
+        public byte id() { return DEFLATE_ID; }
+        public String name() { return "DEFLATE"; }
+
+        public OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+
+        public InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /** registrazione dei codec predefiniti **/
+    static {
+        register(NONE);
+        register(DEFLATE);
+    }
+
+
+
+    /**
+     * @effects registra il codec 'codec' (sostituendo l'eventuale codec con lo stesso id o nome).
+     * @param codec codec da registrare.
+     *              [codec != null]
+     */
+    public static void register(Codec codec) {
+        byId.put(codec.id(), codec);
+        byName.put(codec.name().toUpperCase(Locale.ENGLISH), codec);
+    }
+
+
+
+    /**
+     * @effects restituisce il codec con id 'id'.
+     * @throws IOException se nessun codec registrato ha id 'id'.
+     */
+    public static Codec get(byte id) throws IOException {
+        Codec codec = byId.get(id);
+        if (codec == null)
+            throw new IOException("unknown compression codec " + id);
+        return codec;
+    }
+
+
+
+    /**
+     * @effects restituisce il codec con nome 'name' (senza distinzione tra maiuscole e minuscole).
+     * @throws IllegalArgumentException se nessun codec registrato ha nome 'name'.
+     */
+    public static Codec byName(String name) {
+        Codec codec = byName.get(name.toUpperCase(Locale.ENGLISH));
+        if (codec == null)
+            throw new IllegalArgumentException("unknown compression codec " + name);
+        return codec;
+    }
+
+
+
+    /**
+     * @effects setta il livello di compressione del codec DEFLATE.
+     * @param l livello di compressione.
+     *          [1 <= l <= 9]
+     */
+    public static void setLevel(int l) {
+        if (l < Deflater.BEST_SPEED || l > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException();
+        level = l;
+    }
+
+
+
+    /**
+     * @effects restituisce il nome del codec 'codec' comprensivo dell'eventuale livello.
+     */
+    public static String describe(Codec codec) {
+        return codec == DEFLATE ? codec.name() + "-" + level : codec.name();
+    }
+
+
+
+    /**
+     * @effects restituisce uno stream che scrive su 'out' senza chiuderlo alla chiusura (la
+     *          chiusura dello stream di compressione completa il contenuto compresso ma il file
+     *          resta aperto).
+     */
+    public static OutputStream unclosable(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+
+
+    /*********************************************
+     ***** CLASSE CONTATORE DI BYTE IN OUTPUT *****
+     *********************************************/
+    public static class CountingOutputStream extends FilterOutputStream {
+        /**
+         * OVERVIEW: output stream che conta i byte scritti (usato per misurare la dimensione dei
+         *           dati prima e dopo la compressione).
+         */
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * @effects restituisce il numero di byte scritti.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+}
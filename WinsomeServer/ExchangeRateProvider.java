@@ -0,0 +1,22 @@
+package WinsomeServer;
+
+import java.io.IOException;
+
+public interface ExchangeRateProvider {
+    /**
+     * OVERVIEW: interfaccia implementata da una sorgente del tasso di conversione da wincoin a
+     *           bitcoin (vedi ExchangeRates). fetchRate() puo' effettuare operazioni di rete e viene
+     *           invocato solo dal thread di aggiornamento della cache, mai dai thread dei comandi.
+     */
+
+    /**
+     * @effects restituisce il nome della sorgente (usato nel file di configurazione e nei log).
+     */
+    String name();
+
+    /**
+     * @effects restituisce il tasso di conversione corrente (bitcoin per wincoin).
+     * @throws IOException se non e' stato possibile ottenere il tasso.
+     */
+    double fetchRate() throws IOException;
+}
@@ -0,0 +1,200 @@
+package WinsomeServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExchangeRates {
+    /**
+     * OVERVIEW: classe statica che mantiene in cache il tasso di conversione da wincoin a bitcoin
+     *           ottenuto da una sorgente (vedi ExchangeRateProvider). Il tasso viene aggiornato da un
+     *           thread daemon in anticipo rispetto alla scadenza (refresh-ahead: ogni 3/4 del TTL),
+     *           percio' getRate() non effettua mai operazioni di rete e non attende: restituisce
+     *           l'ultimo tasso ottenuto (anche se scaduto, in caso di errori della sorgente) oppure 0
+     *           se la sorgente non ha ancora risposto.
+     *           Sorgenti disponibili:
+     *              - RANDOM_ORG: valore casuale (da 1 a 100) ottenuto dal sito RANDOM.ORG;
+     *              - STUB[:tasso]: tasso fisso locale (default 50), senza rete (es: test offline).
+     */
+
+    /** sorgente che interroga il sito RANDOM.ORG **/
+    public static final ExchangeRateProvider RANDOM_ORG = new ExchangeRateProvider() {
+        public String name() {
+            return "RANDOM_ORG";
+        }
+
+        public double fetchRate() throws IOException {
+            URLConnection urlConnection = new URL("https://www.random.org/integers/?num=1&min=1&max=100&col=1&base=10&format=plain&rnd=new").openConnection();
+            urlConnection.setConnectTimeout(5000);
+            urlConnection.setReadTimeout(5000);
+
+            // invio richiesta e lettura del valore ricevuto
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()))) {
+                String inputString = reader.readLine();
+                if (inputString == null)
+                    throw new IOException("empty response from RANDOM.ORG");
+                return Integer.parseInt(inputString.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Something goes wrong with RANDOM.ORG", e);
+            }
+        }
+    };
+
+    /** tasso di default della sorgente STUB **/
+    private static final double STUB_RATE = 50;
+
+    /** TTL di default (in ms) del tasso in cache **/
+    private static final long DEFAULT_TTL = 60000;
+
+    /** sorgente e TTL (in ms) correnti **/
+    private static volatile ExchangeRateProvider provider = RANDOM_ORG;
+    private static volatile long ttl = DEFAULT_TTL;
+
+    /** tasso in cache e momento (in ms) in cui e' stato ottenuto (0 se mai ottenuto) **/
+    private static volatile double rate = 0;
+    private static volatile long fetchedAt = 0;
+
+    /** thread di aggiornamento (null se non avviato) **/
+    private static volatile ScheduledExecutorService refresher = null;
+
+    /** metriche: aggiornamenti riusciti, aggiornamenti falliti e letture di un tasso scaduto **/
+    private static final AtomicLong refreshes = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong staleReads = new AtomicLong();
+
+
+
+    /**
+     * @effects restituisce una sorgente con tasso fisso 'fixedRate'.
+     */
+    public static ExchangeRateProvider stub(double fixedRate) {
+        return new ExchangeRateProvider() {
+            public String name() {
+                return "STUB:" + fixedRate;
+            }
+
+            public double fetchRate() {
+                return fixedRate;
+            }
+        };
+    }
+
+
+
+    /**
+     * @effects restituisce la sorgente indicata da 'name' ("RANDOM_ORG", "STUB" o "STUB:tasso").
+     * @throws IllegalArgumentException se 'name' non indica una sorgente valida.
+     */
+    public static ExchangeRateProvider byName(String name) {
+        String upper = name.trim().toUpperCase(Locale.ENGLISH);
+        if (upper.equals("RANDOM_ORG"))
+            return RANDOM_ORG;
+        if (upper.equals("STUB"))
+            return stub(STUB_RATE);
+        if (upper.startsWith("STUB:"))
+            return stub(Double.parseDouble(upper.substring(5)));
+        throw new IllegalArgumentException("unknown exchange rate provider " + name);
+    }
+
+
+
+    /**
+     * @effects setta sorgente e TTL (in ms) del tasso e (ri)avvia il thread di aggiornamento, che
+     *          ottiene subito il primo tasso.
+     * @param p sorgente del tasso.
+     *          [p != null]
+     * @param ttlMs durata di validita' del tasso in cache.
+     *              [ttlMs > 0]
+     */
+    public static synchronized void start(ExchangeRateProvider p, long ttlMs) {
+        if (p == null || ttlMs <= 0)
+            throw new IllegalArgumentException();
+        if (refresher != null)
+            refresher.shutdownNow();
+        provider = p;
+        ttl = ttlMs;
+        rate = 0;
+        fetchedAt = 0;
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ExchangeRateRefresher");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(ExchangeRates::refresh, 0, Math.max(1, ttlMs * 3 / 4), TimeUnit.MILLISECONDS);
+    }
+
+
+
+    /**
+     * @effects ottiene il tasso dalla sorgente e lo salva in cache (in caso di errore mantiene il
+     *          tasso precedente).
+     */
+    private static void refresh() {
+        ExchangeRateProvider p = provider;
+        try {
+            double r = p.fetchRate();
+            if (!(r >= 0))
+                throw new IOException("bad rate " + r);
+            rate = r;
+            fetchedAt = System.currentTimeMillis();
+            refreshes.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            System.err.println("ExchangeRates Error: " + p.name() + ": " + e.getMessage());
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce il tasso di conversione in cache (0 se non ancora disponibile) senza
+     *          effettuare operazioni di rete. Se il thread di aggiornamento non e' stato avviato lo
+     *          avvia con la sorgente e il TTL correnti.
+     */
+    public static double getRate() {
+        if (refresher == null)
+            ensureStarted();
+        long at = fetchedAt;
+        if (at != 0 && System.currentTimeMillis() - at > ttl)
+            staleReads.incrementAndGet();
+        return rate;
+    }
+
+
+
+    /**
+     * @effects avvia il thread di aggiornamento con sorgente e TTL correnti (se non gia' avviato).
+     */
+    private static synchronized void ensureStarted() {
+        if (refresher == null)
+            start(provider, ttl);
+    }
+
+
+
+    /**
+     * @effects restituisce l'eta' (in ms) del tasso in cache oppure -1 se non ancora disponibile.
+     */
+    public static long getAge() {
+        long at = fetchedAt;
+        return at == 0 ? -1 : System.currentTimeMillis() - at;
+    }
+
+
+
+    /**
+     * @effects restituisce le metriche della cache: sorgente, TTL, tasso, eta', aggiornamenti
+     *          riusciti e falliti e letture di un tasso scaduto.
+     */
+    public static String getStats() {
+        return String.format(Locale.ROOT, "exchange rate: provider=%s ttl=%d ms rate=%s age=%d ms refreshes=%d failures=%d staleReads=%d",
+                provider.name(), ttl, rate, getAge(), refreshes.get(), failures.get(), staleReads.get());
+    }
+}
@@ -0,0 +1,154 @@
+package WinsomeServer;
+
+public class IntDoubleMap {
+    /**
+     * OVERVIEW: classe mutable che rappresenta una mappa compatta da chiavi intere positive (es: id
+     *           utente) a somme di valori double, memorizzata in array di primitivi con
+     *           indirizzamento aperto (senza boxing e senza un oggetto per elemento). Per ogni chiave
+     *           e' mantenuto anche il numero di valori sommati.
+     *           La classe non e' thread-safe: la sincronizzazione e' a carico di chi la utilizza.
+     */
+
+    /***************************************
+     ***** INTERFACCIA DEL VISITATORE *****
+     ***************************************/
+    public interface Visitor {
+        /**
+         * OVERVIEW: interfaccia che riceve gli elementi della mappa: chiave, somma dei valori e
+         *           numero di valori sommati.
+         */
+        void visit(int key, double sum, int count);
+    }
+
+
+
+    // chiavi (0 = posizione libera), somme e numero di valori sommati per posizione
+    private int[] keys;
+    private double[] sums;
+    private int[] counts;
+    // numero di chiavi presenti nella mappa
+    private int size;
+
+
+
+    /**
+     * @effects crea una mappa vuota.
+     */
+    public IntDoubleMap() {
+        keys = new int[16];
+        sums = new double[16];
+        counts = new int[16];
+        size = 0;
+    }
+
+
+
+    /**
+     * @effects restituisce la posizione della chiave 'key' oppure la posizione libera in cui
+     *          inserirla.
+     */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int h = key * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+
+
+    /**
+     * @effects somma 'value' al valore della chiave 'key' (inserendola se assente).
+     * @param key chiave.
+     *            [key > 0]
+     */
+    public void add(int key, double value) {
+        add(key, value, 1);
+    }
+
+
+
+    /**
+     * @effects somma 'value' al valore della chiave 'key' (inserendola se assente) e 'count' al
+     *          numero dei suoi valori sommati.
+     */
+    void add(int key, double value, int count) {
+        if (key <= 0)
+            throw new IllegalArgumentException();
+
+        int i = slot(key);
+        if (keys[i] == 0) {
+            // caso di mappa piena oltre il 50%: raddoppio della capacita'
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        sums[i] += value;
+        counts[i] += count;
+    }
+
+
+
+    /**
+     * @effects raddoppia la capacita' della mappa reinserendo le chiavi presenti.
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        double[] oldSums = sums;
+        int[] oldCounts = counts;
+        keys = new int[oldKeys.length * 2];
+        sums = new double[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+        for (int j = 0; j < oldKeys.length; j++)
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                sums[i] = oldSums[j];
+                counts[i] = oldCounts[j];
+            }
+    }
+
+
+
+    /**
+     * @effects somma alla mappa tutti gli elementi della mappa 'other'.
+     */
+    public void addAll(IntDoubleMap other) {
+        other.forEach((key, sum, count) -> add(key, sum, count));
+    }
+
+
+
+    /**
+     * @effects restituisce la somma dei valori della chiave 'key' (0 se assente).
+     */
+    public double get(int key) {
+        int i = slot(key);
+        return keys[i] != 0 ? sums[i] : 0;
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di chiavi presenti nella mappa.
+     */
+    public int size() {
+        return size;
+    }
+
+
+
+    /**
+     * @effects esegue l'azione 'visitor' su ogni elemento della mappa (in ordine non specificato)
+     *          senza effettuare alcuna copia.
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != 0)
+                visitor.visit(keys[i], sums[i], counts[i]);
+    }
+}
@@ -0,0 +1,95 @@
+package WinsomeServer;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+public class IntSortedSet {
+    /**
+     * OVERVIEW: classe mutable che rappresenta un insieme compatto di interi (es: id utente) memorizzati
+     *           in un array di interi primitivi ordinato. Occupa 4 byte per elemento (senza boxing) e
+     *           permette la verifica di appartenenza in O(log n) tramite ricerca binaria.
+     *           La classe non e' thread-safe: la sincronizzazione e' a carico di chi la utilizza.
+     */
+
+    // elementi dell'insieme ordinati in modo crescente (le posizioni >= size non sono significative)
+    private int[] values;
+    // numero di elementi presenti nell'insieme
+    private int size;
+
+
+
+    /**
+     * @effects crea un insieme vuoto.
+     */
+    public IntSortedSet() {
+        values = new int[0];
+        size = 0;
+    }
+
+
+
+    /**
+     * @effects aggiunge 'value' all'insieme e restituisce true se non era gia' presente,
+     *          false altrimenti.
+     */
+    public boolean add(int value) {
+        if (values == null)
+            values = new int[0];
+
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0)
+            return false;
+        index = -index - 1;
+
+        // caso di array pieno: crescita geometrica della capacita'
+        if (size == values.length)
+            values = Arrays.copyOf(values, Math.max(4, size + (size >> 1)));
+
+        System.arraycopy(values, index, values, index+1, size-index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+
+
+    /**
+     * @effects restituisce true se 'value' appartiene all'insieme, false altrimenti.
+     */
+    public boolean contains(int value) {
+        return values != null && Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di elementi dell'insieme.
+     */
+    public int size() {
+        return size;
+    }
+
+
+
+    /**
+     * @effects restituisce l'i-esimo elemento dell'insieme (in ordine crescente).
+     * @param i indice dell'elemento.
+     *          [(i >= 0) && (i < size())]
+     */
+    public int get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException();
+        return values[i];
+    }
+
+
+
+    /**
+     * @effects esegue l'azione 'action' su ogni elemento dell'insieme (in ordine crescente)
+     *          senza effettuare alcuna copia.
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++)
+            action.accept(values[i]);
+    }
+}
@@ -0,0 +1,1179 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+public class Journal {
+    /**
+     * OVERVIEW: classe statica che implementa il journal (write-ahead log) delle modifiche allo stato
+     *           del social network. Ogni modifica (registrazione, follow, unfollow, creazione, rewin ed
+     *           eliminazione di un post, voto, commento, transazione sul wallet e nuova iterazione del
+     *           calcolo delle ricompense) viene aggiunta in coda al file del journal come record binario
+     *           prima di rispondere al client. All'avvio del server i record vengono riapplicati (replay)
+     *           sullo stato caricato dall'ultima memorizzazione completa (snapshot).
+     *           Il journal e' suddiviso in generazioni (un file per generazione): all'inizio di uno
+     *           snapshot (taglio consistente dello stato) il journal passa alla generazione successiva
+     *           con rotate() e, dopo la scrittura dello snapshot, checkpoint() elimina i file delle
+     *           generazioni precedenti (i cui record sono inclusi nello snapshot). Le modifiche
+     *           successive al taglio restano quindi nel journal anche se avvengono durante lo snapshot.
+     *           I record non vengono scritti dai thread che eseguono i comandi ma accodati e scritti da
+     *           un unico thread (group commit): tutti i record accodati durante una scrittura vengono
+     *           scritti insieme con una sola write e (eventualmente) una sola force. Il momento in cui
+     *           un comando viene confermato al client dipende dalla modalita' scelta (vedi AckMode).
+     *           Formato del file: [magic (int)][numero della generazione (long)][record]*
+     *           Formato di un record: [lunghezza del payload (int)][crc32 del payload (int)][payload]
+     *           dove il payload e' composto dal tipo del record (byte) seguito dai suoi campi.
+     *           Se e' attiva la compressione (vedi setCompression()) i gruppi di record abbastanza
+     *           grandi vengono scritti come un unico record BLOCK con payload
+     *           [BLOCK][codec (byte)][record del gruppo compressi].
+     */
+
+    /** directory di default dei file del journal **/
+    private static final String databaseDirName = "WinsomeServer/Database";
+
+    /** directory dei file del journal e nome del file contenente il numero dell'ultimo checkpoint **/
+    private static String journalDirName = null;
+    private static String checkpointFileName = null;
+
+    /** prefisso dei file del journal (seguito dal numero della generazione) **/
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    /** valore identificativo del formato del journal e dimensione dell'header del file **/
+    private static final int MAGIC = 0x574A524E;
+    private static final int FILE_HEADER_SIZE = 12;
+
+    /** dimensione dell'header di un record: lunghezza + crc **/
+    private static final int HEADER_SIZE = 8;
+
+    /** tipi di record **/
+    private static final byte REGISTER = 1;
+    private static final byte FOLLOW = 2;
+    private static final byte UNFOLLOW = 3;
+    private static final byte CREATE_POST = 4;
+    private static final byte REWIN_POST = 5;
+    private static final byte DELETE_POST = 6;
+    private static final byte RATE = 7;
+    private static final byte COMMENT = 8;
+    private static final byte TRANSACTION = 9;
+    private static final byte NEW_ITERATION = 10;
+    private static final byte BLOCK = 11;
+    private static final byte REWARD = 12;
+    private static final byte REWARD_CYCLE = 13;
+
+    /** dimensione massima (in byte, circa) di un record degli accrediti di un periodo calcolato dal worker **/
+    private static final int CYCLE_CHUNK_SIZE = 256 * 1024;
+
+    /** dimensione minima (in byte) di un gruppo di record da comprimere e dimensione massima di un blocco **/
+    private static final int BLOCK_MIN_SIZE = 1024;
+    private static final int BLOCK_MAX_SIZE = 256 * 1024;
+
+    /** marcatore accodato da rotate() per il passaggio alla generazione successiva **/
+    private static final byte[] ROTATE = new byte[0];
+
+    /** attesa (in ms) prima di ritentare una scrittura fallita **/
+    private static final long RETRY_MILLIS = 1000;
+
+    /** canale di accesso al file della generazione corrente (aperto da open()) **/
+    private static volatile FileChannel channel = null;
+
+    /** posizione di scrittura del prossimo record **/
+    private static long writePosition = 0;
+
+    /** numero dell'ultimo checkpoint: prima generazione non inclusa nello snapshot **/
+    private static long checkpointSeq = 0;
+
+    /** generazione del file su cui scrive il thread di scrittura e ultima generazione richiesta **/
+    private static long generation = 0;
+    private static long requestedGeneration = 0;
+
+    /** numero di record scritti e riapplicati **/
+    private static long written = 0;
+    private static long replayed = 0;
+
+    /** modalita' di conferma dei record e intervallo (in ms) tra due force del journal **/
+    private static volatile AckMode ackMode = AckMode.FSYNC;
+    private static volatile int syncMs = 10;
+
+    /** record in attesa di essere scritti dal thread di scrittura (usato anche come lock delle attese) **/
+    private static final ArrayList<byte[]> queue = new ArrayList<>();
+
+    /** numero di sequenza dell'ultimo record accodato, scritto su file e reso persistente (force) **/
+    private static long enqueuedSeq = 0;
+    private static long writtenSeq = 0;
+    private static long durableSeq = 0;
+
+    /** numero di scritture (gruppi di record) e di force eseguite **/
+    private static long batches = 0;
+    private static long forces = 0;
+
+    /** errore dell'ultima scrittura (null se riuscita) e numero di scritture fallite **/
+    private static IOException failure = null;
+    private static long failures = 0;
+
+    /** codec di compressione dei gruppi di record **/
+    private static volatile Compression.Codec compression = Compression.NONE;
+
+    /** byte dei record compressi prima e dopo la compressione e tempo di compressione (in ns) **/
+    private static long compressedRaw = 0;
+    private static long compressedStored = 0;
+    private static long compressNanos = 0;
+
+
+
+    /*****************************
+     ***** MODALITA' DI CONFERMA *****
+     *****************************/
+    public enum AckMode {
+        /**
+         * OVERVIEW: modalita' di conferma di un record (e quindi del comando che lo ha generato):
+         *              - WRITE: dopo la scrittura su file (sopravvive al crash del server ma non a
+         *                quello del sistema operativo); la force avviene ogni JOURNAL_SYNC_MS ms;
+         *              - FSYNC: dopo la force su disco del gruppo di record che lo contiene;
+         *              - INTERVAL: subito; scrittura e force avvengono ogni JOURNAL_SYNC_MS ms (in
+         *                caso di crash si possono perdere al piu' gli ultimi JOURNAL_SYNC_MS ms).
+         */
+        WRITE, FSYNC, INTERVAL
+    }
+
+
+
+    /*************************************
+     ***** INTERFACCIA DEL REPLAYER *****
+     *************************************/
+    public interface Replayer {
+        /**
+         * OVERVIEW: interfaccia implementata da chi riapplica allo stato del social network le
+         *           modifiche memorizzate nel journal (un metodo per ogni tipo di record).
+         */
+        void register(int id, String username, String password, List<String> tags);
+        void follow(String follower, String followed);
+        void unfollow(String follower, String followed);
+        void createPost(long id, long time, String author, String title, String text);
+        void rewinPost(long id, long time, String author, String originalAuthor, long originalId);
+        void deletePost(String author, long id);
+        void rate(int userId, String author, long id, boolean like);
+        void comment(int userId, String author, long id, long time, String text);
+        void transaction(String username, long time, double value, double valueBtc);
+        void reward(String username, long time, double value, double valueBtc, String note);
+        void newIteration();
+        void rewardCycle(long cycle, long time, boolean last, String[] usernames, double[] values, String[] notes);
+    }
+
+
+
+    /*******************************
+     ***** CLASSE PRIVATA RECORD *****
+     *******************************/
+    private static class Record {
+        /**
+         * OVERVIEW: buffer in cui viene codificato un record prima della scrittura su file.
+         */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        /**
+         * @effects crea un record di tipo 'type' (lasciando lo spazio per l'header).
+         */
+        Record(byte type) throws IOException {
+            out.writeLong(0);
+            out.writeByte(type);
+        }
+
+        /**
+         * @effects completa l'header del record (lunghezza e crc) e ne restituisce i byte.
+         */
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, HEADER_SIZE, record.length-HEADER_SIZE);
+            ByteBuffer.wrap(record).putInt(record.length-HEADER_SIZE).putInt((int) crc.getValue());
+            return record;
+        }
+    }
+
+
+
+    /**
+     * @effects setta la modalita' di conferma dei record 'mode' e l'intervallo 'ms' (in ms) tra due
+     *          force del journal (usato dalle modalita' WRITE e INTERVAL).
+     * @param mode modalita' di conferma.
+     *             [mode != null]
+     * @param ms intervallo in ms.
+     *           [ms > 0]
+     */
+    public static void setAckMode(AckMode mode, int ms) {
+        if (mode == null || ms <= 0)
+            throw new IllegalArgumentException();
+        synchronized (queue) {
+            ackMode = mode;
+            syncMs = ms;
+            queue.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce la modalita' di conferma dei record.
+     */
+    public static AckMode getAckMode() {
+        return ackMode;
+    }
+
+
+
+    /**
+     * @effects setta il codec di compressione dei gruppi di record.
+     * @param codec codec di compressione.
+     *              [codec != null]
+     */
+    public static void setCompression(Compression.Codec codec) {
+        if (codec == null)
+            throw new NullPointerException();
+        compression = codec;
+    }
+
+
+
+    /**
+     * @effects apre il journal della directory di default (vedi open(String, long, Replayer)).
+     * @throws IOException se il journal non e' leggibile.
+     */
+    public static void open(long snapshotGeneration, Replayer replayer) throws IOException {
+        open(databaseDirName, snapshotGeneration, replayer);
+    }
+
+
+
+    /**
+     * @effects apre il journal contenuto nella directory 'dir' riapplicando tramite 'replayer' tutti
+     *          i record delle generazioni non incluse nello snapshot e avvia il thread di scrittura.
+     *          Un eventuale record incompleto o corrotto in coda all'ultimo file (es: crash durante la
+     *          scrittura) viene scartato insieme ai successivi. Da invocare una sola volta, dopo il
+     *          caricamento dello snapshot.
+     * @param dir directory contenente i file del journal.
+     *            [dir != null]
+     * @param snapshotGeneration prima generazione non inclusa nello snapshot caricato (0 se non nota:
+     *                           in tal caso vale il numero dell'ultimo checkpoint).
+     * @param replayer oggetto che riapplica le modifiche.
+     *                 [replayer != null]
+     * @throws IOException se il journal non e' leggibile (es: file del checkpoint illeggibile o
+     *                     record corrotto in un file diverso dall'ultimo): il server non deve essere
+     *                     avviato, perche' proseguire senza journal o riapplicando i record successivi
+     *                     a quello corrotto porterebbe a uno stato inconsistente.
+     */
+    public static synchronized void open(String dir, long snapshotGeneration, Replayer replayer) throws IOException {
+        if (channel != null)
+            return;
+        journalDirName = dir;
+        checkpointFileName = dir + "/checkpoint";
+
+        // lettura del numero dell'ultimo checkpoint
+        File checkpointFile = new File(checkpointFileName);
+        if (checkpointFile.exists())
+            try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+                checkpointSeq = in.readLong();
+            } catch (EOFException e) {
+                throw new IOException("truncated checkpoint file " + checkpointFileName, e);
+            }
+        checkpointSeq = Math.max(checkpointSeq, snapshotGeneration);
+
+        // ricerca dei file del journal (compreso il file unico delle versioni precedenti)
+        TreeMap<Long,Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), "journal*")) {
+            for (Path file : stream) {
+                long gen = readGeneration(file);
+                if (gen >= checkpointSeq && !files.containsKey(gen))
+                    files.put(gen, file);
+                else
+                    Files.deleteIfExists(file);
+            }
+        }
+
+        // riapplicazione delle generazioni successive al checkpoint (in ordine)
+        writePosition = replayAll(files, replayer);
+
+        // la generazione piu' recente diventa quella corrente (nuova generazione se assente)
+        if (files.isEmpty()) {
+            openGeneration(checkpointSeq);
+        } else {
+            generation = files.lastKey();
+            channel = FileChannel.open(files.lastEntry().getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.truncate(writePosition);
+        }
+        requestedGeneration = generation;
+
+        System.out.println("Journal | " + replayed + " records replayed since checkpoint " + checkpointSeq);
+
+        // avvio del thread di scrittura
+        Thread writer = new Thread(Journal::writerLoop, "Journal-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+
+    /**
+     * @effects passa a 'replayer' i record di tutti i file del journal della directory 'dir' (in
+     *          ordine di generazione) senza modificarli e senza aprire il journal in scrittura (usato
+     *          dagli strumenti eseguiti separatamente dal server, vedi RewardReplayTool).
+     * @throws IOException se avviene un errore di lettura.
+     */
+    public static void read(String dir, Replayer replayer) throws IOException {
+        TreeMap<Long,Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), "journal*")) {
+            for (Path file : stream) {
+                long gen = readGeneration(file);
+                if (gen >= 0)
+                    files.putIfAbsent(gen, file);
+            }
+        }
+        replayAll(files, replayer);
+    }
+
+
+
+    /**
+     * @effects riapplica (in ordine di generazione) i record dei file 'files' e restituisce la
+     *          posizione successiva all'ultimo record valido dell'ultimo file (0 se non ci sono file).
+     *          Solo l'ultimo file puo' terminare con un record incompleto o corrotto: gli altri sono
+     *          stati resi persistenti prima del passaggio alla generazione successiva, percio' un
+     *          record non valido in uno di essi indica un file danneggiato.
+     * @throws IOException se avviene un errore di lettura o se un file diverso dall'ultimo contiene
+     *                     un record non valido (i record delle generazioni successive non vengono
+     *                     riapplicati).
+     */
+    private static long replayAll(TreeMap<Long,Path> files, Replayer replayer) throws IOException {
+        long position = 0;
+        for (Map.Entry<Long,Path> file : files.entrySet()) {
+            position = replay(file.getValue(), replayer);
+            if (file.getKey() < files.lastKey() && position < Files.size(file.getValue()))
+                throw new IOException("corrupted record at " + position + " of " + file.getValue() +
+                        " (not the last generation)");
+        }
+        return position;
+    }
+
+
+
+    /**
+     * @effects restituisce la generazione scritta nell'header del file 'file' oppure -1 se il file
+     *          non e' un file del journal valido.
+     */
+    private static long readGeneration(Path file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file.toFile()))) {
+            return in.readInt() == MAGIC ? in.readLong() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+
+
+    /**
+     * @effects riapplica i record del file del journal 'file' e restituisce la posizione successiva
+     *          all'ultimo record valido.
+     * @throws IOException se avviene un errore di lettura.
+     */
+    private static long replay(Path file, Replayer replayer) throws IOException {
+        long position = FILE_HEADER_SIZE;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file.toFile()), 1 << 16));
+        try {
+            in.skipNBytes(FILE_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            while (true) {
+                // lettura del record (fine del journal o record incompleto)
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > (1 << 20))
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                // controllo del crc (record corrotto)
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("Journal Error: corrupted record at " + position);
+                    break;
+                }
+
+                // applicazione del record (o dei record del blocco)
+                try {
+                    if (payload[0] == BLOCK) {
+                        replayBlock(payload, replayer);
+                    } else {
+                        apply(replayer, new DataInputStream(new ByteArrayInputStream(payload)));
+                        replayed++;
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                position += HEADER_SIZE + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+
+
+    /**
+     * @effects decomprime il payload 'payload' di un record BLOCK e riapplica tramite 'replayer' i
+     *          record in esso contenuti.
+     * @throws IOException se il blocco non e' decodificabile o contiene un record corrotto.
+     */
+    private static void replayBlock(byte[] payload, Replayer replayer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Compression.get(payload[1])
+                .decompress(new ByteArrayInputStream(payload, 2, payload.length-2))))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int checksum = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum)
+                    throw new IOException("corrupted record in block");
+                apply(replayer, new DataInputStream(new ByteArrayInputStream(record)));
+                replayed++;
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects decodifica il payload 'in' di un record e lo riapplica tramite 'replayer'.
+     * @throws IOException se il payload non e' decodificabile.
+     */
+    private static void apply(Replayer replayer, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case REGISTER: {
+                int id = in.readInt();
+                String username = in.readUTF();
+                String password = in.readUTF();
+                List<String> tags = new ArrayList<>();
+                for (int n = in.readByte(); n > 0; n--)
+                    tags.add(in.readUTF());
+                replayer.register(id, username, password, tags);
+                break;
+            }
+            case FOLLOW: {
+                replayer.follow(in.readUTF(), in.readUTF());
+                break;
+            }
+            case UNFOLLOW: {
+                replayer.unfollow(in.readUTF(), in.readUTF());
+                break;
+            }
+            case CREATE_POST: {
+                replayer.createPost(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+                break;
+            }
+            case REWIN_POST: {
+                replayer.rewinPost(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readLong());
+                break;
+            }
+            case DELETE_POST: {
+                replayer.deletePost(in.readUTF(), in.readLong());
+                break;
+            }
+            case RATE: {
+                replayer.rate(in.readInt(), in.readUTF(), in.readLong(), in.readBoolean());
+                break;
+            }
+            case COMMENT: {
+                replayer.comment(in.readInt(), in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+                break;
+            }
+            case TRANSACTION: {
+                replayer.transaction(in.readUTF(), in.readLong(), in.readDouble(), in.readDouble());
+                break;
+            }
+            case REWARD: {
+                replayer.reward(in.readUTF(), in.readLong(), in.readDouble(), in.readDouble(), in.readUTF());
+                break;
+            }
+            case NEW_ITERATION: {
+                replayer.newIteration();
+                break;
+            }
+            case REWARD_CYCLE: {
+                long cycle = in.readLong();
+                long time = in.readLong();
+                boolean last = in.readBoolean();
+                int n = in.readInt();
+                String[] usernames = new String[n];
+                double[] values = new double[n];
+                String[] notes = new String[n];
+                for (int i = 0; i < n; i++) {
+                    usernames[i] = in.readUTF();
+                    values[i] = in.readDouble();
+                    notes[i] = in.readUTF();
+                }
+                replayer.rewardCycle(cycle, time, last, usernames, values, notes);
+                break;
+            }
+            default:
+                System.err.println("Journal Error: unknown record type " + type);
+        }
+    }
+
+
+
+    /**
+     * @effects crea il file della generazione 'gen' (scrivendone l'header) e lo rende il file
+     *          corrente del journal.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    private static void openGeneration(long gen) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(journalDirName, JOURNAL_PREFIX + gen), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putLong(gen);
+        header.flip();
+        while (header.hasRemaining())
+            file.write(header, header.position());
+        file.force(true);
+        channel = file;
+        generation = gen;
+        writePosition = FILE_HEADER_SIZE;
+    }
+
+
+
+    /**
+     * @effects fa passare il journal alla generazione successiva e ne restituisce il numero (0 se il
+     *          journal non e' aperto): i record accodati prima dell'invocazione restano nella
+     *          generazione corrente, i successivi vengono scritti nella nuova. Non attende la
+     *          scrittura (il passaggio avviene nel thread di scrittura), quindi e' O(1) e puo' essere
+     *          invocato mentre le modifiche allo stato sono sospese (taglio dello snapshot).
+     */
+    public static long rotate() {
+        synchronized (queue) {
+            if (channel == null)
+                return 0;
+            queue.add(ROTATE);
+            queue.notifyAll();
+            return ++requestedGeneration;
+        }
+    }
+
+
+
+    /**
+     * @effects registra la fine di una memorizzazione completa dello stato (checkpoint) che include
+     *          tutti i record delle generazioni precedenti a 'gen' (restituita da rotate() al momento
+     *          del taglio): attende il passaggio alla generazione 'gen', ne scrive il numero nel file
+     *          del checkpoint ed elimina i file delle generazioni precedenti. Restituisce true se il
+     *          checkpoint e' stato registrato, false se la scrittura del journal e' fallita (i file
+     *          restano e verranno eliminati da un checkpoint successivo).
+     * @param gen prima generazione non inclusa nello snapshot.
+     */
+    public static boolean checkpoint(long gen) {
+        if (channel == null || gen <= checkpointSeq)
+            return true;
+
+        // attesa del passaggio alla generazione 'gen' (interrotta se la scrittura fallisce)
+        synchronized (queue) {
+            queue.notifyAll();
+            while (generation < gen) {
+                if (failure != null)
+                    return false;
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        synchronized (Journal.class) {
+            try {
+                // scrittura del numero del nuovo checkpoint (prima dell'eliminazione dei file) su un
+                // file temporaneo che, dopo la force, sostituisce il precedente con un rename atomico
+                Path target = Paths.get(checkpointFileName);
+                Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+                try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(gen);
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        file.write(buffer);
+                    file.force(true);
+                }
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                syncDirectory();
+                for (long old = checkpointSeq; old < gen; old++)
+                    Files.deleteIfExists(Paths.get(journalDirName, JOURNAL_PREFIX + old));
+                Files.deleteIfExists(Paths.get(journalDirName, "journal"));
+                checkpointSeq = gen;
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects rende persistente il contenuto della directory del journal (e quindi il rename del
+     *          file del checkpoint), dove il sistema operativo lo permette.
+     */
+    private static void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(Paths.get(journalDirName), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // non supportato su alcuni sistemi operativi
+        }
+    }
+
+
+
+    /**
+     * @effects accoda il record 'record' per la scrittura nel journal e ne restituisce il numero di
+     *          sequenza (da passare ad await() prima di confermare il comando al client), oppure 0
+     *          se il journal non e' aperto.
+     */
+    private static long append(Record record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        synchronized (queue) {
+            if (channel == null)
+                return 0;
+            queue.add(bytes);
+            if (queue.size() == 1)
+                queue.notifyAll();
+            return ++enqueuedSeq;
+        }
+    }
+
+
+
+    /**
+     * @effects attende che il record con numero di sequenza 'seq' sia confermato secondo la
+     *          modalita' di conferma corrente (scritto su file per WRITE, reso persistente per FSYNC,
+     *          nessuna attesa per INTERVAL). Se la scrittura del journal fallisce l'attesa continua
+     *          finche' un nuovo tentativo (vedi writerLoop()) non va a buon fine: la modifica e' gia'
+     *          applicata e verra' resa persistente, quindi il comando non viene mai confermato al
+     *          client prima che lo sia, ne' rifiutato.
+     * @param seq numero di sequenza restituito da uno dei metodi log.
+     */
+    public static void await(long seq) {
+        if (seq <= 0 || ackMode == AckMode.INTERVAL)
+            return;
+        synchronized (queue) {
+            while ((ackMode == AckMode.FSYNC ? durableSeq : ackMode == AckMode.WRITE ? writtenSeq : seq) < seq)
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+        }
+    }
+
+
+
+    /**
+     * @effects ciclo del thread di scrittura: preleva tutti i record accodati, li scrive con
+     *          un'unica write e, a seconda della modalita' di conferma, esegue la force subito (FSYNC)
+     *          o al piu' ogni 'syncMs' ms (WRITE e INTERVAL). Infine risveglia i thread in attesa.
+     *          Se la scrittura fallisce i record non ancora scritti restano nel gruppo, i numeri di
+     *          sequenza non avanzano (await() resta in attesa, checkpoint() restituisce false) e la scrittura viene
+     *          ritentata ogni RETRY_MILLIS ms insieme ai record accodati nel frattempo.
+     */
+    private static void writerLoop() {
+        long lastForce = System.currentTimeMillis();
+        List<byte[]> batch = new ArrayList<>();
+        long last = 0;
+        while (true) {
+            synchronized (queue) {
+                try {
+                    if (failure != null) {
+                        // attesa di RETRY_MILLIS ms prima di ritentare una scrittura fallita
+                        long retry = System.currentTimeMillis() + RETRY_MILLIS;
+                        for (long wait = RETRY_MILLIS; wait > 0; wait = retry - System.currentTimeMillis())
+                            queue.wait(wait);
+                    } else {
+                        while (true) {
+                            long now = System.currentTimeMillis();
+                            long untilForce = lastForce + syncMs - now;
+
+                            // INTERVAL: scrittura solo allo scadere dell'intervallo
+                            if (ackMode == AckMode.INTERVAL) {
+                                if (untilForce <= 0 && (!queue.isEmpty() || writtenSeq > durableSeq))
+                                    break;
+                                queue.wait(untilForce > 0 ? untilForce : syncMs);
+                                continue;
+                            }
+
+                            // WRITE e FSYNC: scrittura non appena ci sono record (o force scaduta)
+                            if (!queue.isEmpty() || (writtenSeq > durableSeq && untilForce <= 0))
+                                break;
+                            queue.wait(writtenSeq > durableSeq ? untilForce : 0);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch.addAll(queue);
+                queue.clear();
+                last = enqueuedSeq;
+            }
+
+            // scrittura del gruppo di record (e force se richiesta): i record scritti e i passaggi
+            // di generazione completati vengono rimossi dal gruppo, cosi' un nuovo tentativo riprende
+            // dal primo non completato
+            boolean forced = false;
+            IOException error = null;
+            synchronized (Journal.class) {
+                try {
+                    while (!batch.isEmpty()) {
+                        int i = batch.indexOf(ROTATE);
+                        List<byte[]> records = batch.subList(0, i < 0 ? batch.size() : i);
+                        write(records);
+                        records.clear();
+                        if (i < 0)
+                            break;
+
+                        // passaggio alla generazione successiva (il file precedente viene reso
+                        // persistente; se e' gia' stato chiuso da un tentativo fallito viene solo
+                        // creato il nuovo file)
+                        if (channel.isOpen()) {
+                            channel.truncate(writePosition);
+                            channel.force(false);
+                            channel.close();
+                        }
+                        openGeneration(generation + 1);
+                        batch.remove(0);
+                    }
+                    if (ackMode == AckMode.FSYNC || System.currentTimeMillis() - lastForce >= syncMs) {
+                        channel.force(false);
+                        forces++;
+                        forced = true;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (forced)
+                lastForce = System.currentTimeMillis();
+
+            // aggiornamento dei numeri di sequenza (solo se tutto il gruppo e' stato scritto) e
+            // risveglio dei thread in attesa
+            synchronized (queue) {
+                if (error != null) {
+                    if (failure == null) {
+                        System.err.println("Journal Error: unable to write records (retrying every " + RETRY_MILLIS + " ms)");
+                        error.printStackTrace();
+                    }
+                    failures++;
+                } else {
+                    if (failure != null)
+                        System.out.println("Journal | write recovered after " + failures + " failures");
+                    writtenSeq = last;
+                    if (forced)
+                        durableSeq = last;
+                }
+                failure = error;
+                queue.notifyAll();
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects scrive i record 'records' in coda al file della generazione corrente con un'unica
+     *          write (compressi in blocchi se e' attiva la compressione e il gruppo e' abbastanza
+     *          grande). Deve essere invocato col lock della classe.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    private static void write(List<byte[]> records) throws IOException {
+        if (records.isEmpty())
+            return;
+        int size = 0;
+        for (byte[] record : records)
+            size += record.length;
+
+        // compressione del gruppo in blocchi di al piu' BLOCK_MAX_SIZE byte
+        List<byte[]> toWrite = records;
+        Compression.Codec codec = compression;
+        if (codec != Compression.NONE && size >= BLOCK_MIN_SIZE) {
+            long start = System.nanoTime();
+            toWrite = new ArrayList<>();
+            int from = 0, blockSize = 0;
+            for (int i = 0; i < records.size(); i++) {
+                blockSize += records.get(i).length;
+                if (blockSize >= BLOCK_MAX_SIZE || i == records.size()-1) {
+                    toWrite.add(block(records.subList(from, i+1), codec));
+                    from = i + 1;
+                    blockSize = 0;
+                }
+            }
+            compressedRaw += size;
+            size = 0;
+            for (byte[] record : toWrite)
+                size += record.length;
+            compressedStored += size;
+            compressNanos += System.nanoTime() - start;
+        }
+
+        // in caso di errore la posizione torna all'inizio del gruppo (riscritto dal tentativo
+        // successivo) e la parte eventualmente scritta viene eliminata
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : toWrite)
+            buffer.put(record);
+        buffer.flip();
+        long start = writePosition;
+        try {
+            while (buffer.hasRemaining())
+                writePosition += channel.write(buffer, writePosition);
+        } catch (IOException e) {
+            writePosition = start;
+            try {
+                channel.truncate(start);
+            } catch (IOException e2) {
+                // il file viene troncato anche dal passaggio alla generazione successiva
+            }
+            throw e;
+        }
+        written += records.size();
+        batches++;
+    }
+
+
+
+    /**
+     * @effects restituisce il record BLOCK che contiene i record 'records' compressi col codec 'codec'.
+     * @throws IOException se avviene un errore nella compressione.
+     */
+    private static byte[] block(List<byte[]> records, Compression.Codec codec) throws IOException {
+        Record block = new Record(BLOCK);
+        block.out.writeByte(codec.id());
+        try (OutputStream out = codec.compress(Compression.unclosable(block.out))) {
+            for (byte[] record : records)
+                out.write(record);
+        }
+        return block.toByteArray();
+    }
+
+
+
+    /**
+     * @effects registra la registrazione dell'utente 'username' con id 'id'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logRegister(int id, String username, String password, List<String> tags) {
+        try {
+            Record r = new Record(REGISTER);
+            r.out.writeInt(id);
+            r.out.writeUTF(username);
+            r.out.writeUTF(password);
+            r.out.writeByte(tags.size());
+            for (String tag : tags)
+                r.out.writeUTF(tag);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra che l'utente 'follower' ha iniziato a seguire l'utente 'followed'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logFollow(String follower, String followed) {
+        try {
+            Record r = new Record(FOLLOW);
+            r.out.writeUTF(follower);
+            r.out.writeUTF(followed);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra che l'utente 'follower' ha smesso di seguire l'utente 'followed'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logUnfollow(String follower, String followed) {
+        try {
+            Record r = new Record(UNFOLLOW);
+            r.out.writeUTF(follower);
+            r.out.writeUTF(followed);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra la creazione del post 'p' (non rewin) con titolo 'title' e testo 'text'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logCreatePost(Post p, String title, String text) {
+        try {
+            Record r = new Record(CREATE_POST);
+            r.out.writeLong(p.getLongId());
+            r.out.writeLong(p.getTime());
+            r.out.writeUTF(p.getAuthor());
+            r.out.writeUTF(title);
+            r.out.writeUTF(text);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra la creazione del rewin 'p'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logRewinPost(Post p) {
+        try {
+            Record r = new Record(REWIN_POST);
+            r.out.writeLong(p.getLongId());
+            r.out.writeLong(p.getTime());
+            r.out.writeUTF(p.getAuthor());
+            r.out.writeUTF(p.getRewinnedAuthor());
+            r.out.writeLong(p.getRewinnedId());
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra l'eliminazione del post con id 'id' dell'utente 'author'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logDeletePost(String author, long id) {
+        try {
+            Record r = new Record(DELETE_POST);
+            r.out.writeUTF(author);
+            r.out.writeLong(id);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra il voto ('like' = true se positivo) dell'utente con id 'userId' al post
+     *          con id 'id' dell'utente 'author'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logRate(int userId, String author, long id, boolean like) {
+        try {
+            Record r = new Record(RATE);
+            r.out.writeInt(userId);
+            r.out.writeUTF(author);
+            r.out.writeLong(id);
+            r.out.writeBoolean(like);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra il commento 'text' scritto al momento 'time' dall'utente con id 'userId'
+     *          al post con id 'id' dell'utente 'author'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logComment(int userId, String author, long id, long time, String text) {
+        try {
+            Record r = new Record(COMMENT);
+            r.out.writeInt(userId);
+            r.out.writeUTF(author);
+            r.out.writeLong(id);
+            r.out.writeLong(time);
+            r.out.writeUTF(text);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra la transazione di valore 'value' (e 'valueBtc' in bitcoin, 0 se non
+     *          disponibile) avvenuta al momento 'time' sul wallet dell'utente 'username'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logTransaction(String username, long time, double value, double valueBtc) {
+        try {
+            Record r = new Record(TRANSACTION);
+            r.out.writeUTF(username);
+            r.out.writeLong(time);
+            r.out.writeDouble(value);
+            r.out.writeDouble(valueBtc);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra la transazione periodica di valore 'value' (e 'valueBtc' in bitcoin, 0 se non
+     *          disponibile) avvenuta al momento 'time' sul wallet dell'utente 'username', che somma
+     *          gli accrediti di un periodo descritti da 'note'.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logReward(String username, long time, double value, double valueBtc, String note) {
+        try {
+            Record r = new Record(REWARD);
+            r.out.writeUTF(username);
+            r.out.writeLong(time);
+            r.out.writeDouble(value);
+            r.out.writeDouble(valueBtc);
+            r.out.writeUTF(note);
+            return append(r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra le transazioni periodiche avvenute al momento 'time' del periodo numero
+     *          'cycle' calcolato dal worker esterno: usernames[i] riceve values[i] con nota notes[i].
+     *          Gli accrediti vengono divisi in record di circa CYCLE_CHUNK_SIZE byte e solo l'ultimo
+     *          e' segnato come tale, percio' in replay il periodo viene applicato solo se tutti i
+     *          suoi record sono stati letti. Restituisce il numero di sequenza dell'ultimo record
+     *          (vedi await()).
+     */
+    public static long logRewardCycle(long cycle, long time, String[] usernames, double[] values, String[] notes) {
+        try {
+            long seq = 0;
+            int i = 0;
+            do {
+                // accrediti del record (almeno uno, fino a circa CYCLE_CHUNK_SIZE byte)
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream chunk = new DataOutputStream(bytes);
+                int n = 0;
+                for (; i < usernames.length && (n == 0 || bytes.size() < CYCLE_CHUNK_SIZE); i++, n++) {
+                    chunk.writeUTF(usernames[i]);
+                    chunk.writeDouble(values[i]);
+                    chunk.writeUTF(notes[i]);
+                }
+
+                Record r = new Record(REWARD_CYCLE);
+                r.out.writeLong(cycle);
+                r.out.writeLong(time);
+                r.out.writeBoolean(i == usernames.length);
+                r.out.writeInt(n);
+                bytes.writeTo(r.out);
+                seq = append(r);
+            } while (i < usernames.length);
+            return seq;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects registra l'inizio di una nuova iterazione del calcolo delle ricompense.
+     *          Restituisce il numero di sequenza del record (vedi await()).
+     */
+    public static long logNewIteration() {
+        try {
+            return append(new Record(NEW_ITERATION));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce true se il journal contiene modifiche successive all'ultimo checkpoint
+     *          (o se il journal non e' stato aperto), false altrimenti.
+     */
+    public static boolean hasChanges() {
+        synchronized (queue) {
+            if (channel == null || writtenSeq < enqueuedSeq)
+                return true;
+        }
+        synchronized (Journal.class) {
+            return writePosition > FILE_HEADER_SIZE;
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce una stringa con le metriche del journal.
+     */
+    public static synchronized String getStats() {
+        return "Journal | ack=" + ackMode + " checkpoint=" + checkpointSeq + " generation=" + generation +
+                " records=" + written +
+                " batches=" + batches + " forces=" + forces + " failures=" + failures +
+                " avgBatch=" + (batches > 0 ? written/batches : 0) + " size=" + writePosition + " bytes" +
+                " compression=" + Compression.describe(compression) +
+                String.format(Locale.ROOT, " (ratio=%.2f %.1f MB/s)",
+                        compressedStored > 0 ? (double) compressedRaw / compressedStored : 0,
+                        compressNanos > 0 ? compressedRaw / 1048576.0 / (compressNanos / 1e9) : 0);
+    }
+}
@@ -1,6 +1,5 @@
 package WinsomeServer;
 
-import javax.naming.LimitExceededException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -8,13 +7,34 @@ import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class PeriodicRewardsTask implements Runnable {
     /**
      * OVERVIEW: classe che permette la gestione di un gruppo multicast al quale gli utenti,
      *           se registrati su Winsome, possono iscriversi per ricevere notifiche periodiche
      *           sull'aggiornamento del proprio portafoglio virtuale.
+     *           Modalita' di calcolo delle ricompense (vedi Mode):
+     *              - PERIODIC: le ricompense di un periodo vengono calcolate e accreditate tutte
+     *                insieme alla fine del periodo;
+     *              - STREAMING: ogni batch (ogni 'batchMillis' ms) accredita l'incremento del
+     *                guadagno dei post che hanno ricevuto eventi dal batch precedente; la fine del
+     *                periodo segna solo l'inizio di una nuova iterazione (eta' dei post).
+     *           Se e' configurato un worker esterno (vedi setWorker() e RewardWorkerMain) gli eventi
+     *           vengono inoltrati al processo worker, che esegue i calcoli con gli stessi metodi e
+     *           restituisce gli accrediti numerati con il numero di sequenza del periodo (o batch):
+     *           il server li applica ai wallet una sola volta (vedi RewardWorkerLink).
      */
+
+    /***********************************
+     ***** MODALITA' DI CALCOLO *****
+     ***********************************/
+    enum Mode { PERIODIC, STREAMING }
+
+
     // porta multicast
     private final int PORT;
     // periodo in ms dopo il quale calcolare le ricompense
@@ -25,24 +45,355 @@ public class PeriodicRewardsTask implements Runnable {
     private final String IP;
     // oggetto per la comunicazione con la classe WinsomeServer
     private final WinsomeServer winsomeServer;
+    // pool di thread su cui viene calcolato in parallelo un periodo (un task per shard)
+    private final ForkJoinPool pool;
+
+    /** numero di shard delle variazioni del periodo (potenza di 2) **/
+    private static final int SHARDS = 16;
+
+    /** shards[i] = variazioni del periodo corrente dei post con autore nello shard i **/
+    private static final DeltaShard[] shards = new DeltaShard[SHARDS];
+    static {
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new DeltaShard();
+    }
+
+    /** worker esterno a cui inoltrare gli eventi e richiedere i calcoli (null = calcolo nel server) **/
+    private static volatile RewardWorkerLink worker = null;
 
-    /** struttura dati che memorizza i dati degli utenti nell'ultimo periodo **/
-    private static final Map<String,Map<String,Post>> recentPostMap = new HashMap<>();
+    /** attesa massima (in ms) della lettura degli eventi pubblicati prima dell'inizio di un periodo **/
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    /** true se la transazione periodica di ogni utente riporta il dettaglio degli accrediti per post **/
+    private static volatile boolean breakdown = false;
+
+    /** numero massimo di post riportati nel dettaglio di una transazione periodica **/
+    private static final int MAX_BREAKDOWN = 3;
+
+    /** modalita' di calcolo delle ricompense e intervallo (in ms) tra due batch della modalita'
+     *  STREAMING **/
+    private static volatile Mode mode = Mode.PERIODIC;
+    private static volatile long batchMillis = 1000;
 
     /** messaggio di default da inviare ai client connessi al gruppo multicast **/
     private static final String standardMessage = "$$$ Wallets has been updated $$$";
 
 
 
+    /***************************************
+     ***** CLASSE PRIVATA POST DELTA *****
+     ***************************************/
+    private static class PostDelta {
+        /**
+         * OVERVIEW: classe privata che contiene le sole variazioni di un post nel periodo corrente
+         *           necessarie al calcolo delle ricompense: saldo dei voti, numero di commenti per
+         *           commentatore e utenti che hanno votato positivamente. Ogni evento la aggiorna in
+         *           O(1) (ammortizzato), senza copiare il post.
+         *           Nella modalita' STREAMING contiene anche il guadagno del post gia' accreditato
+         *           nel periodo.
+         */
+        // id del post
+        final long postId;
+        // id dell'autore del post
+        final int author;
+        // iterazioni del post al primo evento del periodo
+        final int iterations;
+        // saldo dei voti del periodo (like - dislike)
+        int netLikes = 0;
+        // commenters(idUtente) = numero di commenti dell'utente nel periodo
+        final Map<Integer,Integer> commenters = new HashMap<>(4);
+        // id degli utenti che hanno votato positivamente nel periodo (ognuno al piu' una volta)
+        int[] likers = new int[4];
+        int likersCount = 0;
+        // (modalita' STREAMING) guadagno del post gia' accreditato nel periodo
+        double credited = 0;
+        // (modalita' STREAMING) true se il post ha ricevuto eventi dopo l'ultimo batch
+        boolean changed = false;
+
+        PostDelta(long postId, int authorId, int iterations) {
+            this.postId = postId;
+            author = authorId;
+            this.iterations = iterations;
+        }
+
+        /**
+         * @effects restituisce il guadagno totale del post nel periodo calcolato sulle variazioni
+         *          registrate finora.
+         */
+        double value() {
+            // calcolo del valore relativo ai commenti
+            double comments = 0;
+            for (int count : commenters.values())
+                comments += 2 / (1 + 1 / Math.pow(Math.E, count-1));
+
+            // calcolo del valore relativo ai likes/dislikes
+            double likesDislikes = Math.max(0, netLikes);
+
+            // calcolo del guadagno totale
+            return (Math.log(likesDislikes+1) + Math.log(comments+1)) / iterations;
+        }
+
+        /**
+         * @effects restituisce i curatori del post: utenti che hanno commentato o votato
+         *          positivamente nel periodo.
+         */
+        Set<Integer> curators() {
+            Set<Integer> curators = new HashSet<>(commenters.keySet());
+            for (int i = 0; i < likersCount; i++)
+                curators.add(likers[i]);
+            return curators;
+        }
+
+        /**
+         * @effects registra il voto ('like' = true se positivo) dell'utente con id 'userId'.
+         */
+        void rate(int userId, boolean like) {
+            if (!like) {
+                netLikes--;
+                return;
+            }
+            netLikes++;
+            if (likersCount == likers.length)
+                likers = Arrays.copyOf(likers, likersCount * 2);
+            likers[likersCount++] = userId;
+        }
+    }
+
+
+
+
+    /**************************************
+     ***** CLASSE PRIVATA DELTA SHARD *****
+     **************************************/
+    private static class DeltaShard {
+        /**
+         * OVERVIEW: classe privata che contiene le variazioni del periodo corrente dei post i cui
+         *           autori appartengono allo shard. Il monitor dello shard protegge la mappa (scritta
+         *           dal thread consumatore degli eventi): all'inizio di un calcolo la mappa viene
+         *           sostituita con una vuota in O(1), percio' la registrazione degli eventi non
+         *           attende mai il calcolo delle ricompense.
+         */
+        // deltas(idPost) = variazioni del post nel periodo corrente
+        private Map<Long,PostDelta> deltas = new HashMap<>();
+        // (modalita' STREAMING) variazioni che hanno ricevuto eventi dopo l'ultimo batch
+        private List<PostDelta> changed = new ArrayList<>();
+
+        /**
+         * @effects restituisce la variazione del periodo del post 'postId' (creandola se assente)
+         *          e, nella modalita' STREAMING, la segna come modificata dopo l'ultimo batch.
+         *          [il chiamante possiede il monitor dello shard]
+         */
+        PostDelta get(long postId, int authorId, int iterations) {
+            PostDelta d = deltas.get(postId);
+            if (d == null)
+                deltas.put(postId, d = new PostDelta(postId, authorId, iterations));
+            if (mode == Mode.STREAMING && !d.changed) {
+                d.changed = true;
+                changed.add(d);
+            }
+            return d;
+        }
+
+        /**
+         * @effects sostituisce le variazioni dello shard con un insieme vuoto (in O(1)) e
+         *          restituisce quelle sostituite.
+         */
+        synchronized Map<Long,PostDelta> take() {
+            Map<Long,PostDelta> taken = deltas;
+            deltas = new HashMap<>();
+            changed = new ArrayList<>();
+            return taken;
+        }
+    }
+
+
+
+    /*****************************************
+     ***** CLASSE ACCREDITI DEL PERIODO *****
+     *****************************************/
+    static class CycleCredits {
+        /**
+         * OVERVIEW: classe che accumula gli accrediti di un periodo per utente: il totale (in una
+         *           mappa di primitivi, vedi IntDoubleMap) e, se abilitato, il dettaglio per post.
+         *           Ogni task di shard usa un proprio oggetto, poi gli oggetti vengono uniti e
+         *           applicati ai wallet in un'unica passata (una transazione per utente).
+         */
+        // totals(idUtente) = somma e numero degli accrediti dell'utente nel periodo
+        final IntDoubleMap totals = new IntDoubleMap();
+        // posts(idUtente) = accrediti dell'utente per post (null se il dettaglio non e' abilitato)
+        private final Map<Integer,PostCredits> posts;
+        // numero di sequenza del periodo calcolato dal worker (0 se calcolato nel server)
+        long seq = 0;
+        // notes(idUtente) = nota ricevuta dal worker (null se il periodo e' calcolato nel server)
+        private Map<Integer,String> notes = null;
+
+        CycleCredits(boolean breakdown) {
+            posts = breakdown ? new HashMap<>() : null;
+        }
+
+        /**
+         * @effects accredita 'value' all'utente con id 'userId' per il post 'postId' (gli utenti
+         *          senza id vengono ignorati).
+         */
+        void credit(int userId, long postId, double value) {
+            if (userId <= 0)
+                return;
+            totals.add(userId, value);
+            if (posts != null)
+                posts.computeIfAbsent(userId, id -> new PostCredits()).add(postId, value);
+        }
+
+        /**
+         * @effects accredita all'utente con id 'userId' la somma 'sum' di 'count' accrediti con nota
+         *          'note' (accrediti calcolati dal worker, vedi RewardWorkerLink).
+         */
+        void credit(int userId, double sum, int count, String note) {
+            if (userId <= 0)
+                return;
+            totals.add(userId, sum, count);
+            if (notes == null)
+                notes = new HashMap<>();
+            notes.put(userId, note);
+        }
+
+        /**
+         * @effects aggiunge gli accrediti di 'other'.
+         */
+        void addAll(CycleCredits other) {
+            totals.addAll(other.totals);
+            if (posts != null && other.posts != null)
+                other.posts.forEach((userId, c) -> {
+                    PostCredits mine = posts.putIfAbsent(userId, c);
+                    if (mine != null)
+                        mine.addAll(c);
+                });
+        }
+
+        /**
+         * @effects restituisce la nota della transazione periodica dell'utente con id 'userId' che
+         *          ha ricevuto 'count' accrediti: il numero di accrediti e, se abilitato, il dettaglio
+         *          dei MAX_BREAKDOWN post con accredito maggiore.
+         */
+        String note(int userId, int count) {
+            String note = notes != null ? notes.get(userId) : null;
+            if (note != null)
+                return note;
+            PostCredits c = posts != null ? posts.get(userId) : null;
+            return " (" + count + (count == 1 ? " reward" : " rewards") + (c != null ? ": " + c : "") + ")";
+        }
+    }
+
+
+
+    /****************************************
+     ***** CLASSE PRIVATA POST CREDITS *****
+     ****************************************/
+    private static class PostCredits {
+        /**
+         * OVERVIEW: classe privata che contiene gli accrediti di un utente per post in due array di
+         *           primitivi (id del post e valore).
+         */
+        long[] postIds = new long[4];
+        double[] values = new double[4];
+        int size = 0;
+
+        void add(long postId, double value) {
+            if (size == postIds.length) {
+                postIds = Arrays.copyOf(postIds, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            postIds[size] = postId;
+            values[size++] = value;
+        }
+
+        void addAll(PostCredits other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.postIds[i], other.values[i]);
+        }
+
+        /**
+         * @effects restituisce i MAX_BREAKDOWN accrediti maggiori nella forma
+         *          "idPost +valore, ..." seguiti dal numero di accrediti non riportati.
+         */
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            boolean[] used = new boolean[size];
+            int shown = Math.min(size, MAX_BREAKDOWN);
+            for (int k = 0; k < shown; k++) {
+                int max = -1;
+                for (int i = 0; i < size; i++)
+                    if (!used[i] && (max < 0 || values[i] > values[max]))
+                        max = i;
+                used[max] = true;
+                if (k > 0)
+                    sb.append(", ");
+                sb.append(postIds[max]).append(String.format(Locale.ROOT, " +%.4f", values[max]));
+            }
+            if (size > shown)
+                sb.append(", +").append(size - shown).append(" more");
+            return sb.toString();
+        }
+    }
+
+
+
+    /**************************************
+     ***** CLASSE PRIVATA EVENT QUEUE *****
+     **************************************/
+    private static class EventQueue {
+        /**
+         * OVERVIEW: classe privata che contiene la coda degli eventi (voti, commenti e cancellazioni)
+         *           pubblicati dai thread dei client: il thread consumatore li applica agli shard o li
+         *           inoltra al worker (vedi consume()). La coda (e il suo file di overflow) viene
+         *           creata al primo utilizzo, percio' non viene mai creata nel processo worker, che
+         *           riceve gli eventi dal server.
+         */
+        static final RewardEventQueue events = new RewardEventQueue("WinsomeServer/Database/rewardEvents.spill");
+        static {
+            events.start(PeriodicRewardsTask::consume);
+        }
+    }
+
+
+
+    /*************************************
+     ***** INTERFACCIA DEL RICEVENTE *****
+     *************************************/
+    interface RewardSink {
+        /**
+         * OVERVIEW: interfaccia che riceve gli accrediti di un periodo (il server li applica ai
+         *           wallet, i benchmark si limitano a contarli) e restituisce il numero di wallet
+         *           aggiornati.
+         */
+        int apply(CycleCredits credits);
+    }
+
+
+
+
     /**
      * @effects costruttore che inizializza i campi della classe con valori di default.
      */
     protected PeriodicRewardsTask() {
+        this(10);
+    }
+
+
+
+    /**
+     * @effects costruttore che inizializza i campi della classe con valori di default e la
+     *          percentuale dell'autore 'REWARD_PERC' (usato dal processo worker, vedi RewardWorkerMain).
+     *          [(REWARD_PERC >= 0) && (REWARD_PERC <= 100)]
+     */
+    PeriodicRewardsTask(int REWARD_PERC) {
+        if (REWARD_PERC < 0 || REWARD_PERC > 100)
+            throw new InvalidParameterException();
         winsomeServer = null;
+        pool = null;
         IP = null;
         PORT = 0;
         TIMEOUT = 0;
-        PERC = 10;
+        PERC = REWARD_PERC;
     }
 
 
@@ -80,6 +431,144 @@ public class PeriodicRewardsTask implements Runnable {
         TIMEOUT = MC_TIMEOUT;
         PERC = REWARD_PERC;
         winsomeServer = ws;
+        pool = new ForkJoinPool(Math.min(SHARDS, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+
+    /**
+     * @effects restituisce lo shard che contiene le variazioni dei post dell'utente con id 'authorId'.
+     */
+    private static DeltaShard shardOf(int authorId) {
+        int h = authorId * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+
+
+    /**
+     * @effects passa l'evento 'kind' dell'utente 'userId' sul post 'postId' al worker (se
+     *          configurato) oppure lo applica allo shard dell'autore.
+     *          [invocato solo dal thread consumatore della coda degli eventi]
+     */
+    private static void consume(long postId, int userId, int authorId, int iterations, byte kind) {
+        RewardWorkerLink w = worker;
+        if (w != null)
+            w.send(postId, userId, authorId, iterations, kind);
+        else
+            applyEvent(postId, userId, authorId, iterations, kind);
+    }
+
+
+
+    /**
+     * @effects applica allo shard dell'autore l'evento 'kind' dell'utente 'userId' sul post 'postId'.
+     *          [invocato solo dal thread consumatore della coda degli eventi o, nel processo worker,
+     *          dal thread che riceve gli eventi dal server]
+     */
+    static void applyEvent(long postId, int userId, int authorId, int iterations, byte kind) {
+        DeltaShard shard = shardOf(authorId);
+        synchronized (shard) {
+            switch (kind) {
+                case RewardEventQueue.LIKE:
+                case RewardEventQueue.DISLIKE:
+                    shard.get(postId, authorId, iterations).rate(userId, kind == RewardEventQueue.LIKE);
+                    break;
+                case RewardEventQueue.COMMENT:
+                    shard.get(postId, authorId, iterations).commenters.merge(userId, 1, Integer::sum);
+                    break;
+                case RewardEventQueue.DELETE: {
+                    // il post cancellato non riceve ulteriori accrediti nel periodo
+                    PostDelta d = shard.deltas.remove(postId);
+                    if (d != null)
+                        d.changed = false;
+                    break;
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects pubblica nella coda degli eventi l'evento 'kind' dell'utente 'userId' sul post 'p'.
+     */
+    private static void publish(Post p, int userId, byte kind) {
+        EventQueue.events.publish(p.getLongId(), userId, UserIndex.idOf(p.getAuthor()), p.getIterations(), kind);
+    }
+
+
+
+    /**
+     * @effects setta la politica di gestione della coda degli eventi piena.
+     */
+    static void setEventPolicy(RewardEventQueue.Policy policy) {
+        EventQueue.events.setPolicy(policy);
+    }
+
+
+
+    /**
+     * @effects abilita ('enabled' = true) o disabilita il dettaglio per post delle transazioni
+     *          periodiche.
+     */
+    static void setBreakdown(boolean enabled) {
+        breakdown = enabled;
+    }
+
+
+
+    /**
+     * @effects setta la modalita' di calcolo delle ricompense 'm' e l'intervallo 'millis' (in ms)
+     *          tra due batch della modalita' STREAMING.
+     * @param millis intervallo tra due batch.
+     *               [millis > 0]
+     */
+    static void setMode(Mode m, long millis) {
+        if (m == null || millis <= 0)
+            throw new IllegalArgumentException();
+        mode = m;
+        batchMillis = millis;
+    }
+
+
+
+    /**
+     * @effects setta il worker esterno 'w' a cui inoltrare gli eventi e richiedere i calcoli delle
+     *          ricompense (null = calcolo nel server).
+     */
+    static void setWorker(RewardWorkerLink w) {
+        worker = w;
+    }
+
+
+
+    /**
+     * @effects restituisce true se il dettaglio per post delle transazioni periodiche e' abilitato.
+     */
+    static boolean isBreakdown() {
+        return breakdown;
+    }
+
+
+
+    /**
+     * @effects restituisce true se la modalita' di calcolo e' STREAMING.
+     */
+    static boolean isStreaming() {
+        return mode == Mode.STREAMING;
+    }
+
+
+
+    /**
+     * @effects attende che il thread consumatore abbia applicato agli shard tutti gli eventi
+     *          pubblicati finora (al piu' FLUSH_TIMEOUT ms) e restituisce le metriche della coda.
+     */
+    static String flushEvents() {
+        if (!EventQueue.events.flush(FLUSH_TIMEOUT))
+            System.err.println("PeriodicRewardsTask Error: event queue not drained in " + FLUSH_TIMEOUT + " ms");
+        return EventQueue.events.getStats();
     }
 
 
@@ -90,7 +579,7 @@ public class PeriodicRewardsTask implements Runnable {
      * @param p post da eliminare dai post recenti.
      *          [p != null]
      */
-    protected synchronized void deletePostFromRecentPosts(Post p) {
+    protected void deletePostFromRecentPosts(Post p) {
 
         // controllo parametri
         if (p == null) {
@@ -98,96 +587,220 @@ public class PeriodicRewardsTask implements Runnable {
             throw new InvalidParameterException();
         }
 
-        // caso di primo post nell'ultimo periodo
-        if (!recentPostMap.containsKey(p.getAuthor()))
-            return;
+        publish(p, 0, RewardEventQueue.DELETE);
+    }
+
 
-        // aggiunta del post tra i recenti se non e' gia' presente
-        recentPostMap.get(p.getAuthor()).remove(p.getId());
 
-        // caso di autore senza post (ma che aveva precedentemente creato post)
-        if (recentPostMap.get(p.getAuthor()).isEmpty())
-            recentPostMap.remove(p.getAuthor());
+    /**
+     * @effects registra nelle variazioni del periodo il voto ('like' = true se positivo)
+     *          dell'utente con id 'userId' al post passato come parametro.
+     * @param post post votato.
+     *             [post != null]
+     * @param userId id (denso) dell'utente che ha votato il post.
+     *               [userId > 0]
+     * @param like true se il voto e' positivo, false altrimenti.
+     */
+    protected void rateRecentPost(Post post, int userId, boolean like) {
+
+        // controllo parametri
+        if (post == null || userId <= 0) {
+            System.err.println("AddPostToRecentPosts Error: bad parameters");
+            throw new InvalidParameterException();
+        }
 
+        publish(post, userId, like ? RewardEventQueue.LIKE : RewardEventQueue.DISLIKE);
     }
 
 
 
     /**
-     * @effects permette di aggiornare i valori di like/dislike del post passato come parametro
-     *          in base al voto 'vote' e di aggiungere tale post ai recenti (se assente).
-     * @param post oggetto post da aggiornare col nuovo voto.
+     * @effects registra nelle variazioni del periodo il commento dell'utente con id 'authorId' al
+     *          post passato come parametro (il testo non e' necessario al calcolo delle ricompense).
+     * @param authorId id (denso) dell'utente che ha scritto il commento.
+     *                 [authorId > 0]
+     * @param post post commentato.
      *             [post != null]
-     * @param username nome utente di chi ha messo like/dislike al post.
-     *                 [username != null]
-     * @param vote voto da aggiungere al post.
-     *             [(vote != null) && ((vote == "+1") || (vote == "-1"))]
      */
-    protected synchronized void rateRecentPost(Post post, String username, String vote) {
+    protected void addCommentToRecentPost(int authorId, Post post) {
 
         // controllo parametri
-        if (post == null || vote == null || username == null) {
+        if (post == null || authorId <= 0) {
             System.err.println("AddPostToRecentPosts Error: bad parameters");
             throw new InvalidParameterException();
         }
 
-        Post p = post.getCopy();
+        publish(post, authorId, RewardEventQueue.COMMENT);
+    }
 
-        // in caso di assenza dell'autore
-        recentPostMap.putIfAbsent(p.getAuthor(), new HashMap<>());
 
-        // in caso di assenza del post
-        recentPostMap.get(p.getAuthor()).putIfAbsent(p.getId(),p);
 
-        // caso di assegnamento del like
-        if (vote.equals("+1"))
-            recentPostMap.get(p.getAuthor()).get(p.getId()).putLike(username);
+    /**
+     * @effects calcola le ricompense dei post a partire dalle variazioni 'taken' di uno shard e
+     *          restituisce gli accrediti degli autori e dei curatori (utenti che hanno commentato o
+     *          votato positivamente).
+     */
+    private CycleCredits computeRewards(Map<Long,PostDelta> taken) {
+        CycleCredits credits = new CycleCredits(breakdown);
+        for (PostDelta d : taken.values())
+            credit(d, d.value(), credits);
+        return credits;
+    }
 
-        // caso di assegnamento dislike
-        else if (vote.equals("-1"))
-            recentPostMap.get(p.getAuthor()).get(p.getId()).putDislike(username);
 
-        // caso di formato errato del voto
-        else
-            System.err.println("AddPostToRecentPosts Error: bad rate format");
 
+    /**
+     * @effects (modalita' STREAMING) accredita in 'credits' l'incremento del guadagno dei post
+     *          'changed' modificati dopo l'ultimo batch rispetto al guadagno gia' accreditato. Se
+     *          il guadagno di un post diminuisce (voti negativi) non viene sottratto nulla e
+     *          l'accredito riprende quando il guadagno supera quello gia' accreditato.
+     *          [il chiamante possiede il monitor dello shard oppure le variazioni sono state
+     *          sostituite con take()]
+     */
+    private void creditIncrements(Collection<PostDelta> changed, CycleCredits credits) {
+        for (PostDelta d : changed) {
+            if (!d.changed)
+                continue;
+            d.changed = false;
+            double tot = d.value();
+            if (!(tot > d.credited))
+                continue;
+            credit(d, tot - d.credited, credits);
+            d.credited = tot;
+        }
     }
 
 
 
     /**
-     * @effects permette di aggiornare i commenti del post passato come parametro col nuovo commento
-     *          'comment' e di aggiungere tale post ai recenti (se assente).
-     * @param comment stringa contenente il commento da aggiungere al post.
-     *                [comment != null]
-     * @param post oggetto post da aggiornare col nuovo commento.
-     *             [post != null]
+     * @effects accredita in 'credits' il guadagno 'tot' del post 'd': la percentuale PERC all'autore
+     *          e la restante divisa in parti uguali tra i curatori.
      */
-    protected synchronized void addCommentToRecentPost(String comment, Post post) {
+    private void credit(PostDelta d, double tot, CycleCredits credits) {
 
-        // controllo parametri
-        if (post == null || comment == null) {
-            System.err.println("AddPostToRecentPosts Error: bad parameters");
-            throw new InvalidParameterException();
+        // caso in cui non va aggiornato il wallet
+        if (tot <= 0 || Float.isNaN((float) tot))
+            return;
+
+        // calcolo percentuali
+        double percAuthor = (tot/100)*PERC;
+        double percCurators = (tot/100)*(100-PERC);
+
+        // accredito all'autore
+        credits.credit(d.author, d.postId, percAuthor);
+
+        // accredito ai curatori: utenti che hanno commentato o votato positivamente
+        Set<Integer> curators = d.curators();
+        double moneyDistribution = percCurators/curators.size();
+        for (int userId : curators)
+            credits.credit(userId, d.postId, moneyDistribution);
+    }
+
+
+
+    /**
+     * @effects esegue un periodo di calcolo: sostituisce le variazioni di ogni shard con un insieme
+     *          vuoto, calcola le ricompense degli shard in parallelo su 'pool' (un task per shard) e
+     *          passa a 'sink' gli accrediti uniti per utente. Nella modalita' STREAMING vengono
+     *          accreditati solo gli incrementi non ancora accreditati dai batch. Restituisce {post,
+     *          accrediti, wallet aggiornati, durata in ns}.
+     */
+    long[] rewardCycle(ForkJoinPool pool, RewardSink sink) {
+        long start = System.nanoTime();
+
+        // sostituzione delle variazioni di tutti gli shard (gli eventi successivi vanno nel nuovo periodo)
+        boolean streaming = mode == Mode.STREAMING;
+        List<Callable<CycleCredits>> tasks = new ArrayList<>(SHARDS);
+        long posts = 0;
+        for (DeltaShard shard : shards) {
+            Map<Long,PostDelta> taken = shard.take();
+            if (taken.isEmpty())
+                continue;
+            posts += taken.size();
+            tasks.add(() -> {
+                if (!streaming)
+                    return computeRewards(taken);
+                CycleCredits credits = new CycleCredits(breakdown);
+                creditIncrements(taken.values(), credits);
+                return credits;
+            });
         }
+        return apply(pool, tasks, sink, posts, start);
+    }
 
-        Post p = post.getCopy();
 
-        // in caso di assenza dell'autore
-        recentPostMap.putIfAbsent(p.getAuthor(), new HashMap<>());
 
-        // in caso di assenza del post
-        recentPostMap.get(p.getAuthor()).putIfAbsent(p.getId(),p);
+    /**
+     * @effects (modalita' STREAMING) esegue un batch: accredita in parallelo su 'pool' (un task per
+     *          shard) l'incremento del guadagno dei post che hanno ricevuto eventi dopo il batch
+     *          precedente e passa a 'sink' gli accrediti uniti per utente. Le variazioni restano
+     *          nel periodo corrente. Restituisce {post, accrediti, wallet aggiornati, durata in ns}.
+     */
+    long[] rewardBatch(ForkJoinPool pool, RewardSink sink) {
+        long start = System.nanoTime();
+
+        // sostituzione delle variazioni modificate di ogni shard (gli eventi successivi vanno nel batch successivo)
+        List<Callable<CycleCredits>> tasks = new ArrayList<>(SHARDS);
+        long posts = 0;
+        for (DeltaShard shard : shards) {
+            List<PostDelta> changed;
+            synchronized (shard) {
+                changed = shard.changed;
+                shard.changed = new ArrayList<>();
+            }
+            if (changed.isEmpty())
+                continue;
+            posts += changed.size();
+            tasks.add(() -> {
+                CycleCredits credits = new CycleCredits(breakdown);
+                synchronized (shard) {
+                    creditIncrements(changed, credits);
+                }
+                return credits;
+            });
+        }
+        return apply(pool, tasks, sink, posts, start);
+    }
+
+
+
+    /**
+     * @effects esegue i task 'tasks' in parallelo su 'pool', unisce gli accrediti restituiti e li
+     *          passa a 'sink'. Restituisce {post, accrediti, wallet aggiornati, durata in ns da
+     *          'start'}.
+     */
+    private static long[] apply(ForkJoinPool pool, List<Callable<CycleCredits>> tasks, RewardSink sink, long posts, long start) {
 
-        // aggiunta del commento
+        // calcolo parallelo degli shard e unione degli accrediti
+        CycleCredits credits = new CycleCredits(breakdown);
         try {
-            recentPostMap.get(p.getAuthor()).get(p.getId()).addComment(comment);
-        } catch (LimitExceededException e) {
-            recentPostMap.get(p.getAuthor()).remove(p.getId());
-            if (recentPostMap.get(p.getAuthor()).isEmpty())
-                recentPostMap.remove(p.getAuthor());
-            e.printStackTrace();
+            for (Future<CycleCredits> f : pool.invokeAll(tasks))
+                credits.addAll(f.get());
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+
+        // applicazione degli accrediti ai wallet in un'unica passata
+        long[] count = {0};
+        credits.totals.forEach((userId, sum, n) -> count[0] += n);
+        int wallets = credits.totals.size() > 0 ? sink.apply(credits) : 0;
+        return new long[]{posts, count[0], wallets, System.nanoTime() - start};
+    }
+
+
+
+    /**
+     * @effects restituisce una descrizione del periodo 'cycle' (vedi rewardCycle()) calcolato con
+     *          'threads' thread: accrediti, operazioni sui wallet, durata, throughput e numero di
+     *          core della macchina.
+     */
+    static String cycleStats(long[] cycle, int threads) {
+        double ms = cycle[3] / 1e6;
+        return String.format(Locale.ROOT, "%d posts, %d credits, %d wallet ops in %.1f ms (%.0f posts/s) shards=%d threads=%d cores=%d",
+                cycle[0], cycle[1], cycle[2], ms, ms > 0 ? cycle[0] * 1000 / ms : 0, SHARDS, threads,
+                Runtime.getRuntime().availableProcessors());
     }
 
 
@@ -209,75 +822,50 @@ public class PeriodicRewardsTask implements Runnable {
             DatagramSocket socket = new DatagramSocket(PORT);
             socket.setReuseAddress(true);
 
+            // fine del periodo corrente e totali dei batch del periodo (modalita' STREAMING)
+            long periodEnd = System.currentTimeMillis() + TIMEOUT;
+            long[] batches = new long[4];
+            int batchCount = 0;
+
             // ciclo di calcolo periodico dei guadagni
             while (!ServerMain.getExitValue()) {
 
-                // periodo ciclico di attesa
+                // periodo ciclico di attesa (nella modalita' STREAMING fino al batch successivo)
+                long wait = periodEnd - System.currentTimeMillis();
+                if (mode == Mode.STREAMING)
+                    wait = Math.min(wait, batchMillis);
                 try {
-                    Thread.sleep(TIMEOUT);
+                    if (wait > 0)
+                        Thread.sleep(wait);
                 } catch (InterruptedException e) {
                     break;
                 }
 
+                // batch della modalita' STREAMING (accredito degli incrementi entro il periodo)
+                if (System.currentTimeMillis() < periodEnd) {
+                    flushEvents();
+                    RewardWorkerLink w = worker;
+                    long[] batch = w != null ? w.cycle(false, winsomeServer::addTransactionsOnWallets)
+                            : rewardBatch(pool, winsomeServer::addTransactionsOnWallets);
+                    for (int i = 0; i < batches.length; i++)
+                        batches[i] += batch[i];
+                    batchCount++;
+                    continue;
+                }
+                periodEnd = Math.max(periodEnd + TIMEOUT, System.currentTimeMillis());
+
                 System.out.print("PeriodicRewardsTask | Rewards Counting... ");
 
-                // calcolo delle ricompense
-                synchronized (recentPostMap) {
-                    double comments, likesDislikes, tot;
-                    for (Map.Entry<String,Map<String,Post>> posts : recentPostMap.entrySet())
-                        for (Map.Entry<String, Post> post : posts.getValue().entrySet()) {
-                            Post p = post.getValue();
-
-                            // calcolo del valore relativo ai commenti
-                            Map<String, Integer> usersComments = new HashMap<>();
-                            for (String comment : p.getComments()) {
-                                String user = comment.substring(0, comment.indexOf(":"));
-                                if (!usersComments.containsKey(user))
-                                    usersComments.put(user, 0);
-                                usersComments.put(user, usersComments.get(user)+1);
-                            }
-                            comments = 0;
-                            for (Map.Entry<String,Integer> i : usersComments.entrySet())
-                                comments += 2 / (1 + 1 / Math.pow(Math.E, i.getValue()-1));
-
-                            // calcolo del valore relativo ai likes/dislikes
-                            likesDislikes = Math.max(0, p.totalRating());
-
-                            // calcolo del guadagno totale
-                            tot = (Math.log(likesDislikes+1) + Math.log(comments+1)) / p.getIterations();
-
-                            // caso in cui non va aggiornato il wallet
-                            if(tot <= 0 || Float.isNaN((float) tot))
-                                continue;
-
-                            // calcolo percentuali
-                            double percAuthor = (tot/100)*PERC;
-                            double percCurators = (tot/100)*(100-PERC);
-
-                            // aggiornamento del wallet dell'autore
-                            winsomeServer.addTransactionOnWallet(p.getAuthor(), percAuthor);
-
-                            // recupero dei curatori: utenti che hanno commentato
-                            Set<String> curatorsSet = new HashSet<>();
-                            for (Map.Entry<String,Integer> user : usersComments.entrySet())
-                                curatorsSet.add(user.getKey());
-
-                            // recupero dei curatori: utenti che hanno votato
-                            for (Map.Entry<String,Integer> user : p.getVoters().entrySet())
-                                if (user.getValue() == 1)
-                                    curatorsSet.add(user.getKey());
-
-                            // aggiornamento del wallet dei curatori
-                            double moneyDistribution = percCurators/curatorsSet.size();
-                            for (String user : curatorsSet)
-                                winsomeServer.addTransactionOnWallet(user, moneyDistribution);
-
-                            // reset delle informazioni del post (affinche' sia "preparato" al ciclo successivo)
-                            recentPostMap.clear();
-                            winsomeServer.startNewIteration();
-                        }
+                // applicazione agli shard degli eventi pubblicati fino a questo momento
+                String eventStats = flushEvents();
 
-                }
+                // calcolo delle ricompense sulle variazioni del periodo (nel server o nel worker) e
+                // inizio del periodo successivo
+                RewardWorkerLink w = worker;
+                long[] cycle = w != null ? w.cycle(true, winsomeServer::addTransactionsOnWallets)
+                        : rewardCycle(pool, winsomeServer::addTransactionsOnWallets);
+                if (cycle[0] > 0)
+                    winsomeServer.startNewIteration();
 
                 // creazione del pacchetto da spedire ai client
                 DatagramPacket packet = new DatagramPacket(buf, buf.length, groupIP, PORT);
@@ -286,7 +874,14 @@ public class PeriodicRewardsTask implements Runnable {
                 packet.setData(standardMessage.getBytes(StandardCharsets.UTF_8));
                 socket.send(packet);
 
-                System.out.println("done");
+                System.out.println("done | " + cycleStats(cycle, pool.getParallelism()));
+                if (batchCount > 0)
+                    System.out.println("PeriodicRewardsTask | " + batchCount + " batches: " + cycleStats(batches, pool.getParallelism()));
+                System.out.println("PeriodicRewardsTask | " + eventStats);
+                if (w != null)
+                    System.out.println("PeriodicRewardsTask | " + w.getStats());
+                Arrays.fill(batches, 0);
+                batchCount = 0;
             }
 
             // chiusura gruppo multicast
@@ -296,6 +891,7 @@ public class PeriodicRewardsTask implements Runnable {
             e.printStackTrace();
         }
 
+        pool.shutdown();
         System.out.println("PeriodicRewardsTask | " + Thread.currentThread() + ": closed");
     }
 }
\ No newline at end of file
@@ -1,42 +1,66 @@
 package WinsomeServer;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.Timestamp;
 import javax.naming.LimitExceededException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.IntConsumer;
 
 public class Post {
     /**
      * OVERVIEW: classe mutable che permette di rappresentare un post al quale si associa:
      *           un ID, l'autore del post, il titolo del post, il testo del post, numero di
      *           like/dislike, insieme di commenti e data/ora di creazione.
+     *           I metadati (id, autore, contatori, ...) restano sempre in memoria mentre titolo,
+     *           testo, votanti e commenti sono contenuti nel body del post, che per i post gestiti
+     *           da PostStore puo' essere scaricato su disco e ricaricato al primo accesso.
      */
-    // id identificativo del post
-    private String id;
-    // id del post di cui e' stato fatto il rewin (se null, il post non e' un rewin)
-    private Post rewinnedPost;
-    // autore del post
+    // id identificativo del post (generato in modo monotono crescente)
+    private final long id;
+    // id del post originale di cui e' stato fatto il rewin (se 0, il post non e' un rewin)
+    private final long rewinnedId;
+    // autore del post originale di cui e' stato fatto il rewin (se null, il post non e' un rewin)
+    private final String rewinnedAuthor;
+    // autore del post (nel caso di rewin e' l'utente che ha ricondiviso il post)
     private final String author;
-    // titolo del post
-    private final String title;
-    // testo del post
-    private final String text;
-    // commenti presenti nel post
-    private final LinkedList<String> comments;
-    // utenti che hanno votato il post
-    private final Map<String,Integer> voteUsers;
+    // body del post: titolo, testo, votanti e commenti (null se il body e' scaricato su disco)
+    private transient PostBody body;
+    // posizione del body nei segmenti su disco (-1 se il body non e' mai stato scritto)
+    private long bodyRef = -1;
+    // lunghezza in byte del body nei segmenti su disco
+    private int bodyLength = 0;
+    // indica se il body in memoria e' stato modificato dopo l'ultima scrittura su disco
+    private transient boolean bodyDirty;
+    // indica se il post e' gestito da PostStore (e quindi se il suo body puo' essere scaricato)
+    private transient boolean managed;
     // oggetto che rappresenta il momento di creazione del post
     private final Timestamp timestamp;
     // numero di like del post
     private int likes;
     // numero di dislike del post
     private int dislikes;
-    // numero di iterazioni in cui il post e' stato sottoposto al calcolo delle ricompense
-    private int n_iterations = 0;
-    // indica se l'iterazione e' gia' stata incrementata nell'ultimo periodo oppure no
-    protected boolean lastIter;
+    // numero di iterazioni in cui il post e' stato sottoposto al calcolo delle ricompense (32 bit
+    // bassi) ed epoca delle ricompense in cui e' stata contata l'ultima iterazione (32 bit alti)
+    private volatile long iterations = 0;
+    // (solo nelle copie degli snapshot e nei post letti da disco) indica se il post e' stato contato
+    // nell'epoca delle ricompense del taglio
+    private boolean counted;
     // contatore statico incrementato alla creazione di ogni post
-    private static final AtomicInteger counter = new AtomicInteger(10000);
+    private static final AtomicLong counter = new AtomicLong(10000);
+    // epoca corrente delle ricompense (incrementata all'inizio di ogni nuova iterazione)
+    private static final AtomicInteger epoch = new AtomicInteger(1);
+    // aggiornamento atomico del campo 'iterations'
+    private static final AtomicLongFieldUpdater<Post> ITERATIONS = AtomicLongFieldUpdater.newUpdater(Post.class, "iterations");
 
 
 
@@ -50,49 +74,424 @@ public class Post {
      *             [(text != null) && (0 < text.lenght < 501)]
      * @param title titolo del post.
      *              [(title != null) && (0 < title.lenght < 51)]
-     * @param rewinnedPost post di cui e' stato fatto il rewin.
-     *                     Se = a null non e' stato fatto alcun rewin.
      * @throws NullPointerException if author == null || text == null
      * @throws LimitExceededException if !(0 < text.length < 501) || !(0 < title < 51)
      * @throws InvalidPropertiesFormatException if text.startsWith("{")
      */
-    public Post(String author, String title, String text, Post rewinnedPost) throws NullPointerException, LimitExceededException, InvalidPropertiesFormatException {
+    public Post(String author, String title, String text) throws NullPointerException, LimitExceededException, InvalidPropertiesFormatException {
+        this(0, System.currentTimeMillis(), author, title, text);
+    }
+
+
+
+    /**
+     * @effects crea un nuovo Post come il costruttore Post(author, title, text) ma con id 'id' e
+     *          momento di creazione 'time' gia' assegnati (usato nel replay del journal). Se 'id'
+     *          e' uguale a 0 viene generato un nuovo id univoco.
+     * @param id id del post.
+     *           [(id == 0) || (id > 10000)]
+     * @param time momento di creazione del post (in ms).
+     * @throws NullPointerException if author == null || text == null
+     * @throws LimitExceededException if !(0 < text.length < 501) || !(0 < title < 51)
+     * @throws InvalidPropertiesFormatException if text.startsWith("{")
+     */
+    protected Post(long id, long time, String author, String title, String text) throws NullPointerException, LimitExceededException, InvalidPropertiesFormatException {
 
         // controllo parametri
         if(author == null || text == null || title == null)
             throw new NullPointerException();
         if(author.length() == 0 || title.length() == 0 || title.length() > 50 || text.length() == 0 || text.length() > 500)
             throw new LimitExceededException();
-        if (title.startsWith("{") && rewinnedPost == null)
+        if (title.startsWith("{"))
             throw new InvalidPropertiesFormatException("text parameter can't starts with \"{\"");
 
         // inizializzazione dei campi privati
         this.author = author;
-        this.title = title;
-        this.text = text;
-        this.rewinnedPost = rewinnedPost;
-        lastIter = false;
+        this.body = new PostBody(title, text);
+        this.bodyDirty = true;
+        this.rewinnedId = 0;
+        this.rewinnedAuthor = null;
         likes = dislikes = 0;
-        comments = new LinkedList<>();
-        voteUsers = new HashMap<>();
 
-        // generazione dell'id univoco del post
-        id = String.valueOf(counter.incrementAndGet());
+        // generazione dell'id univoco del post (o aggiornamento del contatore se gia' assegnato)
+        this.id = id == 0 ? counter.incrementAndGet() : id;
+        counter.accumulateAndGet(this.id, Math::max);
 
         // salvataggio di ora e data di creazione
-        timestamp = new Timestamp(System.currentTimeMillis());
+        timestamp = new Timestamp(time);
+    }
+
+
+
+    /**
+     * @effects crea un nuovo Post che rappresenta il rewin del post 'original' da parte dell'utente
+     *          'author'. Il rewin e' un record leggero che memorizza solo il riferimento (autore e id)
+     *          al post originale: titolo e testo non vengono copiati ma risolti dal post originale
+     *          al momento della visualizzazione. Nel caso in cui 'original' sia a sua volta un rewin
+     *          il riferimento punta direttamente al post originale della catena.
+     * @param author utente che effettua il rewin.
+     *               [(author != null) && (author.length > 0)]
+     * @param original post di cui si effettua il rewin.
+     *                 [original != null]
+     * @throws NullPointerException if author == null || original == null
+     * @throws LimitExceededException if author.length == 0
+     */
+    public Post(String author, Post original) throws NullPointerException, LimitExceededException {
+        this(0, System.currentTimeMillis(), author, original);
+    }
+
+
+
+    /**
+     * @effects crea il rewin del post 'original' come il costruttore Post(author, original) ma con
+     *          id 'id' e momento di creazione 'time' gia' assegnati (usato nel replay del journal).
+     *          Se 'id' e' uguale a 0 viene generato un nuovo id univoco.
+     * @param id id del post.
+     *           [(id == 0) || (id > 10000)]
+     * @param time momento di creazione del post (in ms).
+     * @throws NullPointerException if author == null || original == null
+     * @throws LimitExceededException if author.length == 0
+     */
+    protected Post(long id, long time, String author, Post original) throws NullPointerException, LimitExceededException {
+
+        // controllo parametri
+        if (author == null || original == null)
+            throw new NullPointerException();
+        if (author.length() == 0)
+            throw new LimitExceededException();
+
+        // inizializzazione dei campi privati
+        this.author = author;
+        this.body = new PostBody(null, null);
+        this.bodyDirty = true;
+        this.rewinnedId = original.isRewin() ? original.rewinnedId : original.id;
+        this.rewinnedAuthor = original.isRewin() ? original.rewinnedAuthor : original.author;
+        likes = dislikes = 0;
+
+        // generazione dell'id univoco del post (o aggiornamento del contatore se gia' assegnato)
+        this.id = id == 0 ? counter.incrementAndGet() : id;
+        counter.accumulateAndGet(this.id, Math::max);
+
+        // salvataggio di ora e data di creazione
+        timestamp = new Timestamp(time);
+    }
+
+
+
+    /**
+     * @effects costruttore privato usato per la copia dei metadati di un post gia' esistente
+     *          (mantiene id, autore, riferimenti al post originale, timestamp e iterazioni del post
+     *          'p'). La copia ha un body vuoto, sempre residente in memoria e non gestito da PostStore.
+     * @param p post da copiare.
+     *          [p != null]
+     */
+    private Post(Post p) {
+        this.id = p.id;
+        this.author = p.author;
+        this.body = new PostBody(null, null);
+        this.rewinnedId = p.rewinnedId;
+        this.rewinnedAuthor = p.rewinnedAuthor;
+        this.timestamp = p.timestamp;
+        this.iterations = p.iterations;
+        likes = dislikes = 0;
+    }
+
+
+
+    /**
+     * @effects costruttore privato usato per la lettura dei metadati di un post da uno snapshot in
+     *          formato binario (il body resta su disco e viene caricato al primo accesso).
+     */
+    private Post(long id, String author, long rewinnedId, String rewinnedAuthor, long time) {
+        this.id = id;
+        this.author = author;
+        this.rewinnedId = rewinnedId;
+        this.rewinnedAuthor = rewinnedAuthor;
+        this.timestamp = new Timestamp(time);
+    }
+
+
+
+    /**
+     * @effects scrive i metadati del post sull'output 'out' nel formato binario degli snapshot
+     *          (autori come indici nella tabella delle stringhe di 'strings'):
+     *          [id][autore][id originale][autore originale][time][bodyRef][bodyLength][likes][dislikes][iterazioni][contato nell'epoca del taglio]
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    synchronized void writeTo(DataOutput out, SnapshotFormat.Writer strings) throws IOException {
+        out.writeLong(id);
+        out.writeInt(strings.string(author));
+        out.writeLong(rewinnedId);
+        out.writeInt(strings.string(rewinnedAuthor));
+        out.writeLong(timestamp.getTime());
+        out.writeLong(bodyRef);
+        out.writeInt(bodyLength);
+        out.writeInt(likes);
+        out.writeInt(dislikes);
+        out.writeInt(getIterations());
+        out.writeBoolean(counted);
+    }
+
+
+
+    /**
+     * @effects legge dall'input 'in' i metadati di un post scritti da writeTo() e restituisce il post.
+     * @throws IOException se avviene un errore di lettura.
+     */
+    static Post readFrom(DataInput in, SnapshotFormat.Reader strings) throws IOException {
+        Post p = new Post(in.readLong(), strings.string(in.readInt()), in.readLong(), strings.string(in.readInt()), in.readLong());
+        p.bodyRef = in.readLong();
+        p.bodyLength = in.readInt();
+        p.likes = in.readInt();
+        p.dislikes = in.readInt();
+        p.setIterations(in.readInt(), in.readBoolean());
+        return p;
+    }
+
+
+
+
+    /*************************************
+     ***** CLASSE JSON ADAPTER *****
+     *************************************/
+    static class JsonAdapter extends TypeAdapter<Post> {
+        /**
+         * OVERVIEW: adapter Gson (senza reflection) che codifica i metadati di un post nel formato
+         *           JSON degli snapshot come oggetto piatto con chiavi brevi:
+         *           {"id","a":autore,"ri":id originale,"ra":autore originale,"t":time (ms),
+         *            "br":bodyRef,"bl":bodyLength,"l":likes,"d":dislikes,"n":iterazioni,"li":contato nell'epoca del taglio}
+         *           I campi con valore di default (rewin assente, contatori a 0, ...) non vengono scritti.
+         *           In lettura sono accettati anche i nomi dei campi scritti tramite reflection dalle
+         *           versioni precedenti (con il timestamp come data testuale).
+         */
+        // adapter del timestamp testuale delle versioni precedenti
+        private static final TypeAdapter<Timestamp> legacyTimestamp = new Gson().getAdapter(Timestamp.class);
+
+        public void write(JsonWriter out, Post p) throws IOException {
+            if (p == null) {
+                out.nullValue();
+                return;
+            }
+            synchronized (p) {
+                out.beginObject();
+                out.name("id").value(p.id);
+                out.name("a").value(p.author);
+                if (p.isRewin()) {
+                    out.name("ri").value(p.rewinnedId);
+                    out.name("ra").value(p.rewinnedAuthor);
+                }
+                out.name("t").value(p.timestamp.getTime());
+                if (p.bodyRef >= 0) {
+                    out.name("br").value(p.bodyRef);
+                    out.name("bl").value(p.bodyLength);
+                }
+                if (p.likes != 0)
+                    out.name("l").value(p.likes);
+                if (p.dislikes != 0)
+                    out.name("d").value(p.dislikes);
+                if (p.getIterations() != 0)
+                    out.name("n").value(p.getIterations());
+                if (p.counted)
+                    out.name("li").value(true);
+                out.endObject();
+            }
+        }
+
+        public Post read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            long id = 0, rewinnedId = 0, time = 0, bodyRef = -1;
+            String author = null, rewinnedAuthor = null;
+            int bodyLength = 0, likes = 0, dislikes = 0, iterations = 0;
+            boolean counted = false;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = in.nextLong(); break;
+                    case "a": case "author": author = in.nextString(); break;
+                    case "ri": case "rewinnedId": rewinnedId = in.nextLong(); break;
+                    case "ra": case "rewinnedAuthor": rewinnedAuthor = nextStringOrNull(in); break;
+                    case "t": time = in.nextLong(); break;
+                    case "timestamp": time = legacyTimestamp.read(in).getTime(); break;
+                    case "br": case "bodyRef": bodyRef = in.nextLong(); break;
+                    case "bl": case "bodyLength": bodyLength = in.nextInt(); break;
+                    case "l": case "likes": likes = in.nextInt(); break;
+                    case "d": case "dislikes": dislikes = in.nextInt(); break;
+                    case "n": case "n_iterations": iterations = in.nextInt(); break;
+                    case "li": case "lastIter": counted = in.nextBoolean(); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            Post p = new Post(id, author, rewinnedId, rewinnedAuthor, time);
+            p.bodyRef = bodyRef;
+            p.bodyLength = bodyLength;
+            p.likes = likes;
+            p.dislikes = dislikes;
+            p.setIterations(iterations, counted);
+            return p;
+        }
+
+        /**
+         * @effects legge una stringa oppure un valore null.
+         */
+        private static String nextStringOrNull(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return in.nextString();
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce il body del post caricandolo da disco se necessario e segnala a
+     *          PostStore l'accesso al post. Deve essere invocato col lock del post.
+     */
+    private PostBody body() {
+        if (body == null)
+            body = PostStore.load(bodyRef, bodyLength);
+        if (managed)
+            PostStore.touch(this, body);
+        return body;
+    }
+
+
+
+    /**
+     * @effects restituisce il body del post caricandolo da disco se necessario e lo segna come
+     *          modificato. Deve essere invocato col lock del post.
+     */
+    private PostBody bodyForUpdate() {
+        PostBody b = body();
+        bodyDirty = true;
+        return b;
+    }
+
+
+
+    /**
+     * @effects segna il post come gestito da PostStore (il body potra' quindi essere scaricato su
+     *          disco) e, se il body e' in memoria, lo inserisce nella cache dei post residenti.
+     */
+    synchronized void manage() {
+        managed = true;
+        if (body != null)
+            PostStore.touch(this, body);
+    }
+
+
+
+    /**
+     * @effects segna il post come non piu' gestito da PostStore (es: post eliminato).
+     */
+    synchronized void unmanage() {
+        managed = false;
+    }
+
+
+
+    /**
+     * @effects restituisce la posizione del body nei segmenti su disco (-1 se mai scritto).
+     */
+    synchronized long getBodyRef() {
+        return bodyRef;
+    }
+
+
+
+    /**
+     * @effects restituisce la lunghezza in byte del body nei segmenti su disco.
+     */
+    synchronized int getBodyLength() {
+        return bodyLength;
+    }
+
+
+
+    /**
+     * @effects se il body e' in memoria ed e' stato modificato lo scrive su disco.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    synchronized void flushBody() throws IOException {
+        if (managed && body != null && (bodyDirty || bodyRef < 0)) {
+            PostStore.write(this, body);
+            bodyDirty = false;
+        }
     }
 
 
 
     /**
-     * @effects aggiunge il commento 'comment' all'insieme dei commenti del post.
+     * @effects aggiorna la posizione e la lunghezza del body nei segmenti su disco (invocato da
+     *          PostStore col lock del post) e segna come sporco lo shard dell'autore (che memorizza
+     *          la posizione del body).
+     */
+    synchronized void setBodyLocation(long ref, int length) {
+        bodyRef = ref;
+        bodyLength = length;
+        SnapshotStore.markDirty(author);
+    }
+
+
+
+    /**
+     * @effects scarica il body del post su disco (scrivendolo se modificato) e restituisce true,
+     *          oppure restituisce false se nel frattempo il post e' stato nuovamente usato.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    synchronized boolean evictBody() throws IOException {
+        if (!managed || body == null)
+            return true;
+        if (PostStore.isResident(this))
+            return false;
+        flushBody();
+        body = null;
+        return true;
+    }
+
+
+
+    /**
+     * @effects sposta il body del post nel segmento corrente (usato per la compattazione dei segmenti).
+     * @throws IOException se avviene un errore di lettura o scrittura.
+     */
+    synchronized void relocateBody() throws IOException {
+        if (!managed || bodyRef < 0)
+            return;
+
+        // caso di body in memoria: viene riscritto alla prossima scrittura
+        if (body != null) {
+            bodyDirty = true;
+            flushBody();
+            return;
+        }
+
+        // caso di body su disco: copia dei byte senza decodifica
+        PostStore.copy(this);
+    }
+
+
+
+    /**
+     * @effects aggiunge il commento 'comment' dell'utente con id 'authorId' al log dei commenti del
+     *          post. Il testo del commento viene scritto su disco e in memoria resta solo il suo handle.
+     * @param authorId id (denso) dell'utente che ha scritto il commento.
+     *                 [authorId > 0]
+     * @param time momento in cui e' stato scritto il commento (in ms).
      * @param comment stringa contenente il commento fatto da un utente sul post.
      *                [(comment != null) && (0 < comment.lenght < 501)]
      * @throws NullPointerException if comment == null
      * @throws LimitExceededException if (comment.lenght == 0) || (comment.lenght > 500)
+     * @throws IOException se avviene un errore nella scrittura del testo su disco.
      */
-    public void addComment(String comment) throws NullPointerException, LimitExceededException {
+    public void addComment(int authorId, long time, String comment) throws NullPointerException, LimitExceededException, IOException {
 
         // controllo parametro
         if(comment == null)
@@ -100,19 +499,31 @@ public class Post {
         if(comment.length() == 0 || comment.length() > 500)
             throw new LimitExceededException();
 
-        // aggiunta del commento
-        comments.addLast(comment);
+        // scrittura del testo su disco e aggiunta del commento al log
+        long handle = CommentStore.append(comment);
+        addCommentRef(authorId, time, handle);
     }
 
 
+
     /**
-     * @effects incrementa di 1 i likes se l'utente passato come parametro non ha gia' votato il post.
-     * @param user stringa che indica l'utente che ha messo like al post.
-     *             [(user != null) && (user's first vote)]
+     * @effects aggiunge al log dei commenti il commento gia' memorizzato su disco con handle
+     *          'handle' (senza scriverne il testo).
      */
-    public boolean putLike(String user) {
-        if (user != null && !voteUsers.containsKey(user)) {
-            voteUsers.put(user,1);
+    protected synchronized void addCommentRef(int authorId, long timestamp, long handle) {
+        bodyForUpdate().comments.add(authorId, timestamp, handle);
+    }
+
+
+    /**
+     * @effects incrementa di 1 i likes se l'utente passato come parametro non ha gia' votato il post
+     *          e restituisce true, altrimenti false.
+     * @param userId id (denso) dell'utente che ha messo like al post.
+     *               [(userId > 0) && (user's first vote)]
+     */
+    public synchronized boolean putLike(int userId) {
+        if (userId > 0 && !hasVoted(userId)) {
+            bodyForUpdate().likers.add(userId);
             likes++;
             return true;
         }
@@ -123,12 +534,12 @@ public class Post {
     /**
      * @effects incrementa di 1 i dislikes se l'utente passato come parametro non ha gia' votato il post
      *          e retituisce true, altrimenti false.
-     * @param user stringa che indica l'utente che ha messo dislike al post.
-     *             [(user != null) && (user's first vote)]
+     * @param userId id (denso) dell'utente che ha messo dislike al post.
+     *               [(userId > 0) && (user's first vote)]
      */
-    public boolean putDislike(String user) {
-        if (user != null && !voteUsers.containsKey(user)) {
-            voteUsers.put(user,-1);
+    public synchronized boolean putDislike(int userId) {
+        if (userId > 0 && !hasVoted(userId)) {
+            bodyForUpdate().dislikers.add(userId);
             dislikes++;
             return true;
         }
@@ -136,6 +547,16 @@ public class Post {
     }
 
 
+    /**
+     * @effects restituisce true se l'utente con id 'userId' ha gia' votato il post (in O(log n)),
+     *          false altrimenti.
+     */
+    public synchronized boolean hasVoted(int userId) {
+        PostBody b = body();
+        return b.likers.contains(userId) || b.dislikers.contains(userId);
+    }
+
+
 
     /**
      * @effects restituisce il numero di likes.
@@ -165,10 +586,10 @@ public class Post {
 
 
     /**
-     * @effects restituisce il titolo del post.
+     * @effects restituisce il titolo del post (null se il post e' un rewin).
      */
-    public String getTitle() {
-        return title;
+    public synchronized String getTitle() {
+        return body().title;
     }
 
 
@@ -177,35 +598,83 @@ public class Post {
      * @effects restituisce la stringa contenente l'id del post.
      */
     public String getId() {
+        return String.valueOf(id);
+    }
+
+
+
+    /**
+     * @effects restituisce il valore numerico dell'id del post.
+     */
+    public long getLongId() {
         return id;
     }
 
 
 
     /**
-     * @effects restituisce la stringa contenente il testo del post.
+     * @effects restituisce la stringa contenente il testo del post (null se il post e' un rewin).
+     */
+    public synchronized String getText() {
+        return body().text;
+    }
+
+
+
+    /**
+     * @effects restituisce true se il post e' un rewin di un altro post, false altrimenti.
+     */
+    public boolean isRewin() {
+        return rewinnedAuthor != null;
+    }
+
+
+
+    /**
+     * @effects restituisce l'id del post originale di cui si e' eventualmente fatto il rewin
+     *          (0 se il post non e' un rewin).
+     */
+    public long getRewinnedId() {
+        return rewinnedId;
+    }
+
+
+
+    /**
+     * @effects restituisce l'autore del post originale di cui si e' eventualmente fatto il rewin
+     *          (null se il post non e' un rewin).
      */
-    public String getText() {
-        return text;
+    public String getRewinnedAuthor() {
+        return rewinnedAuthor;
     }
 
 
 
     /**
-     * @effects restituisce il post di cui si e' eventualmente fatto il rewin.
+     * @effects restituisce il numero di commenti presenti nel post.
      */
-    public Post getRewinned() {
-        return rewinnedPost;
+    public synchronized int getCommentsCount() {
+        return body().comments.size();
     }
 
 
 
     /**
-     * @effects restituisce l'insieme di stringhe che rappresentano i commenti fatti dagli
-     *          utenti nel post.
+     * @effects restituisce al piu' 'limit' commenti del post a partire dalla posizione 'from'
+     *          (il testo dei commenti viene letto da disco solo su richiesta).
      */
-    public LinkedList<String> getComments() {
-        return comments!=null ? new LinkedList<>(comments) : new LinkedList<>();
+    public synchronized List<CommentLog.Comment> getComments(int from, int limit) {
+        return body().comments.page(from, limit);
+    }
+
+
+
+    /**
+     * @effects esegue l'azione 'action' sull'id dell'autore di ogni commento del post senza
+     *          copiare il log dei commenti.
+     */
+    protected synchronized void forEachCommentAuthor(IntConsumer action) {
+        body().comments.forEachAuthor(action);
     }
 
 
@@ -219,6 +688,15 @@ public class Post {
 
 
 
+    /**
+     * @effects restituisce il momento di creazione del post (in ms).
+     */
+    public long getTime() {
+        return timestamp.getTime();
+    }
+
+
+
     /**
      * @effects restituisce il valore dato dalla differenza tra i likes e i dislikes.
      */
@@ -230,42 +708,128 @@ public class Post {
 
     /**
      * @effects incrementa il valore delle iterazioni che rappresentano metaforicamente
-     *          l'eta' del post. Si assume che la classe che utilizza la classe post incrementi
-     *          periodicamente il valore delle iterazioni.
+     *          l'eta' del post, se il post non e' gia' stato contato nell'epoca corrente delle
+     *          ricompense (vedi nextEpoch()). Numero di iterazioni ed epoca vengono aggiornati
+     *          insieme con un'unica compare-and-set (ripetuta solo in caso di aggiornamenti
+     *          concorrenti dello stesso post).
      */
     protected void incrementIterationsCounter() {
-        if (!lastIter) {
-            n_iterations++;
-            lastIter = true;
+        int e = epoch.get();
+        while (true) {
+            long current = iterations;
+            long next = countIteration(current, e);
+            if (next == current || ITERATIONS.compareAndSet(this, current, next))
+                return;
         }
     }
 
 
 
+    /**
+     * @effects restituisce il valore del campo iterazioni 'packed' (numero di iterazioni nei 32 bit
+     *          bassi, epoca dell'ultima iterazione contata in quelli alti) dopo un'interazione
+     *          nell'epoca 'e': il numero di iterazioni aumenta di 1 solo alla prima interazione
+     *          dell'epoca, altrimenti 'packed' viene restituito invariato. Usato anche da
+     *          RewardReplayTool per calcolare l'eta' dei post come nel server.
+     */
+    static long countIteration(long packed, int e) {
+        if ((int) (packed >>> 32) - e >= 0)
+            return packed;
+        return ((long) e << 32) | ((int) packed + 1) & 0xFFFFFFFFL;
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di iterazioni contenuto nel valore 'packed' (vedi
+     *          countIteration()).
+     */
+    static int iterationsOf(long packed) {
+        return (int) packed;
+    }
+
+
+
     /**
      * @effects restituisce il numero di iterazioni. Si assume che la classe che utilizza
      *          la classe post incrementi periodicamente il valore delle iterazioni.
      */
     protected int getIterations() {
-        return n_iterations;
+        return iterationsOf(iterations);
     }
 
 
 
     /**
-     * @effects restituisce una copia dell'oggetto usato per chiamare il metodo.
+     * @effects setta il numero di iterazioni del post letto da uno snapshot a 'n' e lo segna come
+     *          contato nell'epoca del taglio se 'counted' e' true (vedi restoreCounted()).
      */
-    protected Post getCopy() {
-        Post p = null;
-        try {
-            p = new Post(author, title, text, rewinnedPost);
-            p.id = id;
-            p.n_iterations = n_iterations;
-            p.lastIter = lastIter;
-        } catch (LimitExceededException | InvalidPropertiesFormatException e) {
-            e.printStackTrace();
-        }
-        return p;
+    private void setIterations(int n, boolean counted) {
+        iterations = n & 0xFFFFFFFFL;
+        this.counted = counted;
+    }
+
+
+
+    /**
+     * @effects segna il post letto da uno snapshot come contato nell'epoca corrente se era stato
+     *          contato nell'epoca del taglio e 'current' e' true (cioe' l'epoca del taglio e' ancora
+     *          quella corrente).
+     */
+    protected void restoreCounted(boolean current) {
+        if (counted && current)
+            iterations = ((long) epoch.get() << 32) | getIterations() & 0xFFFFFFFFL;
+        counted = false;
+    }
+
+
+
+    /**
+     * @effects porta l'epoca corrente delle ricompense ad almeno 'e' (usato al caricamento di uno
+     *          snapshot, in modo che le epoche restino crescenti tra un avvio e il successivo).
+     */
+    protected static void restoreEpoch(int e) {
+        epoch.accumulateAndGet(e, Math::max);
+    }
+
+
+
+    /**
+     * @effects inizia una nuova epoca delle ricompense (nuova iterazione) in O(1): ogni post
+     *          verra' contato di nuovo alla prima interazione successiva, senza visitare i post.
+     *          Restituisce la nuova epoca.
+     */
+    protected static int nextEpoch() {
+        return epoch.incrementAndGet();
+    }
+
+
+
+    /**
+     * @effects restituisce l'epoca corrente delle ricompense.
+     */
+    protected static int currentEpoch() {
+        return epoch.get();
+    }
+
+
+
+    /**
+     * @effects restituisce la copia dei metadati del post (compresi contatori e posizione del body
+     *          su disco) da memorizzare in uno snapshot tagliato nell'epoca delle ricompense
+     *          'cutEpoch', scrivendo prima su disco il body se modificato.
+     * @throws IOException se avviene un errore nella scrittura del body.
+     */
+    synchronized Post snapshot(int cutEpoch) throws IOException {
+        flushBody();
+        Post copy = new Post(this);
+        copy.counted = (int) (copy.iterations >>> 32) == cutEpoch;
+        copy.body = null;
+        copy.bodyRef = bodyRef;
+        copy.bodyLength = bodyLength;
+        copy.likes = likes;
+        copy.dislikes = dislikes;
+        return copy;
     }
 
 
@@ -275,7 +839,7 @@ public class Post {
      * @param id valore con cui sara' settato l'id del prossimo post.
      *           [id > 9999]
      */
-    protected static void setNextId(int id) {
+    protected static void setNextId(long id) {
         if (id > 10000)
             counter.set(id-1);
     }
@@ -283,10 +847,11 @@ public class Post {
 
 
     /**
-     * @effects restituisce la map delle persone che hanno messo like o dislike al post.
+     * @effects esegue l'azione 'action' sull'id di ogni utente che ha messo like al post, senza
+     *          copiare l'insieme dei votanti.
      */
-    protected HashMap<String,Integer> getVoters() {
-        return new HashMap<>(voteUsers);
+    protected synchronized void forEachLiker(IntConsumer action) {
+        body().likers.forEach(action);
     }
 
 
@@ -0,0 +1,120 @@
+package WinsomeServer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class PostBody {
+    /**
+     * OVERVIEW: classe mutable che contiene la parte "pesante" di un post (titolo, testo, votanti e
+     *           log dei commenti). A differenza dei metadati del post (id, autore, contatori, ...),
+     *           che restano sempre in memoria, il body puo' essere scaricato su disco quando il post
+     *           non viene usato da tempo e ricaricato al primo accesso (vedi PostStore).
+     *           La classe non e' thread-safe: gli accessi avvengono sempre col lock del post.
+     */
+
+    // versione del formato binario del body
+    private static final byte FORMAT_VERSION = 1;
+
+    // titolo del post (null nel caso di rewin)
+    final String title;
+    // testo del post (null nel caso di rewin)
+    final String text;
+    // id degli utenti che hanno messo like al post
+    final IntSortedSet likers;
+    // id degli utenti che hanno messo dislike al post
+    final IntSortedSet dislikers;
+    // log dei commenti del post
+    final CommentLog comments;
+
+
+
+    /**
+     * @effects crea un body con titolo 'title', testo 'text', senza voti e senza commenti.
+     */
+    PostBody(String title, String text) {
+        this(title, text, new IntSortedSet(), new IntSortedSet(), new CommentLog());
+    }
+
+
+
+    /**
+     * @effects crea un body coi valori passati come parametro.
+     */
+    private PostBody(String title, String text, IntSortedSet likers, IntSortedSet dislikers, CommentLog comments) {
+        this.title = title;
+        this.text = text;
+        this.likers = likers;
+        this.dislikers = dislikers;
+        this.comments = comments;
+    }
+
+
+
+    /**
+     * @effects restituisce una stima (in byte) della memoria occupata dal body.
+     */
+    int estimateSize() {
+        int size = 64;
+        if (title != null) size += 40 + title.length();
+        if (text != null) size += 40 + text.length();
+        size += 32 + likers.size()*4 + 32 + dislikers.size()*4;
+        size += 32 + comments.size()*20;
+        return size;
+    }
+
+
+
+    /**
+     * @effects scrive il body sull'output 'out' nel formato binario:
+     *          [version][title?][text?][#likers, likers][#dislikers, dislikers][#comments, (author, ts, handle)*]
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeBoolean(title != null);
+        if (title != null) out.writeUTF(title);
+        out.writeBoolean(text != null);
+        if (text != null) out.writeUTF(text);
+
+        out.writeInt(likers.size());
+        for (int i = 0; i < likers.size(); i++)
+            out.writeInt(likers.get(i));
+        out.writeInt(dislikers.size());
+        for (int i = 0; i < dislikers.size(); i++)
+            out.writeInt(dislikers.get(i));
+
+        out.writeInt(comments.size());
+        for (int i = 0; i < comments.size(); i++) {
+            out.writeInt(comments.authorAt(i));
+            out.writeLong(comments.timestampAt(i));
+            out.writeLong(comments.handleAt(i));
+        }
+    }
+
+
+
+    /**
+     * @effects legge dall'input 'in' un body scritto con writeTo() e lo restituisce.
+     * @throws IOException se avviene un errore di lettura o il formato non e' valido.
+     */
+    static PostBody readFrom(DataInput in) throws IOException {
+        if (in.readByte() != FORMAT_VERSION)
+            throw new IOException("unknown post body format");
+        String title = in.readBoolean() ? in.readUTF() : null;
+        String text = in.readBoolean() ? in.readUTF() : null;
+
+        IntSortedSet likers = new IntSortedSet();
+        for (int i = in.readInt(); i > 0; i--)
+            likers.add(in.readInt());
+        IntSortedSet dislikers = new IntSortedSet();
+        for (int i = in.readInt(); i > 0; i--)
+            dislikers.add(in.readInt());
+
+        CommentLog comments = new CommentLog();
+        for (int i = in.readInt(); i > 0; i--)
+            comments.add(in.readInt(), in.readLong(), in.readLong());
+
+        return new PostBody(title, text, likers, dislikers, comments);
+    }
+}
@@ -0,0 +1,513 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public class PostStore {
+    /**
+     * OVERVIEW: classe statica che gestisce la memorizzazione a due livelli del body dei post
+     *           (titolo, testo, votanti e commenti):
+     *              - livello "caldo": i body dei post usati di recente restano in memoria, in una cache
+     *                LRU limitata da un budget in byte (configurabile con POST_CACHE_MB);
+     *              - livello "freddo": quando il budget viene superato, un thread in background scrive
+     *                i body dei post meno usati in file segmento append-only e li rimuove dalla memoria.
+     *                Al successivo accesso (showPost, rate, rewin, ...) il body viene ricaricato.
+     *           Ogni record di un segmento ha formato [lunghezza (int)][crc32 (int)][body] e viene
+     *           identificato da un riferimento (numero del segmento << 32 | offset nel segmento).
+     *           I segmenti vengono mappati in memoria (in sola lettura) al primo accesso: il
+     *           caricamento di un body decodifica il record direttamente dalla mappatura, senza
+     *           copiarlo nello heap, e le pagine dei body mai richiesti restano solo su disco (o nella
+     *           page cache del sistema).
+     *           Il lock di un post puo' essere acquisito prima di quelli interni della classe, mai dopo.
+     */
+
+    /** directory contenente i segmenti **/
+    private static final String segmentsDirName = "WinsomeServer/Database/postSegments";
+
+    /** dimensione massima di un segmento prima di passare al successivo **/
+    private static final long SEGMENT_MAX_SIZE = 64L * 1024 * 1024;
+
+    /** dimensione dell'header di un record: lunghezza + crc **/
+    private static final int HEADER_SIZE = 8;
+
+    /** resident(post) = dimensione stimata del body (in ordine di accesso, dal meno recente) **/
+    private static final LinkedHashMap<Post,Integer> resident = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /** memoria stimata occupata dai body residenti e budget massimo (in byte) **/
+    private static long residentBytes = 0;
+    private static long budget = 64L * 1024 * 1024;
+
+    /** indica se il thread di eviction sta liberando memoria **/
+    private static boolean evicting = false;
+
+    /** lock e strutture dati dei segmenti **/
+    private static final Object segmentsLock = new Object();
+    private static final Map<Integer,FileChannel> channels = new HashMap<>();
+    private static final Map<Integer,Long> segmentSizes = new HashMap<>();
+    private static final Map<Integer,Long> liveBytes = new HashMap<>();
+    private static final Set<Integer> pendingDeletion = new HashSet<>();
+    private static final Map<Integer,MappedByteBuffer> mappings = new HashMap<>();
+    private static int currentSegment = -1;
+
+    /** metriche **/
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+    private static final AtomicLong faultInNanos = new AtomicLong(0);
+    private static final AtomicLong maxFaultInNanos = new AtomicLong(0);
+    private static final AtomicLong evictions = new AtomicLong(0);
+    private static final AtomicLong bytesWritten = new AtomicLong(0);
+    private static final AtomicLong mappedBytes = new AtomicLong(0);
+
+
+    /** avvio del thread di eviction **/
+    static {
+        Thread evictor = new Thread(PostStore::evictLoop, "PostStore-Evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+
+
+    /**
+     * @effects setta il budget di memoria (in byte) per i body dei post residenti.
+     * @param bytes budget in byte.
+     *              [bytes > 0]
+     */
+    public static void setBudget(long bytes) {
+        if (bytes <= 0)
+            return;
+        synchronized (resident) {
+            budget = bytes;
+            resident.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * @effects inizia la gestione del post 'p': il suo body potra' essere scaricato su disco.
+     *          Da invocare quando il post viene creato o caricato dalla memoria.
+     * @param p post da gestire.
+     *          [p != null]
+     */
+    public static void register(Post p) {
+        p.manage();
+
+        // aggiornamento dei byte "vivi" del segmento che contiene il body
+        long ref = p.getBodyRef();
+        if (ref >= 0)
+            synchronized (segmentsLock) {
+                liveBytes.merge(segmentOf(ref), (long) p.getBodyLength(), Long::sum);
+            }
+    }
+
+
+
+    /**
+     * @effects termina la gestione del post 'p' (post eliminato): il body viene rimosso dalla cache
+     *          e lo spazio occupato su disco diventa recuperabile.
+     * @param p post eliminato.
+     *          [p != null]
+     */
+    public static void unregister(Post p) {
+        p.unmanage();
+        synchronized (resident) {
+            Integer size = resident.remove(p);
+            if (size != null)
+                residentBytes -= size;
+        }
+        long ref = p.getBodyRef();
+        if (ref >= 0)
+            synchronized (segmentsLock) {
+                liveBytes.merge(segmentOf(ref), (long) -p.getBodyLength(), Long::sum);
+            }
+    }
+
+
+
+    /**
+     * @effects segnala l'accesso al post 'p' (col body 'body' in memoria) aggiornandone la posizione
+     *          nella cache LRU. Invocato col lock del post.
+     */
+    static void touch(Post p, PostBody body) {
+        int size = body.estimateSize();
+        synchronized (resident) {
+            Integer old = resident.put(p, size);
+            if (old != null)
+                hits.incrementAndGet();
+            residentBytes += size - (old != null ? old : 0);
+
+            // caso di budget superato: risveglio del thread di eviction
+            if (residentBytes > budget)
+                resident.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce true se il body del post 'p' e' nella cache dei post residenti.
+     */
+    static boolean isResident(Post p) {
+        synchronized (resident) {
+            return resident.containsKey(p);
+        }
+    }
+
+
+
+    /**
+     * @effects carica da disco il body memorizzato in posizione 'ref' con lunghezza 'length'.
+     *          Se il body non e' leggibile restituisce un body vuoto (segnalando l'errore).
+     */
+    static PostBody load(long ref, int length) {
+        if (ref < 0)
+            return new PostBody(null, null);
+
+        long start = System.nanoTime();
+        try {
+            ByteBuffer record = read(ref, length);
+            PostBody body = PostBody.readFrom(new DataInputStream(
+                    SnapshotFormat.input(record.position(HEADER_SIZE))));
+
+            // aggiornamento metriche
+            long elapsed = System.nanoTime() - start;
+            misses.incrementAndGet();
+            faultInNanos.addAndGet(elapsed);
+            maxFaultInNanos.accumulateAndGet(elapsed, Math::max);
+            return body;
+
+        } catch (IOException e) {
+            System.err.println("PostStore Error: unable to load post body at " + ref);
+            e.printStackTrace();
+            return new PostBody(null, null);
+        }
+    }
+
+
+
+    /**
+     * @effects scrive il body 'body' del post 'p' in coda al segmento corrente e ne aggiorna la
+     *          posizione nel post. Invocato col lock del post.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    static void write(Post p, PostBody body) throws IOException {
+
+        // codifica del body
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0);
+        body.writeTo(out);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+
+        // header: lunghezza e crc del body
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length-HEADER_SIZE);
+        ByteBuffer.wrap(record).putInt(record.length-HEADER_SIZE).putInt((int) crc.getValue());
+
+        append(p, record);
+    }
+
+
+
+    /**
+     * @effects copia il record del body del post 'p' (senza decodificarlo) in coda al segmento
+     *          corrente e ne aggiorna la posizione nel post. Invocato col lock del post.
+     * @throws IOException se avviene un errore di lettura o scrittura.
+     */
+    static void copy(Post p) throws IOException {
+        ByteBuffer record = read(p.getBodyRef(), p.getBodyLength());
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        append(p, bytes);
+    }
+
+
+
+    /**
+     * @effects aggiunge il record 'record' in coda al segmento corrente (passando ad un nuovo
+     *          segmento se necessario) e aggiorna posizione del body del post 'p' e byte "vivi".
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    private static void append(Post p, byte[] record) throws IOException {
+        synchronized (segmentsLock) {
+            openSegments();
+
+            // caso di segmento corrente pieno (reso persistente prima di passare al successivo)
+            if (segmentSizes.get(currentSegment) + record.length > SEGMENT_MAX_SIZE) {
+                channels.get(currentSegment).force(false);
+                openSegment(currentSegment+1);
+            }
+
+            // scrittura del record
+            FileChannel channel = channels.get(currentSegment);
+            long offset = segmentSizes.get(currentSegment);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining())
+                channel.write(buffer, offset + buffer.position());
+            segmentSizes.put(currentSegment, offset + record.length);
+            bytesWritten.addAndGet(record.length);
+
+            // aggiornamento dei byte "vivi" (il record precedente diventa recuperabile)
+            long oldRef = p.getBodyRef();
+            if (oldRef >= 0)
+                liveBytes.merge(segmentOf(oldRef), (long) -p.getBodyLength(), Long::sum);
+            liveBytes.merge(currentSegment, (long) record.length, Long::sum);
+
+            p.setBodyLocation(((long) currentSegment << 32) | offset, record.length);
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce il record (header compreso) in posizione 'ref' di lunghezza 'length' come
+     *          vista sulla mappatura del suo segmento (creata al primo accesso e, per il segmento
+     *          corrente, estesa quando il record si trova oltre la parte gia' mappata).
+     * @throws IOException se avviene un errore di lettura o il record e' corrotto.
+     */
+    private static ByteBuffer read(long ref, int length) throws IOException {
+        int segment = segmentOf(ref);
+        long offset = ref & 0xFFFFFFFFL;
+        ByteBuffer record;
+        synchronized (segmentsLock) {
+            openSegments();
+            FileChannel channel = channels.get(segment);
+            if (channel == null)
+                throw new IOException("missing segment " + segment);
+            if (offset + length > segmentSizes.get(segment))
+                throw new EOFException();
+
+            // mappatura del segmento (i record gia' scritti non vengono mai modificati)
+            MappedByteBuffer mapping = mappings.get(segment);
+            if (mapping == null || offset + length > mapping.capacity()) {
+                long size = segmentSizes.get(segment);
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mappedBytes.addAndGet(size - (mappings.containsKey(segment) ? mappings.get(segment).capacity() : 0));
+                mappings.put(segment, mapping);
+            }
+            record = mapping.slice((int) offset, length);
+        }
+
+        // controllo di lunghezza e crc
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate().position(HEADER_SIZE));
+        if (record.getInt(0) != length-HEADER_SIZE || record.getInt(4) != (int) crc.getValue())
+            throw new IOException("corrupted post body at " + ref);
+        return record;
+    }
+
+
+
+    /**
+     * @effects restituisce il numero del segmento che contiene il riferimento 'ref'.
+     */
+    static int segmentOf(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+
+
+    /**
+     * @effects apre (la prima volta) i segmenti presenti su disco e sceglie il segmento corrente.
+     *          Invocato col lock dei segmenti.
+     * @throws IOException se avviene un errore nell'apertura dei file.
+     */
+    private static void openSegments() throws IOException {
+        if (currentSegment >= 0)
+            return;
+
+        Path dir = Paths.get(segmentsDirName);
+        Files.createDirectories(dir);
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+            for (Path file : files) {
+                int n = Integer.parseInt(file.getFileName().toString().substring("segment-".length()));
+                channels.put(n, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                segmentSizes.put(n, Files.size(file));
+                last = Math.max(last, n);
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        openSegment(last);
+    }
+
+
+
+    /**
+     * @effects rende corrente il segmento numero 'n' (creandolo se non esiste).
+     *          Invocato col lock dei segmenti.
+     * @throws IOException se avviene un errore nell'apertura del file.
+     */
+    private static void openSegment(int n) throws IOException {
+        if (!channels.containsKey(n)) {
+            channels.put(n, FileChannel.open(Paths.get(segmentsDirName, "segment-" + n),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segmentSizes.put(n, 0L);
+        }
+        currentSegment = n;
+    }
+
+
+
+    /**
+     * @effects scrive su disco i body modificati di tutti i post residenti e forza la scrittura
+     *          del segmento corrente (da invocare prima di memorizzare i metadati dei post).
+     */
+    public static void flush() {
+        List<Post> posts;
+        synchronized (resident) {
+            posts = new ArrayList<>(resident.keySet());
+        }
+        for (Post p : posts)
+            try {
+                p.flushBody();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+
+    /**
+     * @effects forza la scrittura su disco del segmento corrente (i segmenti precedenti sono gia'
+     *          stati resi persistenti al passaggio al segmento successivo).
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    public static void sync() throws IOException {
+        synchronized (segmentsLock) {
+            openSegments();
+            channels.get(currentSegment).force(false);
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce l'insieme dei segmenti (diversi da quello corrente) in cui meno della
+     *          meta' dei byte appartiene a body ancora in uso: i loro body vanno spostati (vedi
+     *          Post.relocateBody) in modo da poter eliminare il segmento.
+     */
+    public static Set<Integer> segmentsToCompact() {
+        Set<Integer> segments = new HashSet<>();
+        synchronized (segmentsLock) {
+            for (Map.Entry<Integer,Long> segment : segmentSizes.entrySet()) {
+                long live = liveBytes.getOrDefault(segment.getKey(), 0L);
+                if (segment.getKey() != currentSegment && live > 0 && live < segment.getValue()/2)
+                    segments.add(segment.getKey());
+            }
+        }
+        return segments;
+    }
+
+
+
+    /**
+     * @effects elimina i segmenti che non contengono body in uso da almeno due memorizzazioni
+     *          consecutive (da invocare dopo aver memorizzato i metadati dei post).
+     */
+    public static void releaseSegments() {
+        synchronized (segmentsLock) {
+            Set<Integer> empty = new HashSet<>();
+            for (Integer segment : segmentSizes.keySet())
+                if (segment != currentSegment && liveBytes.getOrDefault(segment, 0L) <= 0)
+                    empty.add(segment);
+
+            // eliminazione dei segmenti gia' vuoti alla memorizzazione precedente
+            for (Integer segment : empty)
+                if (pendingDeletion.contains(segment))
+                    try {
+                        channels.remove(segment).close();
+                        MappedByteBuffer mapping = mappings.remove(segment);
+                        if (mapping != null)
+                            mappedBytes.addAndGet(-mapping.capacity());
+                        segmentSizes.remove(segment);
+                        liveBytes.remove(segment);
+                        Files.deleteIfExists(Paths.get(segmentsDirName, "segment-" + segment));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+            pendingDeletion.clear();
+            pendingDeletion.addAll(empty);
+            pendingDeletion.removeIf(segment -> !segmentSizes.containsKey(segment));
+        }
+    }
+
+
+
+    /**
+     * @effects ciclo del thread di eviction: quando la memoria occupata dai body supera il budget
+     *          scarica su disco i body dei post usati meno di recente finche' non si torna sotto il
+     *          90% del budget.
+     */
+    private static void evictLoop() {
+        while (true) {
+            Post victim;
+            synchronized (resident) {
+                try {
+                    while (resident.isEmpty() || residentBytes <= (evicting ? budget/10*9 : budget)) {
+                        evicting = false;
+                        resident.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                evicting = true;
+
+                // rimozione del post usato meno di recente
+                Iterator<Map.Entry<Post,Integer>> eldest = resident.entrySet().iterator();
+                Map.Entry<Post,Integer> entry = eldest.next();
+                victim = entry.getKey();
+                residentBytes -= entry.getValue();
+                eldest.remove();
+            }
+
+            // scrittura su disco e rimozione del body (fuori dal lock della cache)
+            try {
+                if (victim.evictBody())
+                    evictions.incrementAndGet();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce una stringa con le metriche del PostStore: memoria occupata, hit/miss
+     *          della cache, latenza di caricamento da disco, eviction, byte scritti e byte mappati.
+     */
+    public static String getStats() {
+        long residentCount, used;
+        synchronized (resident) {
+            residentCount = resident.size();
+            used = residentBytes;
+        }
+        long h = hits.get(), m = misses.get();
+        return String.format(Locale.ROOT,
+                "PostStore | resident=%d posts (%.1f/%.1f MB) hits=%d misses=%d hitRate=%.1f%% " +
+                "avgFaultIn=%.1fus maxFaultIn=%.1fus evictions=%d written=%.1f MB mapped=%.1f MB",
+                residentCount, used/1048576.0, budget/1048576.0, h, m, (h+m) > 0 ? 100.0*h/(h+m) : 100.0,
+                m > 0 ? faultInNanos.get()/1000.0/m : 0.0, maxFaultInNanos.get()/1000.0,
+                evictions.get(), bytesWritten.get()/1048576.0, mappedBytes.get()/1048576.0);
+    }
+}
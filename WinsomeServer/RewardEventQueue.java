@@ -0,0 +1,369 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class RewardEventQueue {
+    /**
+     * OVERVIEW: coda circolare (ring buffer) a piu' produttori e un solo consumatore degli eventi
+     *           usati per il calcolo delle ricompense (voti, commenti e cancellazioni di post).
+     *           I thread dei client pubblicano gli eventi senza lock: uno slot viene riservato con
+     *           una CAS sul contatore di coda e reso visibile al consumatore scrivendo il numero di
+     *           sequenza dell'evento in published[slot]. Ogni evento e' memorizzato in array di
+     *           primitivi (nessun oggetto allocato per evento).
+     *           Il consumatore (un thread daemon avviato con start()) legge gli eventi in ordine e li
+     *           passa al proprio EventHandler.
+     *           Quando la coda e' piena il comportamento dipende dalla politica (vedi Policy):
+     *              - BLOCK: il produttore attende che si liberi uno slot;
+     *              - DROP: l'evento viene scartato (e contato);
+     *              - SPILL: l'evento viene scritto in un file su disco che il consumatore legge
+     *                quando la coda si svuota. Finche' il file non e' stato letto anche gli eventi
+     *                successivi vengono scritti su disco, in modo da non alterarne l'ordine.
+     *           Gli eventi non sono persistenti: al riavvio del server l'eventuale file viene ignorato.
+     */
+
+    /********************************************
+     ***** POLITICA DI GESTIONE CODA PIENA *****
+     ********************************************/
+    public enum Policy { BLOCK, DROP, SPILL }
+
+
+
+    /***************************************
+     ***** INTERFACCIA DEL CONSUMATORE *****
+     ***************************************/
+    interface EventHandler {
+        /**
+         * OVERVIEW: interfaccia che riceve (nel thread consumatore, in ordine di pubblicazione) gli
+         *           eventi della coda.
+         */
+        void accept(long postId, int userId, int authorId, int iterations, byte kind);
+    }
+
+
+
+    /** tipi di evento **/
+    public static final byte LIKE = 1;
+    public static final byte DISLIKE = 2;
+    public static final byte COMMENT = 3;
+    public static final byte DELETE = 4;
+
+    /** dimensione in byte di un evento nel file di overflow: [postId][userId][authorId][iterations][kind] **/
+    private static final int SPILL_RECORD_SIZE = 8 + 4 + 4 + 4 + 1;
+
+    /** numero massimo di eventi letti dal consumatore prima di aggiornare la testa della coda **/
+    private static final int BATCH = 1024;
+
+    /** attesa massima (in ns) del consumatore inattivo e attesa di un produttore bloccato **/
+    private static final long MAX_IDLE_NANOS = 1000000;
+    private static final long BLOCKED_NANOS = 10000;
+
+    /** valori di default di capacita' e politica (settati dal file di configurazione) **/
+    private static volatile int defaultCapacity = 1 << 16;
+    private static volatile Policy defaultPolicy = Policy.BLOCK;
+
+    // eventi: slot i = (numero di sequenza & mask)
+    private final int mask;
+    private final long[] postIds;
+    private final int[] userIds;
+    private final int[] authorIds;
+    private final int[] iterations;
+    private final byte[] kinds;
+    // published[i] = numero di sequenza + 1 dell'ultimo evento scritto nello slot i
+    private final AtomicLongArray published;
+    // numero di sequenza del prossimo evento da pubblicare
+    private final AtomicLong tail = new AtomicLong();
+    // numero di sequenza del prossimo evento da consumare (scritto solo dal consumatore)
+    private final AtomicLong head = new AtomicLong();
+    // politica di gestione della coda piena
+    private volatile Policy policy;
+
+    // file di overflow (politica SPILL) e file in lettura da parte del consumatore
+    private final Path spillPath;
+    private final Path drainPath;
+    // lock del file di overflow
+    private final Object spillLock = new Object();
+    // stream del file di overflow (null se non ci sono eventi su disco)
+    private DataOutputStream spill = null;
+    // true se ci sono eventi su disco non ancora letti dal consumatore
+    private volatile boolean spilling = false;
+
+    // metriche
+    private final LongAdder publishedCount = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong unspilled = new AtomicLong();
+    private volatile long highWater = 0;
+
+
+
+    /**
+     * @effects setta capacita' e politica delle code create successivamente.
+     * @param capacity numero massimo di eventi in coda (arrotondato alla potenza di 2 successiva).
+     *                 [capacity > 0]
+     * @param policy politica di gestione della coda piena.
+     *               [policy != null]
+     */
+    public static void setDefaults(int capacity, Policy policy) {
+        if (capacity <= 0 || policy == null)
+            throw new IllegalArgumentException();
+        defaultCapacity = capacity;
+        defaultPolicy = policy;
+    }
+
+
+
+    /**
+     * @effects crea una coda con la capacita' e la politica di default che usa come file di
+     *          overflow 'spillFile' (eliminando l'eventuale file di una esecuzione precedente).
+     */
+    public RewardEventQueue(String spillFile) {
+        int capacity = Integer.highestOneBit(Math.max(2, defaultCapacity - 1)) << 1;
+        mask = capacity - 1;
+        postIds = new long[capacity];
+        userIds = new int[capacity];
+        authorIds = new int[capacity];
+        iterations = new int[capacity];
+        kinds = new byte[capacity];
+        published = new AtomicLongArray(capacity);
+        policy = defaultPolicy;
+        spillPath = Paths.get(spillFile);
+        drainPath = Paths.get(spillFile + ".drain");
+        try {
+            Files.deleteIfExists(spillPath);
+            Files.deleteIfExists(drainPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+
+    /**
+     * @effects setta la politica di gestione della coda piena.
+     */
+    public void setPolicy(Policy p) {
+        if (p == null)
+            throw new NullPointerException();
+        policy = p;
+    }
+
+
+
+    /**
+     * @effects pubblica l'evento 'kind' dell'utente 'userId' sul post 'postId' (scritto dall'utente
+     *          'authorId' e con 'iterations' iterazioni). Non acquisisce lock se la coda non e' piena.
+     *          Restituisce false se l'evento e' stato scartato (coda piena con politica DROP o
+     *          errore di scrittura su disco con politica SPILL), true altrimenti.
+     */
+    public boolean publish(long postId, int userId, int authorId, int iterations, byte kind) {
+
+        // eventi su disco non ancora letti: anche questo evento va su disco per mantenere l'ordine
+        if (spilling)
+            return spill(postId, userId, authorId, iterations, kind);
+
+        // prenotazione di uno slot
+        long seq;
+        boolean waited = false;
+        while (true) {
+            seq = tail.get();
+            if (seq - head.get() > mask) {
+                // caso di coda piena
+                Policy p = policy;
+                if (p == Policy.DROP) {
+                    dropped.increment();
+                    return false;
+                }
+                if (p == Policy.SPILL)
+                    return spill(postId, userId, authorId, iterations, kind);
+                if (!waited) {
+                    blocked.increment();
+                    waited = true;
+                }
+                LockSupport.parkNanos(BLOCKED_NANOS);
+                continue;
+            }
+            if (tail.compareAndSet(seq, seq + 1))
+                break;
+        }
+
+        // scrittura dell'evento e pubblicazione dello slot
+        int i = (int) seq & mask;
+        postIds[i] = postId;
+        userIds[i] = userId;
+        authorIds[i] = authorId;
+        this.iterations[i] = iterations;
+        kinds[i] = kind;
+        published.lazySet(i, seq + 1);
+        publishedCount.increment();
+        return true;
+    }
+
+
+
+    /**
+     * @effects scrive l'evento nel file di overflow (creandolo se necessario). Restituisce false
+     *          se la scrittura non e' riuscita (l'evento viene contato come scartato).
+     */
+    private boolean spill(long postId, int userId, int authorId, int iterations, byte kind) {
+        synchronized (spillLock) {
+            try {
+                if (spill == null) {
+                    spill = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillPath)));
+                    spilling = true;
+                }
+                spill.writeLong(postId);
+                spill.writeInt(userId);
+                spill.writeInt(authorId);
+                spill.writeInt(iterations);
+                spill.writeByte(kind);
+                spilled.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                dropped.increment();
+                return false;
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects passa ad 'handler' al piu' 'max' eventi pubblicati e non ancora consumati (in ordine)
+     *          e restituisce il numero di eventi consumati.
+     *          [invocato solo dal thread consumatore]
+     */
+    private int poll(EventHandler handler, int max) {
+        long h = head.get();
+        long occupancy = tail.get() - h;
+        if (occupancy > highWater)
+            highWater = occupancy;
+        int n = 0;
+        while (n < max) {
+            int i = (int) h & mask;
+            if (published.get(i) != h + 1)
+                break;
+            handler.accept(postIds[i], userIds[i], authorIds[i], iterations[i], kinds[i]);
+            h++;
+            n++;
+        }
+        if (n > 0)
+            head.set(h);
+        return n;
+    }
+
+
+
+    /**
+     * @effects se la coda e' vuota e ci sono eventi su disco li passa (in ordine) ad 'handler' e
+     *          restituisce il numero di eventi letti, altrimenti restituisce 0. Gli eventi
+     *          pubblicati dopo la chiusura del file vengono scritti in coda (o in un nuovo file).
+     *          [invocato solo dal thread consumatore]
+     */
+    private int drainSpill(EventHandler handler) {
+
+        // chiusura del file di overflow (solo a coda vuota: gli eventi su disco sono successivi)
+        synchronized (spillLock) {
+            if (spill == null || head.get() != tail.get())
+                return 0;
+            try {
+                spill.close();
+                Files.move(spillPath, drainPath, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return 0;
+            } finally {
+                spill = null;
+                spilling = false;
+            }
+        }
+
+        // lettura degli eventi dal file
+        int n = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(drainPath)))) {
+            long records = Files.size(drainPath) / SPILL_RECORD_SIZE;
+            for (; n < records; n++) {
+                long postId = in.readLong();
+                int userId = in.readInt();
+                int authorId = in.readInt();
+                int iterations = in.readInt();
+                byte kind = in.readByte();
+                handler.accept(postId, userId, authorId, iterations, kind);
+            }
+            Files.delete(drainPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        unspilled.addAndGet(n);
+        return n;
+    }
+
+
+
+    /**
+     * @effects avvia il thread daemon consumatore che passa gli eventi ad 'handler'.
+     */
+    public void start(EventHandler handler) {
+        Thread consumer = new Thread(() -> {
+            long idle = 0;
+            while (true) {
+                int n = poll(handler, BATCH);
+                if (n == 0)
+                    n = drainSpill(handler);
+                if (n > 0) {
+                    idle = 0;
+                    continue;
+                }
+                // attesa crescente (fino a MAX_IDLE_NANOS) se non ci sono eventi
+                idle = Math.min(MAX_IDLE_NANOS, Math.max(1000, idle * 2));
+                LockSupport.parkNanos(idle);
+            }
+        }, "RewardEventConsumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+
+
+    /**
+     * @effects attende (al piu' 'timeoutMs' ms) che il consumatore abbia letto tutti gli eventi
+     *          pubblicati prima dell'invocazione (compresi quelli su disco). Restituisce true se
+     *          gli eventi sono stati letti, false se il tempo e' scaduto.
+     */
+    public boolean flush(long timeoutMs) {
+        long target = tail.get();
+        long spillTarget = spilled.get();
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while (head.get() < target || unspilled.get() < spillTarget) {
+            if (System.nanoTime() > deadline)
+                return false;
+            LockSupport.parkNanos(BLOCKED_NANOS);
+        }
+        return true;
+    }
+
+
+
+    /**
+     * @effects restituisce le metriche della coda: eventi pubblicati, consumati, in coda, scartati,
+     *          scritti e letti su disco, pubblicazioni che hanno atteso (politica BLOCK) e massima
+     *          occupazione osservata.
+     */
+    public String getStats() {
+        long h = head.get();
+        return String.format(Locale.ROOT, "events: policy=%s capacity=%d published=%d consumed=%d queued=%d " +
+                        "dropped=%d spilled=%d unspilled=%d blocked=%d highWater=%d",
+                policy, mask + 1, publishedCount.sum(), h, tail.get() - h, dropped.sum(), spilled.get(),
+                unspilled.get(), blocked.sum(), highWater);
+    }
+}
@@ -0,0 +1,671 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+public class RewardReplayTool {
+    /**
+     * OVERVIEW: programma (eseguito separatamente dal server) che riesegue il calcolo delle
+     *           ricompense su un flusso di eventi (creazione di post, voti, commenti e cancellazioni)
+     *           registrato o generato, alla massima velocita' e con tempo simulato, per scegliere
+     *           REWARD_PERC e REWARD_TIME e per misurare le prestazioni del calcolo.
+     *           Gli eventi vengono applicati con gli stessi metodi del server (applyEvent() di
+     *           PeriodicRewardsTask, eventualmente tramite una RewardEventQueue) e ogni volta che il
+     *           momento di un evento supera la fine del periodo (o del batch) viene eseguito
+     *           rewardCycle() (o rewardBatch()). L'eta' dei post (iterazioni) viene calcolata con lo
+     *           stesso metodo del server (Post.countIteration()): +1 alla prima interazione con il
+     *           post in ogni epoca, e l'epoca avanza dopo ogni periodo con almeno un post.
+     *           Gli eventi vengono letti o generati in streaming: la memoria usata dipende dal numero
+     *           di post e di utenti (e dagli eventi di un periodo), non dal numero totale di eventi.
+     *           Uso: java WinsomeServer.RewardReplayTool <sorgente> [opzioni]
+     *           Sorgenti:
+     *              - journal <directory>: record dei file del journal del server (letti senza
+     *                modificarli). I voti non hanno un momento e usano quello dell'ultimo record che
+     *                ne ha uno; gli utenti registrati prima dell'ultimo checkpoint (non presenti nel
+     *                journal) vengono riportati con il loro id;
+     *              - events <file>: eventi salvati con l'opzione -record;
+     *              - generate <utenti> <post> <eventi> [eventi al secondo] [seed]: eventi sintetici
+     *                (post creati nella prima meta' del flusso, al piu' un voto per utente e post,
+     *                interazioni concentrate sui post piu' recenti, utenti riportati con il loro id).
+     *           Opzioni:
+     *              -perc <n>      percentuale della ricompensa che spetta all'autore (default 70);
+     *              -period <ms>   durata simulata di un periodo (default 200000);
+     *              -batch <ms>    modalita' STREAMING con un batch ogni <ms> ms simulati;
+     *              -threads <n>   thread del pool di calcolo (default il numero di core);
+     *              -queue         eventi pubblicati tramite la coda degli eventi del server;
+     *              -top <n>       numero di utenti con accredito maggiore riportati (default 10);
+     *              -payouts <f>   accrediti di tutti gli utenti nel file CSV <f>;
+     *              -record <f>    salva il flusso letto o generato nel file <f> (sorgente events);
+     *              -v             una riga per ogni periodo.
+     */
+
+    /** tipo di evento di creazione di un post (gli altri tipi sono quelli di RewardEventQueue) **/
+    private static final byte POST = 0;
+
+    /** valore identificativo del formato del file degli eventi **/
+    private static final int EVENTS_MAGIC = 0x57524556;
+
+    /** primo id assegnato agli autori non presenti nel journal (registrati prima del checkpoint) **/
+    private static final int UNKNOWN_ID_BASE = 1 << 30;
+
+    /** intervalli dell'istogramma delle durate dei periodi (HISTOGRAM_STEPS per ogni potenza di 2) **/
+    private static final int HISTOGRAM_STEPS = 8;
+    private static final int HISTOGRAM_BUCKETS = 64 * HISTOGRAM_STEPS;
+
+    // oggetto che esegue i calcoli e pool di thread del calcolo parallelo
+    private final PeriodicRewardsTask task;
+    private final ForkJoinPool pool;
+    // coda degli eventi (null se gli eventi vengono applicati direttamente)
+    private final RewardEventQueue queue;
+    // durata simulata (in ms) di un periodo e di un batch (0 = modalita' PERIODIC)
+    private final long period;
+    private final long batch;
+    // file in cui salvare il flusso (null se non richiesto)
+    private final DataOutputStream recorder;
+    // true se viene stampata una riga per periodo
+    private final boolean verbose;
+
+    // post del flusso (autore, iterazioni ed epoca dell'ultima iterazione come in Post)
+    private final PostTable posts = new PostTable();
+    // accrediti (in micro-wincoin) e numero di accrediti (periodi o batch) per utente
+    private final IntDoubleMap payouts = new IntDoubleMap();
+    // nomi degli utenti (solo per la sorgente journal)
+    private final Map<Integer,String> names = new HashMap<>();
+    private final Map<String,Integer> ids = new HashMap<>();
+    private int nextUnknownId = UNKNOWN_ID_BASE;
+
+    // epoca corrente, fine del periodo e del batch correnti (simulati) e momento dell'ultimo evento
+    private int epoch = 1;
+    private long periodEnd = Long.MIN_VALUE;
+    private long batchEnd = Long.MIN_VALUE;
+    private long firstTime = 0;
+    private long now = 0;
+
+    // metriche: eventi per tipo, periodi, durate dei periodi con post (istogramma, somma e massimo
+    // in ns), batch, accrediti e heap
+    private final long[] kinds = new long[5];
+    private long periods = 0;
+    private final long[] cycleHistogram = new long[HISTOGRAM_BUCKETS];
+    private long cycles = 0;
+    private long cycleSum = 0;
+    private long cycleMax = 0;
+    private long batches = 0;
+    private long batchNanos = 0;
+    private long credits = 0;
+    private long maxHeap = 0;
+
+
+
+    /**************************************
+     ***** CLASSE PRIVATA POST TABLE *****
+     **************************************/
+    private static class PostTable {
+        /**
+         * OVERVIEW: classe privata che contiene i post del flusso in una tabella con indirizzamento
+         *           aperto (come IntDoubleMap): per ogni id del post l'autore (0 se il post e' stato
+         *           cancellato) e il numero di iterazioni con l'epoca dell'ultima iterazione, nello
+         *           stesso formato del campo iterazioni di Post (vedi Post.countIteration()).
+         */
+        long[] keys = new long[1024];
+        int[] authors = new int[1024];
+        long[] iterations = new long[1024];
+        int size = 0;
+
+        /**
+         * @effects restituisce la posizione del post 'postId' oppure la posizione libera in cui
+         *          inserirlo.
+         */
+        int slot(long postId) {
+            int mask = keys.length - 1;
+            long h = postId * 0x9E3779B97F4A7C15L;
+            int i = (int) (h ^ (h >>> 32)) & mask;
+            while (keys[i] != 0 && keys[i] != postId)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        /**
+         * @effects restituisce la posizione del post 'postId' inserendolo (con autore 'authorId' e
+         *          nessuna iterazione) se assente.
+         */
+        int get(long postId, int authorId) {
+            int i = slot(postId);
+            if (keys[i] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    i = slot(postId);
+                }
+                keys[i] = postId;
+                authors[i] = authorId;
+                size++;
+            }
+            return i;
+        }
+
+        void grow() {
+            long[] oldKeys = keys;
+            long[] oldIterations = iterations;
+            int[] oldAuthors = authors;
+            keys = new long[oldKeys.length * 2];
+            authors = new int[keys.length];
+            iterations = new long[keys.length];
+            for (int j = 0; j < oldKeys.length; j++)
+                if (oldKeys[j] != 0) {
+                    int i = slot(oldKeys[j]);
+                    keys[i] = oldKeys[j];
+                    authors[i] = oldAuthors[j];
+                    iterations[i] = oldIterations[j];
+                }
+        }
+    }
+
+
+
+    /**
+     * @effects crea lo strumento con percentuale dell'autore 'perc', periodo 'period' ms e batch
+     *          'batch' ms (0 = modalita' PERIODIC) simulati, 'threads' thread di calcolo, eventi
+     *          tramite la coda degli eventi se 'useQueue' = true, flusso salvato su 'recordFile' (se
+     *          diverso da null) e una riga per periodo se 'verbose' = true.
+     * @throws IOException se non e' possibile creare i file della coda o del flusso.
+     */
+    private RewardReplayTool(int perc, long period, long batch, int threads, boolean useQueue, String recordFile,
+                             boolean verbose) throws IOException {
+        if (period <= 0 || batch < 0 || threads <= 0)
+            throw new IllegalArgumentException();
+        PeriodicRewardsTask.setMode(batch > 0 ? PeriodicRewardsTask.Mode.STREAMING : PeriodicRewardsTask.Mode.PERIODIC,
+                batch > 0 ? batch : 1000);
+        task = new PeriodicRewardsTask(perc);
+        pool = new ForkJoinPool(threads);
+        this.period = period;
+        this.batch = batch;
+        this.verbose = verbose;
+
+        if (useQueue) {
+            Path spill = Files.createTempFile("winsome-replay", ".spill");
+            spill.toFile().deleteOnExit();
+            queue = new RewardEventQueue(spill.toString());
+            queue.start(PeriodicRewardsTask::applyEvent);
+        } else
+            queue = null;
+
+        if (recordFile != null) {
+            recorder = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile), 1 << 16));
+            recorder.writeInt(EVENTS_MAGIC);
+        } else
+            recorder = null;
+    }
+
+
+
+    /**
+     * @effects applica l'evento 'kind' dell'utente 'userId' sul post 'postId' dell'utente 'authorId'
+     *          avvenuto al momento simulato 'time', dopo aver eseguito i periodi (e i batch) terminati
+     *          prima di 'time'.
+     * @throws IOException se avviene un errore di scrittura del flusso.
+     */
+    private void event(long time, byte kind, long postId, int userId, int authorId) throws IOException {
+        if (recorder != null) {
+            recorder.writeLong(time);
+            recorder.writeByte(kind);
+            recorder.writeLong(postId);
+            recorder.writeInt(userId);
+            recorder.writeInt(authorId);
+        }
+
+        // periodi e batch terminati (i periodi vuoti successivi vengono saltati senza calcoli)
+        if (periodEnd == Long.MIN_VALUE) {
+            firstTime = time;
+            periodEnd = time + period;
+            batchEnd = time + batch;
+        }
+        if (time >= periodEnd) {
+            endPeriod();
+            if (time >= periodEnd) {
+                long skipped = (time - periodEnd) / period + 1;
+                periodEnd += skipped * period;
+                periods += skipped;
+            }
+            batchEnd = periodEnd - period + batch;
+        }
+        while (batch > 0 && time >= batchEnd && batchEnd < periodEnd) {
+            endBatch();
+            batchEnd += batch;
+        }
+        now = Math.max(now, time);
+        kinds[kind]++;
+
+        if (postId <= 0)
+            return;
+        switch (kind) {
+            case POST: {
+                int i = posts.get(postId, authorId);
+                posts.authors[i] = authorId;
+                break;
+            }
+            case RewardEventQueue.DELETE: {
+                int i = posts.get(postId, authorId);
+                posts.authors[i] = 0;
+                dispatch(postId, userId, authorId, Post.iterationsOf(posts.iterations[i]), kind);
+                break;
+            }
+            default: {
+                // eta' del post: +1 alla prima interazione dell'epoca (vedi Post.incrementIterationsCounter())
+                int i = posts.get(postId, authorId);
+                if (posts.authors[i] == 0)
+                    return;
+                posts.iterations[i] = Post.countIteration(posts.iterations[i], epoch);
+                dispatch(postId, userId, posts.authors[i], Post.iterationsOf(posts.iterations[i]), kind);
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects passa l'evento alla coda degli eventi (se usata) o lo applica agli shard.
+     */
+    private void dispatch(long postId, int userId, int authorId, int iterations, byte kind) {
+        if (queue != null)
+            queue.publish(postId, userId, authorId, iterations, kind);
+        else
+            PeriodicRewardsTask.applyEvent(postId, userId, authorId, iterations, kind);
+    }
+
+
+
+    /**
+     * @effects attende che la coda degli eventi (se usata) sia stata svuotata.
+     */
+    private void drain() {
+        if (queue != null)
+            while (!queue.flush(1000))
+                System.err.println("RewardReplay Error: event queue not drained in 1000 ms");
+    }
+
+
+
+    /**
+     * @effects accumula negli accrediti per utente gli accrediti 'c' di un periodo o di un batch,
+     *          arrotondati in micro-wincoin come nei wallet del server, e restituisce il numero di
+     *          utenti accreditati.
+     */
+    private int credit(PeriodicRewardsTask.CycleCredits c) {
+        c.totals.forEach((userId, sum, count) -> {
+            long amount = Wallet.toMicros(sum);
+            if (amount > 0)
+                payouts.add(userId, amount);
+        });
+        return c.totals.size();
+    }
+
+
+
+    /**
+     * @effects esegue il periodo corrente (e inizia una nuova epoca se il periodo ha dei post).
+     */
+    private void endPeriod() {
+        drain();
+        long[] cycle = task.rewardCycle(pool, this::credit);
+        periods++;
+        periodEnd += period;
+        credits += cycle[1];
+        if (cycle[0] > 0) {
+            epoch++;
+            cycleHistogram[bucket(cycle[3])]++;
+            cycles++;
+            cycleSum += cycle[3];
+            cycleMax = Math.max(cycleMax, cycle[3]);
+        }
+        Runtime rt = Runtime.getRuntime();
+        maxHeap = Math.max(maxHeap, rt.totalMemory() - rt.freeMemory());
+        if (verbose)
+            System.out.println("RewardReplay | period " + periods + " (t=" + (periodEnd - period - firstTime) / 1000 + " s): " +
+                    PeriodicRewardsTask.cycleStats(cycle, pool.getParallelism()));
+    }
+
+
+
+    /**
+     * @effects esegue un batch della modalita' STREAMING.
+     */
+    private void endBatch() {
+        drain();
+        long[] b = task.rewardBatch(pool, this::credit);
+        batches++;
+        batchNanos += b[3];
+        credits += b[1];
+    }
+
+
+
+    /**
+     * @effects restituisce il nome dell'utente con id 'id' (l'id se il nome non e' noto).
+     */
+    private String nameOf(int id) {
+        String name = names.get(id);
+        return name != null ? name : (id >= UNKNOWN_ID_BASE ? "?" : "#") + id;
+    }
+
+
+
+    /**
+     * @effects restituisce l'id dell'utente 'username' (assegnandone uno se non presente nel journal).
+     */
+    private int idOf(String username) {
+        Integer id = ids.get(username);
+        if (id == null) {
+            id = nextUnknownId++;
+            ids.put(username, id);
+            names.put(id, username);
+        }
+        return id;
+    }
+
+
+
+    /**
+     * @effects legge il flusso dai file del journal della directory 'dir'.
+     * @throws IOException se avviene un errore di lettura.
+     */
+    private void readJournal(String dir) throws IOException {
+        Journal.read(dir, new Journal.Replayer() {
+            public void register(int id, String username, String password, List<String> tags) {
+                ids.put(username, id);
+                names.put(id, username);
+            }
+            public void createPost(long id, long time, String author, String title, String text) {
+                replay(time, POST, id, 0, idOf(author));
+            }
+            public void rewinPost(long id, long time, String author, String originalAuthor, long originalId) {
+                replay(time, POST, id, 0, idOf(author));
+            }
+            public void deletePost(String author, long id) {
+                replay(now, RewardEventQueue.DELETE, id, 0, idOf(author));
+            }
+            public void rate(int userId, String author, long id, boolean like) {
+                replay(now, like ? RewardEventQueue.LIKE : RewardEventQueue.DISLIKE, id, userId, idOf(author));
+            }
+            public void comment(int userId, String author, long id, long time, String text) {
+                replay(time, RewardEventQueue.COMMENT, id, userId, idOf(author));
+            }
+            public void follow(String follower, String followed) {}
+            public void unfollow(String follower, String followed) {}
+            public void transaction(String username, long time, double value, double valueBtc) {}
+            public void reward(String username, long time, double value, double valueBtc, String note) {}
+            public void newIteration() {}
+            public void rewardCycle(long cycle, long time, boolean last, String[] usernames, double[] values, String[] notes) {}
+
+            void replay(long time, byte kind, long postId, int userId, int authorId) {
+                try {
+                    event(time, kind, postId, userId, authorId);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+
+
+    /**
+     * @effects legge il flusso dal file 'file' scritto con l'opzione -record.
+     * @throws IOException se avviene un errore di lettura o il file non e' nel formato corretto.
+     */
+    private void readEvents(String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != EVENTS_MAGIC)
+                throw new IOException(file + " is not an events file");
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                event(time, in.readByte(), in.readLong(), in.readInt(), in.readInt());
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects genera un flusso di 'events' voti e commenti di 'users' utenti su 'posts' post
+     *          ('rate' eventi per secondo simulato, generatore casuale con seme 'seed').
+     * @throws IOException se avviene un errore di scrittura del flusso.
+     */
+    private void generate(int users, int posts, long events, int rate, long seed) throws IOException {
+        if (users < 2 || posts < 1 || rate < 1)
+            throw new IllegalArgumentException("bad generate parameters");
+        SplittableRandom random = new SplittableRandom(seed);
+
+        // i voti del post p sono dati dagli utenti 1 + (p + k * step) % users con k = 0, 1, ...: con
+        // 'step' primo con 'users' un utente vota al piu' una volta lo stesso post
+        int[] votes = new int[posts];
+        int step = (int) (users * 0.618) + 1;
+        while (gcd(step, users) != 1)
+            step++;
+
+        int created = 0;
+        for (long e = 0; e < events; e++) {
+            long time = e * 1000 / rate;
+
+            // creazione dei post (nella prima meta' del flusso)
+            int target = (int) Math.min(posts, 1 + e * 2 * posts / events);
+            for (; created < target; created++)
+                event(time, POST, 10001 + created, 0, authorOf(created, users));
+
+            // post dell'interazione (i piu' recenti sono i piu' probabili)
+            int p = created - 1 - (int) (created * Math.pow(random.nextDouble(), 3));
+            int author = authorOf(p, users);
+            int kind = random.nextInt(100);
+            int user;
+            if (kind < 75 && votes[p] < users) {
+                user = 1 + (int) ((p + (long) votes[p]++ * step) % users);
+                if (user == author && votes[p] < users)
+                    user = 1 + (int) ((p + (long) votes[p]++ * step) % users);
+                if (user != author) {
+                    event(time, kind < 60 ? RewardEventQueue.LIKE : RewardEventQueue.DISLIKE, 10001 + p, user, author);
+                    continue;
+                }
+            }
+            user = 1 + random.nextInt(users);
+            if (user == author)
+                user = user % users + 1;
+            event(time, RewardEventQueue.COMMENT, 10001 + p, user, author);
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce l'autore (tra 'users' utenti) del post sintetico 'p'.
+     */
+    private static int authorOf(int p, int users) {
+        return 1 + (int) (((p * 2654435761L) & Long.MAX_VALUE) % users);
+    }
+
+
+
+    /**
+     * @effects restituisce il massimo comun divisore di 'a' e 'b'.
+     */
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+
+
+    /**
+     * @effects esegue l'ultimo periodo (anche se incompleto) e stampa il riepilogo: eventi e
+     *          throughput, periodi e loro durate, accrediti totali e degli utenti con accredito
+     *          maggiore. Se 'payoutsFile' e' diverso da null vi scrive gli accrediti di tutti gli
+     *          utenti.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    private void finish(long startNanos, int top, String payoutsFile) throws IOException {
+        if (periodEnd != Long.MIN_VALUE)
+            endPeriod();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (recorder != null)
+            recorder.close();
+        pool.shutdown();
+
+        // eventi e throughput
+        long total = 0;
+        for (long k : kinds)
+            total += k;
+        System.out.println(String.format(Locale.ROOT, "RewardReplay | %d events (posts=%d likes=%d dislikes=%d comments=%d deletes=%d) in %.2f s: %.0f events/s",
+                total, kinds[POST], kinds[RewardEventQueue.LIKE], kinds[RewardEventQueue.DISLIKE],
+                kinds[RewardEventQueue.COMMENT], kinds[RewardEventQueue.DELETE], seconds, total / Math.max(seconds, 1e-9)));
+
+        // periodi e durate
+        System.out.println(String.format(Locale.ROOT, "RewardReplay | simulated %.1f h: %d periods (%d with posts), %d batches, %d credits",
+                (now - firstTime) / 3.6e6, periods, cycles, batches, credits));
+        if (cycles > 0)
+            System.out.println(String.format(Locale.ROOT, "RewardReplay | cycle ms: avg=%.2f p50=%.2f p99=%.2f max=%.2f total=%.0f" +
+                            (batches > 0 ? " | batch ms: avg=%.2f" : ""),
+                    cycleSum / 1e6 / cycles, percentile(50), percentile(99), cycleMax / 1e6, cycleSum / 1e6,
+                    batches > 0 ? batchNanos / 1e6 / batches : 0));
+        System.out.println(String.format(Locale.ROOT, "RewardReplay | heap: max used %.1f MB, %d posts, %d users credited",
+                maxHeap / 1048576.0, posts.size, payouts.size()));
+
+        // accrediti totali e utenti con accredito maggiore
+        long[] paid = {0};
+        PriorityQueue<long[]> best = new PriorityQueue<>(Comparator.comparingLong((long[] b) -> b[0]));
+        payouts.forEach((userId, micros, count) -> {
+            paid[0] += (long) micros;
+            best.add(new long[]{(long) micros, userId, count});
+            if (best.size() > top)
+                best.poll();
+        });
+        System.out.println("RewardReplay | total paid " + Wallet.format(paid[0]) + " wincoin, top " + best.size() + " users:");
+        List<long[]> ranking = new ArrayList<>(best);
+        ranking.sort((a, b) -> Long.compare(b[0], a[0]));
+        for (long[] u : ranking)
+            System.out.println(String.format(Locale.ROOT, "\t%-20s %16s (%d payouts)", nameOf((int) u[1]), Wallet.format(u[0]), u[2]));
+
+        // accrediti di tutti gli utenti
+        if (payoutsFile != null) {
+            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(payoutsFile)))) {
+                out.println("user,wincoin,payouts");
+                payouts.forEach((userId, micros, count) -> out.println(nameOf(userId) + "," + Wallet.format((long) micros) + "," + count));
+            }
+            System.out.println("RewardReplay | payouts written to " + payoutsFile);
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce l'intervallo dell'istogramma delle durate che contiene 'nanos': ogni
+     *          potenza di 2 di ns e' divisa in HISTOGRAM_STEPS intervalli uguali (errore relativo al
+     *          piu' 1/HISTOGRAM_STEPS e memoria costante per qualsiasi numero di periodi).
+     */
+    private static int bucket(long nanos) {
+        if (nanos < HISTOGRAM_STEPS)
+            return (int) Math.max(0, nanos);
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int step = (int) (nanos >>> (exp - 3)) & (HISTOGRAM_STEPS - 1);
+        return (exp - 2) * HISTOGRAM_STEPS + step;
+    }
+
+
+
+    /**
+     * @effects restituisce il limite superiore (in ns, escluso) dell'intervallo 'b' dell'istogramma.
+     */
+    private static long bucketLimit(int b) {
+        if (b < HISTOGRAM_STEPS)
+            return b + 1;
+        long base = 1L << (b / HISTOGRAM_STEPS + 2);
+        return base + (b % HISTOGRAM_STEPS + 1) * (base / HISTOGRAM_STEPS);
+    }
+
+
+
+    /**
+     * @effects restituisce il percentile 'p' (in ms) delle durate dei periodi con post, approssimato
+     *          per eccesso al limite dell'intervallo dell'istogramma che lo contiene (al piu' la
+     *          durata massima).
+     */
+    private double percentile(double p) {
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * cycles));
+        long seen = 0;
+        for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+            seen += cycleHistogram[b];
+            if (seen >= rank)
+                return Math.min(bucketLimit(b) - 1, cycleMax) / 1e6;
+        }
+        return cycleMax / 1e6;
+    }
+
+
+
+
+
+    /**
+     * @effects legge (o genera) il flusso indicato dagli argomenti, lo riesegue con le opzioni
+     *          indicate e stampa il riepilogo (vedi l'OVERVIEW).
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !Arrays.asList("journal", "events", "generate").contains(args[0])) {
+            System.err.println("Usage: \"java RewardReplayTool journal <dir> [options]\"" +
+                    " or \"java RewardReplayTool events <file> [options]\"" +
+                    " or \"java RewardReplayTool generate <users> <posts> <events> [events/s] [seed] [options]\"" +
+                    " with options -perc <n> -period <ms> -batch <ms> -threads <n> -queue -top <n> -payouts <file>" +
+                    " -record <file> -v");
+            System.exit(1);
+        }
+
+        // parametri della sorgente (fino alla prima opzione) e opzioni
+        List<String> source = new ArrayList<>();
+        int i = 1;
+        for (; i < args.length && !args[i].startsWith("-"); i++)
+            source.add(args[i]);
+        int perc = 70, threads = Runtime.getRuntime().availableProcessors(), top = 10;
+        long period = 200000, batch = 0;
+        boolean useQueue = false, verbose = false;
+        String payoutsFile = null, recordFile = null;
+        for (; i < args.length; i++) {
+            switch (args[i]) {
+                case "-perc": perc = Integer.parseInt(args[++i]); break;
+                case "-period": period = Long.parseLong(args[++i]); break;
+                case "-batch": batch = Long.parseLong(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-queue": useQueue = true; break;
+                case "-top": top = Integer.parseInt(args[++i]); break;
+                case "-payouts": payoutsFile = args[++i]; break;
+                case "-record": recordFile = args[++i]; break;
+                case "-v": verbose = true; break;
+                default:
+                    System.err.println("RewardReplay Error: unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        RewardReplayTool tool = new RewardReplayTool(perc, period, batch, threads, useQueue, recordFile, verbose);
+        System.out.println("RewardReplay | source=" + args[0] + " " + String.join(" ", source) + " perc=" + perc +
+                " period=" + period + " ms mode=" + (batch > 0 ? "STREAMING batch=" + batch + " ms" : "PERIODIC") +
+                " threads=" + threads + " queue=" + useQueue);
+        long start = System.nanoTime();
+        switch (args[0]) {
+            case "journal":
+                tool.readJournal(source.get(0));
+                break;
+            case "events":
+                tool.readEvents(source.get(0));
+                break;
+            case "generate":
+                tool.generate(Integer.parseInt(source.get(0)), Integer.parseInt(source.get(1)), Long.parseLong(source.get(2)),
+                        source.size() > 3 ? Integer.parseInt(source.get(3)) : 1000,
+                        source.size() > 4 ? Long.parseLong(source.get(4)) : 42);
+                break;
+        }
+        tool.finish(start, top, payoutsFile);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,468 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class RewardWorkerLink {
+    /**
+     * OVERVIEW: classe che collega il server al processo worker delle ricompense (vedi
+     *           RewardWorkerMain) tramite una connessione TCP locale. Il thread consumatore della
+     *           coda degli eventi inoltra gli eventi al worker (send(), in un buffer inviato insieme
+     *           alla richiesta successiva) e il thread delle ricompense richiede il calcolo di un
+     *           periodo o di un batch (cycle()) e applica gli accrediti restituiti.
+     *           Ogni richiesta e' numerata: il worker memorizza l'ultima risposta e la reinvia se
+     *           riceve di nuovo lo stesso numero (es: dopo la caduta della connessione o il riavvio
+     *           del server), mentre il server applica solo i periodi successivi all'ultimo applicato
+     *           (vedi WinsomeServer.addTransactionsOnWallets()), percio' ogni periodo viene
+     *           accreditato una sola volta. Alla connessione il worker comunica l'ultimo periodo
+     *           calcolato: se non e' ancora stato applicato viene richiesto di nuovo.
+     *           Anche gli eventi sono numerati (dall'avvio del server, che identifica la sessione):
+     *           ogni evento viene registrato prima dell'invio e resta disponibile finche' il periodo
+     *           che lo include non e' stato applicato (la risposta del worker indica l'ultimo evento
+     *           incluso). Gli eventi registrati vengono accumulati in memoria e scritti a blocchi in
+     *           file di segmento su disco, in modo da non occupare memoria; se la scrittura fallisce
+     *           restano in memoria e la scrittura viene ritentata al piu' ogni RETRY_MILLIS ms, percio'
+     *           un errore del disco costa memoria ma non eventi. Alla connessione il worker comunica l'ultimo evento
+     *           della sessione che ha ricevuto (o l'ultimo evento incluso in un periodo applicato, se
+     *           il worker e' stato riavviato) e gli eventi successivi vengono reinviati dai segmenti,
+     *           percio' gli eventi pubblicati mentre il worker non e' connesso (all'avvio, durante
+     *           l'attesa tra due tentativi di connessione o dopo un errore di comunicazione) non
+     *           vengono persi ne' applicati due volte. Come la coda degli eventi, i segmenti non
+     *           sopravvivono al riavvio del server (i file di una esecuzione precedente vengono eliminati).
+     */
+
+    /** attesa massima (in ms) della connessione (configurazione compresa) e della risposta del worker **/
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int REPLY_TIMEOUT = 60000;
+
+    /** intervallo minimo (in ms) tra due tentativi di connessione (o di scrittura dei segmenti) **/
+    private static final long RETRY_MILLIS = 1000;
+
+    /** dimensione (in byte) del buffer degli eventi da inviare e dei blocchi scritti nei segmenti **/
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** dimensione (in byte) di un evento: [EVENT][postId][userId][authorId][iterations][kind] **/
+    private static final int EVENT_SIZE = 1 + 8 + 4 + 4 + 4 + 1;
+
+    /** directory dei file dei segmenti e prefisso dei file (seguito dal numero del primo evento) **/
+    private static final String segmentDirName = "WinsomeServer/Database";
+    private static final String SEGMENT_PREFIX = "rewardWorker.events-";
+
+    // indirizzo del worker ("host:porta")
+    private final String address;
+    private final InetSocketAddress socketAddress;
+    // percentuale della ricompensa che spetta all'autore (comunicata al worker alla connessione)
+    private final int perc;
+    // identificativo della sessione (esecuzione del server) a cui si riferisce la numerazione degli eventi
+    private final long session = new Random().nextLong();
+    // connessione e stream (null se non connesso)
+    private Socket socket = null;
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+    // momento (in ms) dell'ultimo tentativo di connessione
+    private long lastAttempt = 0;
+    // numero di sequenza della prossima richiesta
+    private long nextSeq = 0;
+
+    // segmenti su disco (numero del primo evento -> file), segmento in scrittura (null se non
+    // ancora creato) con la relativa posizione ed eventi registrati non ancora scritti su disco
+    private final TreeMap<Long,Path> segments = new TreeMap<>();
+    private FileChannel segment = null;
+    private long segmentPosition = 0;
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream(BUFFER_SIZE);
+    // momento (in ms) dell'ultimo tentativo fallito di scrittura dei segmenti (0 se riuscito)
+    private long lastWriteFailure = 0;
+    // numero dell'ultimo evento registrato e dell'ultimo evento incluso in un periodo applicato
+    private long lastEvent = 0;
+    private long acked = 0;
+
+    // metriche: eventi inviati e reinviati, errori di scrittura dei segmenti, richieste, risposte
+    // reinviate, errori e connessioni
+    private long sent = 0;
+    private long replayed = 0;
+    private long writeFailures = 0;
+    private long requests = 0;
+    private long resent = 0;
+    private long failures = 0;
+    private long connections = 0;
+
+
+
+    /**
+     * @effects crea il collegamento (non ancora connesso) al worker con indirizzo 'address' nella
+     *          forma "host:porta", che calcola le ricompense con percentuale dell'autore 'perc'
+     *          (eliminando i segmenti degli eventi di una esecuzione precedente).
+     * @throws IllegalArgumentException se 'address' non e' valido.
+     */
+    public RewardWorkerLink(String address, int perc) {
+        this.address = address;
+        socketAddress = parseAddress(address);
+        this.perc = perc;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(segmentDirName), SEGMENT_PREFIX + "*")) {
+            for (Path file : stream)
+                Files.delete(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce l'indirizzo (non risolto) indicato da 'address' nella forma "host:porta".
+     * @throws IllegalArgumentException se 'address' non e' valido.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("bad worker address " + address);
+        int port = Integer.parseInt(address.substring(colon + 1).trim());
+        if (port < 1024 || port > 65535)
+            throw new IllegalArgumentException("bad worker port " + port);
+        return InetSocketAddress.createUnresolved(address.substring(0, colon).trim(), port);
+    }
+
+
+
+    /**
+     * @effects si connette al worker (se non connesso e se l'ultimo tentativo risale ad almeno
+     *          RETRY_MILLIS ms prima), gli comunica la configurazione del calcolo e gli reinvia gli
+     *          eventi registrati che non ha ricevuto. Il prossimo numero di sequenza e' l'ultimo
+     *          periodo calcolato dal worker se non ancora applicato, altrimenti il successivo
+     *          all'ultimo periodo applicato. Restituisce true se connesso.
+     */
+    private synchronized boolean connect() {
+        if (out != null)
+            return true;
+        long now = System.currentTimeMillis();
+        if (now - lastAttempt < RETRY_MILLIS)
+            return false;
+        lastAttempt = now;
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(socketAddress.getHostString(), socketAddress.getPort()), CONNECT_TIMEOUT);
+            s.setSoTimeout(CONNECT_TIMEOUT);
+            s.setTcpNoDelay(true);
+            DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE));
+            DataInputStream i = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+            // configurazione: [HELLO][perc][breakdown][streaming][sessione][ultimo evento applicato]
+            // -> [ultimo periodo calcolato][ultimo evento ricevuto]
+            o.writeByte(RewardWorkerMain.HELLO);
+            o.writeInt(perc);
+            o.writeBoolean(PeriodicRewardsTask.isBreakdown());
+            o.writeBoolean(PeriodicRewardsTask.isStreaming());
+            o.writeLong(session);
+            o.writeLong(acked);
+            o.flush();
+            long computed = i.readLong();
+            long received = i.readLong();
+            long applied = WinsomeServer.getRewardCycle();
+            nextSeq = computed > applied ? computed : applied + 1;
+
+            // reinvio degli eventi non ricevuti dal worker
+            long missing = Math.max(0, lastEvent - received);
+            replaySegments(received, o);
+            replayed += missing;
+            s.setSoTimeout(REPLY_TIMEOUT);
+
+            socket = s;
+            out = o;
+            in = i;
+            connections++;
+            System.out.println("RewardWorkerLink | connected to " + address + " (next cycle " + nextSeq +
+                    ", " + missing + " events resent)");
+            return true;
+        } catch (IOException e) {
+            failures++;
+            System.err.println("RewardWorkerLink Error: " + address + ": " + e.getMessage());
+            try {
+                s.close();
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+
+
+    /**
+     * @effects chiude la connessione al worker (se aperta).
+     */
+    private synchronized void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+
+
+    /**
+     * @effects scrive su 'o' gli eventi registrati successivi all'evento numero 'from', letti dai
+     *          segmenti su disco e dagli eventi non ancora scritti.
+     * @throws IOException se avviene un errore di lettura o di scrittura.
+     */
+    private void replaySegments(long from, DataOutputStream o) throws IOException {
+        if (from >= lastEvent)
+            return;
+        if (from < acked)
+            throw new IOException("worker needs event " + (from + 1) + " already discarded (first kept " + (acked + 1) + ")");
+
+        // eventi nei segmenti (che terminano con l'evento precedente al primo non scritto)
+        long firstUnwritten = lastEvent - unwritten.size() / EVENT_SIZE + 1;
+        if (from + 1 < firstUnwritten) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            Long first = segments.floorKey(from + 1);
+            for (Map.Entry<Long,Path> e : segments.tailMap(first, true).entrySet()) {
+                try (InputStream file = new BufferedInputStream(Files.newInputStream(e.getValue()), BUFFER_SIZE)) {
+                    file.skipNBytes(Math.max(0, from + 1 - e.getKey()) * EVENT_SIZE);
+                    for (int n; (n = file.read(buffer)) > 0; )
+                        o.write(buffer, 0, n);
+                }
+            }
+        }
+
+        // eventi non ancora scritti
+        int skip = (int) Math.max(0, from + 1 - firstUnwritten) * EVENT_SIZE;
+        byte[] memory = unwritten.toByteArray();
+        o.write(memory, skip, memory.length - skip);
+    }
+
+
+
+    /**
+     * @effects scrive nel segmento corrente (creandolo se necessario) gli eventi non ancora
+     *          scritti. Se la scrittura fallisce il segmento viene riportato alla posizione
+     *          precedente e gli eventi restano in memoria.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    private void writeSegment() throws IOException {
+        if (unwritten.size() == 0)
+            return;
+        if (segment == null) {
+            long first = lastEvent - unwritten.size() / EVENT_SIZE + 1;
+            Path file = Paths.get(segmentDirName, SEGMENT_PREFIX + first);
+            segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            segmentPosition = 0;
+            segments.put(first, file);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(unwritten.toByteArray());
+        long start = segmentPosition;
+        try {
+            while (buffer.hasRemaining())
+                segmentPosition += segment.write(buffer, segmentPosition);
+        } catch (IOException e) {
+            segmentPosition = start;
+            try {
+                segment.truncate(start);
+            } catch (IOException e2) {
+                // la parte scritta verra' sovrascritta dal prossimo tentativo
+            }
+            throw e;
+        }
+        unwritten.reset();
+    }
+
+
+
+    /**
+     * @effects scrive su disco gli eventi non ancora scritti se sono almeno BUFFER_SIZE byte (o se
+     *          'force' = true), al piu' ogni RETRY_MILLIS ms dopo una scrittura fallita. In caso di
+     *          errore gli eventi restano in memoria e la scrittura verra' ritentata.
+     */
+    private void flushEvents(boolean force) {
+        if (unwritten.size() < (force ? 1 : BUFFER_SIZE))
+            return;
+        long now = System.currentTimeMillis();
+        if (lastWriteFailure != 0 && now - lastWriteFailure < RETRY_MILLIS)
+            return;
+        try {
+            writeSegment();
+            if (lastWriteFailure != 0)
+                System.out.println("RewardWorkerLink | event segments written again after " + writeFailures + " failures");
+            lastWriteFailure = 0;
+        } catch (IOException e) {
+            if (lastWriteFailure == 0)
+                System.err.println("RewardWorkerLink Error: unable to write events on disk, kept in memory (" +
+                        e.getMessage() + ")");
+            writeFailures++;
+            lastWriteFailure = now;
+        }
+    }
+
+
+
+    /**
+     * @effects chiude il segmento corrente dopo avervi scritto gli eventi non ancora scritti (il
+     *          prossimo segmento iniziera' con l'evento successivo all'ultimo registrato) ed elimina
+     *          i segmenti che contengono solo eventi inclusi in periodi applicati. Se la scrittura
+     *          fallisce il segmento corrente resta aperto.
+     */
+    private void rotateSegment() {
+        flushEvents(true);
+        if (unwritten.size() > 0)
+            return;
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            segment = null;
+        }
+
+        // un segmento e' eliminabile se il successivo (o l'evento successivo all'ultimo registrato,
+        // per l'ultimo segmento) inizia entro il primo evento non applicato
+        while (!segments.isEmpty()) {
+            Map.Entry<Long,Path> oldest = segments.firstEntry();
+            Long next = segments.higherKey(oldest.getKey());
+            if ((next != null ? next : lastEvent + 1) > acked + 1)
+                break;
+            try {
+                Files.deleteIfExists(oldest.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            segments.remove(oldest.getKey());
+        }
+    }
+
+
+
+    /**
+     * @effects registra l'evento 'kind' dell'utente 'userId' sul post 'postId' (vedi
+     *          RewardEventQueue.EventHandler) tra gli eventi da scrivere su disco e lo inoltra al
+     *          worker se connesso (altrimenti verra' inviato alla connessione successiva).
+     *          [invocato solo dal thread consumatore della coda degli eventi]
+     */
+    synchronized void send(long postId, int userId, int authorId, int iterations, byte kind) {
+        byte[] event = ByteBuffer.allocate(EVENT_SIZE).put(RewardWorkerMain.EVENT).putLong(postId)
+                .putInt(userId).putInt(authorId).putInt(iterations).put(kind).array();
+
+        // (connessione prima della registrazione: alla connessione vengono reinviati solo gli eventi
+        // gia' registrati, quello corrente viene inviato una sola volta qui sotto)
+        boolean connected = connect();
+        unwritten.write(event, 0, EVENT_SIZE);
+        lastEvent++;
+        flushEvents(false);
+        if (!connected)
+            return;
+        try {
+            out.write(event);
+            sent++;
+        } catch (IOException e) {
+            failures++;
+            System.err.println("RewardWorkerLink Error: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+
+
+    /**
+     * @effects richiede al worker il calcolo di un periodo ('endOfPeriod' = true) o di un batch
+     *          della modalita' STREAMING e passa a 'sink' gli accrediti restituiti, numerati con il
+     *          numero di sequenza della richiesta; dopo l'applicazione vengono eliminati i segmenti
+     *          degli eventi inclusi. In caso di errore la connessione viene chiusa e la stessa
+     *          richiesta verra' ripetuta dopo la riconnessione. Restituisce {post, accrediti,
+     *          wallet aggiornati, durata in ns} (tutti 0 tranne la durata in caso di errore).
+     *          [invocato solo dal thread delle ricompense]
+     */
+    long[] cycle(boolean endOfPeriod, PeriodicRewardsTask.RewardSink sink) {
+        long start = System.nanoTime();
+
+        // invio della richiesta (dopo gli eventi nel buffer): [CYCLE][seq][fine del periodo]
+        long seq;
+        DataInputStream input;
+        synchronized (this) {
+            if (!connect())
+                return new long[]{0, 0, 0, System.nanoTime() - start};
+            seq = nextSeq;
+            input = in;
+            try {
+                out.writeByte(RewardWorkerMain.CYCLE);
+                out.writeLong(seq);
+                out.writeBoolean(endOfPeriod);
+                out.flush();
+                requests++;
+            } catch (IOException e) {
+                failures++;
+                System.err.println("RewardWorkerLink Error: " + e.getMessage());
+                disconnect();
+                return new long[]{0, 0, 0, System.nanoTime() - start};
+            }
+        }
+
+        // lettura della risposta (senza lock: gli eventi continuano ad essere inoltrati):
+        // [seq][reinvio][ultimo evento incluso][post][accrediti][n]
+        // [idUtente, somma, numero di accrediti, nota]*n
+        try {
+            PeriodicRewardsTask.CycleCredits credits = new PeriodicRewardsTask.CycleCredits(false);
+            credits.seq = input.readLong();
+            boolean again = input.readBoolean();
+            long included = input.readLong();
+            long posts = input.readLong();
+            long count = input.readLong();
+            for (int n = input.readInt(); n > 0; n--)
+                credits.credit(input.readInt(), input.readDouble(), input.readInt(), input.readUTF());
+            if (credits.seq != seq)
+                throw new IOException("unexpected cycle " + credits.seq + " (expected " + seq + ")");
+
+            // applicazione (ignorata dal server se il periodo e' gia' stato applicato) ed
+            // eliminazione dei segmenti degli eventi inclusi
+            int wallets = credits.totals.size() > 0 ? sink.apply(credits) : 0;
+            synchronized (this) {
+                if (again)
+                    resent++;
+                if (nextSeq == seq)
+                    nextSeq = seq + 1;
+                acked = Math.max(acked, Math.min(included, lastEvent));
+                rotateSegment();
+            }
+            return new long[]{posts, count, wallets, System.nanoTime() - start};
+        } catch (IOException e) {
+            synchronized (this) {
+                failures++;
+                System.err.println("RewardWorkerLink Error: " + e.getMessage());
+                if (in == input)
+                    disconnect();
+            }
+            return new long[]{0, 0, 0, System.nanoTime() - start};
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce le metriche del collegamento: indirizzo, stato, prossimo periodo, eventi
+     *          inviati, reinviati, non ancora inclusi in un periodo applicato e non ancora scritti su
+     *          disco, segmenti, errori di scrittura, richieste, risposte reinviate, errori e connessioni.
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.ROOT, "worker: address=%s connected=%b nextCycle=%d sent=%d replayed=%d " +
+                        "pending=%d unwritten=%d segments=%d writeFailures=%d requests=%d resent=%d failures=%d connections=%d",
+                address, out != null, nextSeq, sent, replayed, lastEvent - acked, unwritten.size() / EVENT_SIZE,
+                segments.size(), writeFailures, requests, resent, failures, connections);
+    }
+}
@@ -0,0 +1,202 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ForkJoinPool;
+
+public class RewardWorkerMain {
+    /**
+     * OVERVIEW: programma (eseguito in un processo separato dal server, sulla stessa macchina) che
+     *           calcola le ricompense al posto del server, in modo che i periodi di calcolo su grandi
+     *           quantita' di dati non condividano heap, lock e CPU con i comandi dei client.
+     *           Uso: java WinsomeServer.RewardWorkerMain [porta] [threads]
+     *           Il worker accetta (solo da localhost) una connessione alla volta dal server (vedi
+     *           RewardWorkerLink e la voce REWARD_WORKER del file di configurazione), applica agli
+     *           shard gli eventi ricevuti (vedi PeriodicRewardsTask.applyEvent()) e per ogni
+     *           richiesta numerata esegue un periodo o un batch con gli stessi metodi del server,
+     *           restituendo gli accrediti per utente. L'ultima risposta viene memorizzata e reinviata
+     *           se il server richiede di nuovo lo stesso periodo. Lo stato (variazioni del periodo e
+     *           ultima risposta) resta in memoria tra una connessione e l'altra.
+     *           Gli eventi sono numerati dal server per sessione (esecuzione del server): il worker
+     *           conta gli eventi ricevuti nella sessione corrente, in modo che dopo una riconnessione
+     *           il server reinvii solo quelli successivi. Se la sessione cambia (worker o server
+     *           riavviato) il conteggio riparte dall'ultimo evento incluso in un periodo applicato
+     *           dal server, che reinvia tutti gli eventi successivi.
+     *           Protocollo (messaggi dal server):
+     *              - [HELLO][perc][breakdown][streaming][sessione][ultimo evento applicato] ->
+     *                [ultimo periodo calcolato][ultimo evento ricevuto]
+     *              - [EVENT][postId][userId][authorId][iterations][kind] (nessuna risposta)
+     *              - [CYCLE][seq][fine del periodo] -> [seq][reinvio][ultimo evento incluso][post]
+     *                [accrediti][n][idUtente, somma, numero di accrediti, nota]*n
+     */
+
+    /** tipi di messaggio del protocollo **/
+    static final byte HELLO = 1;
+    static final byte EVENT = 2;
+    static final byte CYCLE = 3;
+
+    /** porta di default del worker **/
+    private static final int DEFAULT_PORT = 7790;
+
+    // oggetto che esegue i calcoli (creato alla connessione del server)
+    private static PeriodicRewardsTask task = null;
+    // pool di thread su cui viene calcolato in parallelo un periodo
+    private static ForkJoinPool pool;
+    // numero di sequenza dell'ultimo periodo calcolato e relativa risposta (senza il flag di reinvio
+    // e l'ultimo evento incluso)
+    private static long lastSeq = 0;
+    private static byte[] lastReply = null;
+    // sessione corrente, numero dell'ultimo evento ricevuto e di quello da cui e' ripartito il conteggio
+    private static long session = 0;
+    private static long received = 0;
+    private static long sessionStart = 0;
+    // sessione e ultimo evento incluso nell'ultimo periodo calcolato
+    private static long lastSession = 0;
+    private static long lastIncluded = 0;
+
+
+
+
+
+    /**
+     * @effects avvia il worker sulla porta indicata da args[0] (default DEFAULT_PORT) con un pool di
+     *          args[1] thread (default il numero di core) e serve le connessioni del server.
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 0)
+                port = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                threads = Math.max(1, Integer.parseInt(args[1]));
+        } catch (NumberFormatException e) {
+            System.err.println("Usage: java WinsomeServer.RewardWorkerMain [port] [threads]");
+            System.exit(1);
+        }
+        pool = new ForkJoinPool(threads);
+
+        try (ServerSocket listener = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println("RewardWorker | listening on " + listener.getLocalSocketAddress() + " (threads=" + threads + ")");
+            while (true) {
+                try (Socket socket = listener.accept()) {
+                    System.out.println("RewardWorker | server connected from " + socket.getRemoteSocketAddress());
+                    serve(socket);
+                } catch (EOFException e) {
+                    System.out.println("RewardWorker | server disconnected");
+                } catch (IOException e) {
+                    System.err.println("RewardWorker Error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+
+    /**
+     * @effects legge ed esegue (in ordine) i messaggi del server connesso con 'socket' fino alla
+     *          chiusura della connessione.
+     * @throws IOException se avviene un errore di comunicazione (EOFException alla chiusura).
+     */
+    private static void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case HELLO: {
+                    int perc = in.readInt();
+                    PeriodicRewardsTask.setBreakdown(in.readBoolean());
+                    PeriodicRewardsTask.Mode mode = in.readBoolean() ? PeriodicRewardsTask.Mode.STREAMING : PeriodicRewardsTask.Mode.PERIODIC;
+                    PeriodicRewardsTask.setMode(mode, 1000);
+                    task = new PeriodicRewardsTask(perc);
+
+                    // nuova sessione: il server reinvia gli eventi successivi all'ultimo applicato
+                    long s = in.readLong();
+                    long acked = in.readLong();
+                    if (s != session || received < acked) {
+                        session = s;
+                        received = acked;
+                        sessionStart = acked;
+                    }
+                    out.writeLong(lastSeq);
+                    out.writeLong(received);
+                    out.flush();
+                    System.out.println("RewardWorker | perc=" + perc + " mode=" + mode + " breakdown=" +
+                            PeriodicRewardsTask.isBreakdown() + " last cycle=" + lastSeq + " last event=" + received);
+                    break;
+                }
+                case EVENT: {
+                    PeriodicRewardsTask.applyEvent(in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readByte());
+                    received++;
+                    break;
+                }
+                case CYCLE: {
+                    long seq = in.readLong();
+                    boolean endOfPeriod = in.readBoolean();
+                    if (task == null)
+                        throw new IOException("cycle requested before hello");
+                    boolean again = seq == lastSeq && lastReply != null;
+                    if (!again)
+                        compute(seq, endOfPeriod);
+                    out.writeLong(seq);
+                    out.writeBoolean(again);
+                    // (un periodo calcolato in una sessione precedente non include eventi di quella corrente)
+                    out.writeLong(lastSession == session ? lastIncluded : sessionStart);
+                    out.write(lastReply);
+                    out.flush();
+                    break;
+                }
+                default:
+                    throw new IOException("unknown message type " + type);
+            }
+        }
+    }
+
+
+
+    /**
+     * @effects esegue il periodo ('endOfPeriod' = true) o il batch numero 'seq' e ne memorizza la
+     *          risposta (vedi il protocollo nell'OVERVIEW).
+     */
+    private static void compute(long seq, boolean endOfPeriod) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream credits = new DataOutputStream(body);
+        int[] n = {0};
+        PeriodicRewardsTask.RewardSink sink = c -> {
+            c.totals.forEach((userId, sum, count) -> {
+                try {
+                    credits.writeInt(userId);
+                    credits.writeDouble(sum);
+                    credits.writeInt(count);
+                    credits.writeUTF(c.note(userId, count));
+                    n[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return n[0];
+        };
+        long[] cycle = endOfPeriod ? task.rewardCycle(pool, sink) : task.rewardBatch(pool, sink);
+
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(body.size() + 20);
+        DataOutputStream r = new DataOutputStream(reply);
+        r.writeLong(cycle[0]);
+        r.writeLong(cycle[1]);
+        r.writeInt(n[0]);
+        body.writeTo(r);
+        lastSeq = seq;
+        lastReply = reply.toByteArray();
+        lastSession = session;
+        lastIncluded = received;
+        if (endOfPeriod || cycle[0] > 0)
+            System.out.println("RewardWorker | " + (endOfPeriod ? "cycle " : "batch ") + seq + ": " +
+                    PeriodicRewardsTask.cycleStats(cycle, pool.getParallelism()));
+    }
+}
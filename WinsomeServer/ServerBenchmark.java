@@ -0,0 +1,462 @@
+package WinsomeServer;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+public class ServerBenchmark {
+    /**
+     * OVERVIEW: programma (eseguito separatamente dal server) che misura le prestazioni dei
+     *           componenti di persistenza del server sul disco locale.
+     *           Uso: java WinsomeServer.ServerBenchmark <benchmark> [parametri]
+     *           Benchmark disponibili:
+     *              - journal [threads] [record per thread] [directory]: throughput e latenza (p50, p99,
+     *                max) della conferma di un record del journal per ogni modalita' di conferma
+     *                (WRITE, FSYNC, INTERVAL), con 'threads' thread che scrivono in parallelo come i
+     *                thread dei client. Se la directory non e' indicata ne viene usata una temporanea.
+     *              - startup [utenti] [post per utente] [ripetizioni]: tempo di avvio del server (caricamento
+     *                dello snapshot) per ogni formato dello snapshot (JSON, BINARY), senza compressione e
+     *                con compressione DEFLATE, su uno stato sintetico
+     *                con 'utenti' utenti (ognuno con 10 follow e 'post per utente' post). Ogni avvio
+     *                viene eseguito in una nuova JVM. Va eseguito da una directory vuota, in cui viene
+     *                creata la directory WinsomeServer/Database.
+     *              - json [post] [ripetizioni]: throughput di serializzazione e deserializzazione JSON
+     *                dei metadati di 'post' post (raggruppati per autore come negli shard) con gli
+     *                adapter del server e con gli adapter di Gson basati su reflection.
+     *              - rewards [post] [eventi per post] [ripetizioni]: durata e throughput di un periodo
+     *                di calcolo delle ricompense su 'post' post con 'eventi per post' voti e commenti
+     *                ciascuno, al variare del numero di thread del pool (da 1 al numero di core), e
+     *                throughput di pubblicazione e applicazione degli eventi tramite la coda degli eventi.
+     *              - cycles [post attivi] [post totali] [ripetizioni]: durata di un periodo di calcolo
+     *                delle ricompense (eventi su 'post attivi' post, calcolo e nuova iterazione) al
+     *                crescere del numero totale di post, confrontata con la durata di una visita di
+     *                tutti i post.
+     */
+
+
+
+    /**
+     * @effects esegue il benchmark indicato dal primo argomento.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: \"java ServerBenchmark journal [threads] [records] [dir]\"" +
+                    " or \"java ServerBenchmark startup [users] [posts] [runs]\"" +
+                    " or \"java ServerBenchmark json [posts] [runs]\"" +
+                    " or \"java ServerBenchmark rewards [posts] [events] [runs]\"" +
+                    " or \"java ServerBenchmark cycles [active] [posts] [runs]\"");
+            System.exit(1);
+        }
+        switch (args[0]) {
+            case "journal":
+                journal(intArg(args, 1, 8), intArg(args, 2, 2000), args.length > 3 ? args[3] : null);
+                break;
+            case "startup":
+                startup(intArg(args, 1, 20000), intArg(args, 2, 5), intArg(args, 3, 3));
+                break;
+            case "json":
+                json(intArg(args, 1, 200000), intArg(args, 2, 10));
+                break;
+            case "rewards":
+                rewards(intArg(args, 1, 200000), intArg(args, 2, 10), intArg(args, 3, 5));
+                break;
+            case "cycles":
+                cycles(intArg(args, 1, 10000), intArg(args, 2, 640000), intArg(args, 3, 5));
+                break;
+            case "startup-load": {
+                // avvio eseguito in una nuova JVM da startup()
+                long start = System.nanoTime();
+                new WinsomeServer();
+                System.out.println("startup-load " + (System.nanoTime() - start) / 1000000 + " " + SnapshotStore.getLoadMillis());
+                break;
+            }
+            default:
+                System.err.println("ServerBenchmark Error: unknown benchmark " + args[0]);
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+
+
+
+    /**
+     * @effects restituisce l'argomento intero in posizione 'i' oppure 'def' se assente.
+     */
+    private static int intArg(String[] args, int i, int def) {
+        return args.length > i ? Integer.parseInt(args[i]) : def;
+    }
+
+
+
+    /**
+     * @effects restituisce il valore (in us) del percentile 'p' delle latenze ordinate 'sorted' (in ns).
+     */
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length-1, index))] / 1000.0;
+    }
+
+
+
+    /**
+     * @effects misura throughput e latenza della conferma dei record del journal per ogni
+     *          modalita' di conferma.
+     */
+    private static void journal(int threads, int records, String dir) throws Exception {
+        if (dir == null)
+            dir = Files.createTempDirectory("winsome-journal").toString();
+        System.out.println("Journal benchmark | dir=" + dir + " threads=" + threads + " records/thread=" + records);
+
+        // apertura del journal (senza replay di record precedenti)
+        Journal.open(dir, 0, new Journal.Replayer() {
+            public void register(int id, String username, String password, List<String> tags) {}
+            public void follow(String follower, String followed) {}
+            public void unfollow(String follower, String followed) {}
+            public void createPost(long id, long time, String author, String title, String text) {}
+            public void rewinPost(long id, long time, String author, String originalAuthor, long originalId) {}
+            public void deletePost(String author, long id) {}
+            public void rate(int userId, String author, long id, boolean like) {}
+            public void comment(int userId, String author, long id, long time, String text) {}
+            public void transaction(String username, long time, double value, double valueBtc) {}
+            public void reward(String username, long time, double value, double valueBtc, String note) {}
+            public void newIteration() {}
+            public void rewardCycle(long cycle, long time, boolean last, String[] usernames, double[] values, String[] notes) {}
+        });
+
+        System.out.printf(Locale.ROOT, "%-9s %12s %10s %10s %10s%n", "mode", "records/s", "p50 us", "p99 us", "max us");
+        for (Journal.AckMode mode : Journal.AckMode.values()) {
+            Journal.setAckMode(mode, 10);
+
+            // riscaldamento e misura
+            runJournal(threads, Math.max(1, records/10));
+            long start = System.nanoTime();
+            long[] latencies = runJournal(threads, records);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Journal.checkpoint(Journal.rotate());
+
+            Arrays.sort(latencies);
+            System.out.printf(Locale.ROOT, "%-9s %12.0f %10.1f %10.1f %10.1f%n", mode, latencies.length / seconds,
+                    percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 100));
+        }
+        System.out.println(Journal.getStats());
+    }
+
+
+
+    /**
+     * @effects esegue 'records' scritture (con attesa della conferma) su ognuno dei 'threads' thread
+     *          e restituisce le latenze (in ns) di tutte le scritture.
+     */
+    private static long[] runJournal(int threads, int records) throws InterruptedException {
+        long[] latencies = new long[threads * records];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * records;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < records; i++) {
+                    long begin = System.nanoTime();
+                    Journal.await(Journal.logRate(offset + i + 1, "benchmark", 10000 + i, true));
+                    latencies[offset + i] = System.nanoTime() - begin;
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        return latencies;
+    }
+
+
+
+    /**
+     * @effects misura il tempo di avvio del server per ogni formato dello snapshot (con e senza
+     *          compressione) su uno stato
+     *          sintetico con 'users' utenti e 'posts' post per utente (mediana di 'runs' avvii).
+     */
+    private static void startup(int users, int posts, int runs) throws Exception {
+        Path database = Paths.get("WinsomeServer/Database");
+        if (Files.exists(database)) {
+            System.err.println("ServerBenchmark Error: run startup from an empty directory");
+            System.exit(1);
+        }
+        Files.createDirectories(database);
+        System.out.println("Startup benchmark | users=" + users + " posts/user=" + posts + " runs=" + runs);
+
+        // creazione dello stato sintetico tramite i comandi del server
+        long start = System.currentTimeMillis();
+        Journal.setAckMode(Journal.AckMode.INTERVAL, 100);
+        Random random = new Random(42);
+        PrintWriter sink = new PrintWriter(Writer.nullWriter());
+        for (int i = 0; i < users; i++) {
+            WinsomeServer session = new WinsomeServer();
+            session.setOutputWriter(sink);
+            session.register("user" + i, "password" + i, new LinkedList<>(List.of("tag" + i % 50, "tag" + i % 7)));
+            session.login("user" + i, "password" + i);
+            for (int f = 0; f < 10 && i > 0; f++)
+                session.followUser("user" + random.nextInt(i));
+            for (int p = 0; p < posts; p++)
+                session.createPost("title " + p, "text of the post " + p + " written by user" + i);
+            session.logout("user" + i);
+        }
+        System.out.println("state created in " + (System.currentTimeMillis() - start) + " ms");
+
+        System.out.printf(Locale.ROOT, "%-7s %-11s %10s %12s %12s %10s%n", "format", "compression", "size MB",
+                "startup ms", "snapshot ms", "MB/s");
+        for (SnapshotStore.Format format : SnapshotStore.Format.values())
+        for (Compression.Codec compression : new Compression.Codec[]{Compression.NONE, Compression.DEFLATE}) {
+            // riscrittura completa dello snapshot nel formato
+            SnapshotStore.setFormat(format);
+            SnapshotStore.setCompression(compression);
+            SnapshotStore.markAllDirty();
+            WinsomeServer.updateMemory();
+            System.out.println(SnapshotStore.getStats());
+            long size;
+            try (Stream<Path> files = Files.list(database.resolve("snapshot"))) {
+                size = files.mapToLong(f -> f.toFile().length()).sum();
+            }
+
+            // avvii in una nuova JVM
+            long[] times = new long[runs];
+            long[] loads = new long[runs];
+            for (int r = 0; r < runs; r++) {
+                long[] time = runStartup();
+                times[r] = time[0];
+                loads[r] = time[1];
+            }
+            Arrays.sort(times);
+            Arrays.sort(loads);
+            double mb = size / (1024.0 * 1024.0);
+            long load = loads[runs/2];
+            System.out.printf(Locale.ROOT, "%-7s %-11s %10.1f %12d %12d %10.1f%n", format,
+                    Compression.describe(compression), mb, times[runs/2], load, mb / Math.max(1, load) * 1000);
+        }
+    }
+
+
+
+    /**
+     * @effects misura il throughput (mediana di 'runs' ripetizioni, dopo altrettante ripetizioni di
+     *          riscaldamento) di serializzazione e deserializzazione JSON di 'posts' post con gli
+     *          adapter del server e con quelli di Gson basati su reflection.
+     */
+    private static void json(int posts, int runs) throws Exception {
+        System.out.println("JSON benchmark | posts=" + posts + " runs=" + runs);
+
+        // creazione dei post sintetici (100 post per autore)
+        Random random = new Random(42);
+        Map<String,List<Post>> content = new HashMap<>();
+        for (int i = 0; i < posts; i++) {
+            Post p = new Post("user" + i / 100, "title " + i, "text of the post " + i);
+            for (int v = random.nextInt(4); v > 0; v--)
+                p.putLike(v);
+            p.setBodyLocation(random.nextInt(1 << 26), 64 + random.nextInt(512));
+            content.computeIfAbsent(p.getAuthor(), a -> new ArrayList<>()).add(p);
+        }
+        Type type = new TypeToken<Map<String,List<Post>>>(){}.getType();
+
+        System.out.printf(Locale.ROOT, "%-11s %9s %14s %10s %14s %10s%n",
+                "adapters", "size MB", "write posts/s", "write MB/s", "read posts/s", "read MB/s");
+        Gson[] paths = {new Gson(), WinsomeServer.getGson()};
+        String[] names = {"reflection", "streaming"};
+        for (int k = 0; k < paths.length; k++) {
+            Gson gson = paths[k];
+            long[] writes = new long[runs];
+            long[] reads = new long[runs];
+            String json = null;
+            for (int r = -runs; r < runs; r++) {
+                long start = System.nanoTime();
+                json = gson.toJson(content, type);
+                long written = System.nanoTime();
+                Map<String,List<Post>> read = gson.fromJson(json, type);
+                long end = System.nanoTime();
+                if (read.size() != content.size())
+                    throw new IllegalStateException("bad round trip");
+                if (r >= 0) {
+                    writes[r] = written - start;
+                    reads[r] = end - written;
+                }
+            }
+            Arrays.sort(writes);
+            Arrays.sort(reads);
+            double mb = json.getBytes(StandardCharsets.UTF_8).length / (1024.0 * 1024.0);
+            double write = writes[runs/2] / 1e9, read = reads[runs/2] / 1e9;
+            System.out.printf(Locale.ROOT, "%-11s %9.1f %14.0f %10.1f %14.0f %10.1f%n",
+                    names[k], mb, posts / write, mb / write, posts / read, mb / read);
+        }
+    }
+
+
+
+
+    /**
+     * @effects misura la durata (mediana di 'runs' periodi, dopo altrettanti periodi di
+     *          riscaldamento) del calcolo delle ricompense di 'posts' post con 'events' eventi
+     *          ciascuno, per un numero crescente di thread del pool (fino al numero di core).
+     */
+    private static void rewards(int posts, int events, int runs) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Rewards benchmark | posts=" + posts + " events/post=" + events + " runs=" + runs + " cores=" + cores);
+
+        // creazione dei post sintetici (100 post per autore)
+        Random random = new Random(42);
+        Post[] content = new Post[posts];
+        for (int i = 0; i < posts; i++) {
+            if (i % 100 == 0)
+                UserIndex.register("user" + i / 100);
+            content[i] = new Post("user" + i / 100, "title " + i, "text of the post " + i);
+        }
+        PeriodicRewardsTask task = new PeriodicRewardsTask();
+
+        // numero di thread: potenze di 2 fino al numero di core
+        List<Integer> levels = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2)
+            levels.add(t);
+        levels.add(cores);
+
+        System.out.printf(Locale.ROOT, "%-8s %14s %10s %12s %12s %14s %8s%n", "threads", "ingest ev/s", "cycle ms", "credits",
+                "wallet ops", "posts/s", "speedup");
+        double base = 0;
+        for (int threads : levels) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long[] times = new long[runs];
+            long[] ingests = new long[runs];
+            long[] cycle = null;
+            for (int r = -runs; r < runs; r++) {
+                // eventi del periodo (pubblicazione nella coda e applicazione agli shard)
+                long start = System.nanoTime();
+                for (Post p : content)
+                    for (int e = 0; e < events; e++) {
+                        int user = 1 + random.nextInt(10000);
+                        if (random.nextInt(3) == 0)
+                            task.addCommentToRecentPost(user, p);
+                        else
+                            task.rateRecentPost(p, user, random.nextInt(4) != 0);
+                    }
+                PeriodicRewardsTask.flushEvents();
+                long ingest = System.nanoTime() - start;
+                cycle = task.rewardCycle(pool, credits -> credits.totals.size());
+                if (r >= 0) {
+                    times[r] = cycle[3];
+                    ingests[r] = ingest;
+                }
+            }
+            pool.shutdown();
+            Arrays.sort(times);
+            Arrays.sort(ingests);
+            double ms = times[runs/2] / 1e6;
+            if (base == 0)
+                base = ms;
+            System.out.printf(Locale.ROOT, "%-8d %14.0f %10.1f %12d %12d %14.0f %8.2f%n", threads,
+                    (double) posts * events / ingests[runs/2] * 1e9, ms, cycle[1], cycle[2], posts / ms * 1000, base / ms);
+        }
+        System.out.println(PeriodicRewardsTask.flushEvents());
+    }
+
+
+
+
+    /**
+     * @effects misura la durata (mediana di 'runs' periodi, dopo altrettanti periodi di
+     *          riscaldamento) di un periodo di calcolo delle ricompense con eventi su 'active' post
+     *          casuali (applicazione degli eventi, calcolo delle ricompense e inizio della nuova
+     *          iterazione) al crescere del numero totale di post fino a 'total'. Per confronto viene
+     *          misurata anche la durata di una visita di tutti i post, come quella che serviva per
+     *          iniziare una nuova iterazione prima delle epoche delle ricompense.
+     */
+    private static void cycles(int active, int total, int runs) throws Exception {
+        System.out.println("Reward cycles benchmark | active posts=" + active + " max posts=" + total + " runs=" + runs);
+        Random random = new Random(42);
+        List<Post> content = new ArrayList<>();
+        PeriodicRewardsTask task = new PeriodicRewardsTask();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        System.out.printf(Locale.ROOT, "%-12s %10s %14s %10s%n", "posts", "cycle ms", "iteration us", "scan ms");
+        for (int posts = Math.min(active, total); ; posts = Math.min(posts * 4, total)) {
+            // creazione dei nuovi post sintetici (100 post per autore)
+            for (int i = content.size(); i < posts; i++) {
+                if (i % 100 == 0)
+                    UserIndex.register("user" + i / 100);
+                content.add(new Post("user" + i / 100, "title " + i, "text of the post " + i));
+            }
+
+            long[] cycles = new long[runs];
+            long[] iterations = new long[runs];
+            long[] scans = new long[runs];
+            for (int r = -runs; r < runs; r++) {
+                // eventi del periodo (come in WinsomeServer.rate())
+                for (int i = 0; i < active; i++) {
+                    Post p = content.get(random.nextInt(posts));
+                    p.incrementIterationsCounter();
+                    task.rateRecentPost(p, 1 + random.nextInt(10000), random.nextInt(4) != 0);
+                }
+
+                // periodo delle ricompense (come in PeriodicRewardsTask.run())
+                long start = System.nanoTime();
+                PeriodicRewardsTask.flushEvents();
+                task.rewardCycle(pool, credits -> credits.totals.size());
+                long iterationStart = System.nanoTime();
+                Post.nextEpoch();
+                long end = System.nanoTime();
+
+                // visita di tutti i post (solo per confronto)
+                for (Post p : content)
+                    p.getIterations();
+                long scanEnd = System.nanoTime();
+
+                if (r >= 0) {
+                    cycles[r] = end - start;
+                    iterations[r] = end - iterationStart;
+                    scans[r] = scanEnd - end;
+                }
+            }
+            Arrays.sort(cycles);
+            Arrays.sort(iterations);
+            Arrays.sort(scans);
+            System.out.printf(Locale.ROOT, "%-12d %10.2f %14.2f %10.2f%n", posts, cycles[runs/2] / 1e6,
+                    iterations[runs/2] / 1e3, scans[runs/2] / 1e6);
+            if (posts == total)
+                break;
+        }
+        pool.shutdown();
+    }
+
+
+
+
+    /**
+     * @effects avvia una nuova JVM che carica lo stato del server e restituisce i tempi (in ms)
+     *          misurati da essa: avvio completo e caricamento dello snapshot.
+     */
+    private static long[] runStartup() throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ServerBenchmark.class.getName(), "startup-load").redirectErrorStream(true).start();
+        long[] time = {-1, -1};
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (line.startsWith("startup-load ")) {
+                    String[] values = line.split(" ");
+                    time[0] = Long.parseLong(values[1]);
+                    time[1] = Long.parseLong(values[2]);
+                }
+        }
+        process.waitFor();
+        return time;
+    }
+}
@@ -29,6 +29,35 @@ public class ServerMain {
     protected static int REWARD_TIME = 0;
     // percentuale della ricompensa che spetta all'autore del post
     protected static int REWARD_PERC = 0;
+    // memoria massima (in MB) per i body dei post mantenuti in memoria
+    protected static int POST_CACHE_MB = 64;
+    // modalita' di conferma dei comandi rispetto alla scrittura del journal (WRITE, FSYNC o INTERVAL)
+    protected static Journal.AckMode JOURNAL_ACK = Journal.AckMode.FSYNC;
+    // intervallo in ms tra due force del journal (modalita' WRITE e INTERVAL)
+    protected static int JOURNAL_SYNC_MS = 10;
+    // formato dei file dello snapshot (JSON o BINARY)
+    protected static SnapshotStore.Format SNAPSHOT_FORMAT = SnapshotStore.Format.JSON;
+    // codec di compressione dei file dello snapshot e dei record del journal (NONE o DEFLATE)
+    protected static Compression.Codec SNAPSHOT_COMPRESSION = Compression.NONE;
+    protected static Compression.Codec JOURNAL_COMPRESSION = Compression.NONE;
+    // livello di compressione del codec DEFLATE (da 1 a 9)
+    protected static int COMPRESSION_LEVEL = 6;
+    // capacita' della coda degli eventi usati per il calcolo delle ricompense
+    protected static int REWARD_QUEUE_SIZE = 1 << 16;
+    // politica di gestione della coda degli eventi piena (BLOCK, DROP o SPILL)
+    protected static RewardEventQueue.Policy REWARD_QUEUE_POLICY = RewardEventQueue.Policy.BLOCK;
+    // true se la transazione periodica di ogni utente riporta il dettaglio degli accrediti per post
+    protected static boolean REWARD_BREAKDOWN = false;
+    // modalita' di calcolo delle ricompense (PERIODIC o STREAMING)
+    protected static PeriodicRewardsTask.Mode REWARD_MODE = PeriodicRewardsTask.Mode.PERIODIC;
+    // intervallo (in ms) tra due accrediti della modalita' STREAMING
+    protected static int REWARD_BATCH_MS = 1000;
+    // indirizzo (host:porta) del worker esterno che calcola le ricompense (NONE = calcolo nel server)
+    protected static String REWARD_WORKER = "NONE";
+    // sorgente del tasso di conversione in bitcoin (RANDOM_ORG, STUB o STUB:tasso)
+    protected static ExchangeRateProvider EXCHANGE_RATE_PROVIDER = ExchangeRates.RANDOM_ORG;
+    // durata di validita' (in ms) del tasso di conversione in cache
+    protected static int EXCHANGE_RATE_TTL_MS = 60000;
 
     // variabile che se settata a true causa la terminazione del server
     private static final AtomicBoolean exit = new AtomicBoolean(false);
@@ -115,6 +144,112 @@ public class ServerMain {
                                 REWARD_PERC = perc;
                             break;
                         }
+                        case "JOURNAL_ACK": { /** MODALITA' DI CONFERMA DEI COMANDI (WRITE, FSYNC, INTERVAL) **/
+                            try {
+                                JOURNAL_ACK = Journal.AckMode.valueOf(value.toUpperCase(Locale.ENGLISH));
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "JOURNAL_SYNC_MS": { /** INTERVALLO TRA DUE FORCE DEL JOURNAL **/
+                            int ms = Integer.parseInt(value);
+                            if (ms > 0)
+                                JOURNAL_SYNC_MS = ms;
+                            break;
+                        }
+                        case "SNAPSHOT_FORMAT": { /** FORMATO DEI FILE DELLO SNAPSHOT (JSON, BINARY) **/
+                            try {
+                                SNAPSHOT_FORMAT = SnapshotStore.Format.valueOf(value.toUpperCase(Locale.ENGLISH));
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "SNAPSHOT_COMPRESSION": { /** CODEC DI COMPRESSIONE DEGLI SHARD (NONE, DEFLATE) **/
+                            try {
+                                SNAPSHOT_COMPRESSION = Compression.byName(value);
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "JOURNAL_COMPRESSION": { /** CODEC DI COMPRESSIONE DEL JOURNAL (NONE, DEFLATE) **/
+                            try {
+                                JOURNAL_COMPRESSION = Compression.byName(value);
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "COMPRESSION_LEVEL": { /** LIVELLO DI COMPRESSIONE DEL CODEC DEFLATE (1-9) **/
+                            int level = Integer.parseInt(value);
+                            if (level >= 1 && level <= 9)
+                                COMPRESSION_LEVEL = level;
+                            break;
+                        }
+                        case "REWARD_QUEUE_SIZE": { /** CAPACITA' DELLA CODA DEGLI EVENTI DELLE RICOMPENSE **/
+                            int size = Integer.parseInt(value);
+                            if (size > 0)
+                                REWARD_QUEUE_SIZE = size;
+                            break;
+                        }
+                        case "REWARD_QUEUE_POLICY": { /** POLITICA DELLA CODA DEGLI EVENTI PIENA (BLOCK, DROP, SPILL) **/
+                            try {
+                                REWARD_QUEUE_POLICY = RewardEventQueue.Policy.valueOf(value.toUpperCase(Locale.ENGLISH));
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "REWARD_BREAKDOWN": { /** DETTAGLIO PER POST DELLE TRANSAZIONI PERIODICHE (TRUE, FALSE) **/
+                            REWARD_BREAKDOWN = Boolean.parseBoolean(value);
+                            break;
+                        }
+                        case "REWARD_MODE": { /** MODALITA' DI CALCOLO DELLE RICOMPENSE (PERIODIC, STREAMING) **/
+                            try {
+                                REWARD_MODE = PeriodicRewardsTask.Mode.valueOf(value.toUpperCase(Locale.ENGLISH));
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "REWARD_BATCH_MS": { /** INTERVALLO TRA DUE ACCREDITI DELLA MODALITA' STREAMING **/
+                            int ms = Integer.parseInt(value);
+                            if (ms > 0)
+                                REWARD_BATCH_MS = ms;
+                            break;
+                        }
+                        case "REWARD_WORKER": { /** WORKER ESTERNO DELLE RICOMPENSE (NONE, host:porta) **/
+                            try {
+                                if (!value.equalsIgnoreCase("NONE"))
+                                    RewardWorkerLink.parseAddress(value);
+                                REWARD_WORKER = value;
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "EXCHANGE_RATE_PROVIDER": { /** SORGENTE DEL TASSO DI CONVERSIONE (RANDOM_ORG, STUB, STUB:tasso) **/
+                            try {
+                                EXCHANGE_RATE_PROVIDER = ExchangeRates.byName(value);
+                            } catch (IllegalArgumentException e) {
+                                continue;
+                            }
+                            break;
+                        }
+                        case "EXCHANGE_RATE_TTL_MS": { /** DURATA DI VALIDITA' DEL TASSO DI CONVERSIONE IN CACHE **/
+                            int ms = Integer.parseInt(value);
+                            if (ms > 0)
+                                EXCHANGE_RATE_TTL_MS = ms;
+                            break;
+                        }
+                        case "POST_CACHE_MB": { /** MEMORIA MASSIMA PER I POST IN MEMORIA (I RESTANTI SONO SU DISCO) **/
+                            int mb = Integer.parseInt(value);
+                            if (mb > 0)
+                                POST_CACHE_MB = mb;
+                            break;
+                        }
                     }
                 } catch (NumberFormatException e) {
                     continue;
@@ -181,8 +316,41 @@ public class ServerMain {
                 "\n\tREG_PORT=" + REG_PORT +
                 "\n\tPERIOD=" + PERIOD +
                 "\n\tREWARD_TIME=" + REWARD_TIME +
-                "\n\tREWARD_PERC=" + REWARD_PERC
+                "\n\tREWARD_PERC=" + REWARD_PERC +
+                "\n\tPOST_CACHE_MB=" + POST_CACHE_MB +
+                "\n\tJOURNAL_ACK=" + JOURNAL_ACK +
+                "\n\tJOURNAL_SYNC_MS=" + JOURNAL_SYNC_MS +
+                "\n\tSNAPSHOT_FORMAT=" + SNAPSHOT_FORMAT +
+                "\n\tSNAPSHOT_COMPRESSION=" + SNAPSHOT_COMPRESSION.name() +
+                "\n\tJOURNAL_COMPRESSION=" + JOURNAL_COMPRESSION.name() +
+                "\n\tCOMPRESSION_LEVEL=" + COMPRESSION_LEVEL +
+                "\n\tREWARD_QUEUE_SIZE=" + REWARD_QUEUE_SIZE +
+                "\n\tREWARD_QUEUE_POLICY=" + REWARD_QUEUE_POLICY +
+                "\n\tREWARD_BREAKDOWN=" + REWARD_BREAKDOWN +
+                "\n\tREWARD_MODE=" + REWARD_MODE +
+                "\n\tREWARD_BATCH_MS=" + REWARD_BATCH_MS +
+                "\n\tREWARD_WORKER=" + REWARD_WORKER +
+                "\n\tEXCHANGE_RATE_PROVIDER=" + EXCHANGE_RATE_PROVIDER.name() +
+                "\n\tEXCHANGE_RATE_TTL_MS=" + EXCHANGE_RATE_TTL_MS
         );
+        PostStore.setBudget(POST_CACHE_MB * 1024L * 1024L);
+        Journal.setAckMode(JOURNAL_ACK, JOURNAL_SYNC_MS);
+        SnapshotStore.setFormat(SNAPSHOT_FORMAT);
+        Compression.setLevel(COMPRESSION_LEVEL);
+        SnapshotStore.setCompression(SNAPSHOT_COMPRESSION);
+        Journal.setCompression(JOURNAL_COMPRESSION);
+        RewardEventQueue.setDefaults(REWARD_QUEUE_SIZE, REWARD_QUEUE_POLICY);
+        PeriodicRewardsTask.setBreakdown(REWARD_BREAKDOWN);
+        PeriodicRewardsTask.setMode(REWARD_MODE, REWARD_BATCH_MS);
+        if (!REWARD_WORKER.equalsIgnoreCase("NONE"))
+            PeriodicRewardsTask.setWorker(new RewardWorkerLink(REWARD_WORKER, REWARD_PERC));
+        ExchangeRates.start(EXCHANGE_RATE_PROVIDER, EXCHANGE_RATE_TTL_MS);
+
+
+        /** CARICAMENTO DELLO STATO (UNA SOLA VOLTA, PRIMA DI ACCETTARE CONNESSIONI) **/
+        ForkJoinPool bootstrapPool = new ForkJoinPool();
+        WinsomeServer.bootstrap(bootstrapPool);
+        bootstrapPool.shutdown();
 
 
         /** CREAZIONE DEL THREAD PER IL CALCOLO PERIODICO DELLE RICOMPENSE **/
@@ -216,6 +384,11 @@ public class ServerMain {
                     // memorizzazione dati
                     WinsomeServer.updateMemory();
                     System.out.println("MemorizationThread | Memory Updated");
+                    System.out.println("MemorizationThread | " + PostStore.getStats());
+                    System.out.println("MemorizationThread | " + SnapshotStore.getStats());
+                    System.out.println("MemorizationThread | " + SnapshotStore.getFileStats());
+                    System.out.println("MemorizationThread | " + Journal.getStats());
+                    System.out.println("MemorizationThread | " + ExchangeRates.getStats());
                 }
             }
         };
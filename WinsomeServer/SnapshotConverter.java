@@ -0,0 +1,48 @@
+package WinsomeServer;
+
+import java.util.Locale;
+
+public class SnapshotConverter {
+    /**
+     * OVERVIEW: programma (eseguito a server spento) che converte tutti i file dello snapshot nel
+     *           formato indicato. Lo stato viene caricato come all'avvio del server (snapshot in
+     *           qualsiasi formato, o file delle versioni precedenti, piu' il replay del journal) e
+     *           riscritto per intero nel nuovo formato con una memorizzazione completa.
+     *           Uso: java WinsomeServer.SnapshotConverter <JSON|BINARY>
+     */
+
+
+
+    /**
+     * @effects converte lo snapshot nel formato indicato dal primo argomento.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: \"java SnapshotConverter <JSON|BINARY>\"");
+            System.exit(1);
+        }
+        SnapshotStore.Format format;
+        try {
+            format = SnapshotStore.Format.valueOf(args[0].toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            System.err.println("SnapshotConverter Error: unknown format " + args[0]);
+            System.exit(1);
+            return;
+        }
+
+        // caricamento dello stato
+        long start = System.currentTimeMillis();
+        new WinsomeServer();
+        System.out.println("SnapshotConverter | state loaded in " + (System.currentTimeMillis() - start) + " ms");
+
+        // riscrittura di tutti gli shard nel nuovo formato
+        SnapshotStore.setFormat(format);
+        SnapshotStore.markAllDirty();
+        if (!WinsomeServer.updateMemory()) {
+            System.err.println("SnapshotConverter Error: unable to write the snapshot");
+            System.exit(1);
+        }
+        System.out.println("SnapshotConverter | " + SnapshotStore.getStats());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,341 @@
+package WinsomeServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class SnapshotFormat {
+    /**
+     * OVERVIEW: classe statica che definisce il formato binario (versionato) dei file dello snapshot,
+     *           alternativo al formato JSON (vedi SnapshotStore.Format).
+     *           Formato del file: [magic (int)][versione (int)][codec di compressione (byte)][sezione]*
+     *           (nella versione 1 il codec e' assente e le sezioni non sono compresse)
+     *           Formato di una sezione: [id (byte)][lunghezza del payload (int)][crc32 del payload (int)][payload]
+     *           dove il payload e' compresso col codec indicato nell'header (vedi Compression) e il crc
+     *           e' calcolato sui byte compressi.
+     *           Il contenuto e' suddiviso in sezioni (una per tipo di dato) che vengono scritte in
+     *           streaming e verificate singolarmente (crc) in lettura. Le stringhe ripetute (username e
+     *           tag) vengono scritte una sola volta nella tabella delle stringhe (sezione STRINGS,
+     *           l'ultima del file) e nelle altre sezioni compaiono come indici interi; contatori e
+     *           timestamp sono scritti come valori primitivi.
+     *           I file in formato JSON compressi sono preceduti dall'header
+     *           [magic dei file compressi (int)][codec di compressione (byte)].
+     */
+
+    /** valore identificativo del formato binario e versione corrente del formato **/
+    public static final int MAGIC = 0x57534E50;
+    public static final int VERSION = 2;
+
+    /** valore identificativo dei file in formato JSON compressi **/
+    public static final int COMPRESSED_MAGIC = 0x57534E5A;
+
+    /** id della sezione contenente la tabella delle stringhe **/
+    public static final byte STRINGS = 0;
+
+    /** dimensione dell'header del file (versione 1 e corrente) e di una sezione **/
+    private static final int FILE_HEADER_SIZE_V1 = 8;
+    private static final int FILE_HEADER_SIZE = 9;
+    private static final int SECTION_HEADER_SIZE = 9;
+
+    /** dimensione del buffer di scrittura di una sezione **/
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+
+
+    /*******************************
+     ***** CLASSE WRITER *****
+     *******************************/
+    public static class Writer implements Closeable {
+        /**
+         * OVERVIEW: scrittore di un file in formato binario. Le sezioni vengono scritte direttamente
+         *           sul canale del file (compresse col codec indicato) tramite un buffer di dimensione
+         *           fissa: lunghezza e crc di una sezione vengono scritti nel suo header alla chiusura
+         *           della sezione. La tabella delle stringhe viene scritta da close().
+         */
+        // canale del file e codec di compressione delle sezioni
+        private final FileChannel channel;
+        private final Compression.Codec codec;
+        // byte scritti prima della compressione (sezioni chiuse e sezione corrente)
+        private long rawBytes = 0;
+        private Compression.CountingOutputStream raw = null;
+        // indici delle stringhe gia' inserite nella tabella e tabella delle stringhe
+        private final Map<String,Integer> indexes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        // crc, posizione dell'header e output della sezione corrente (null se nessuna sezione e' aperta)
+        private final CRC32 crc = new CRC32();
+        private long sectionStart = -1;
+        private DataOutputStream out = null;
+        private byte sectionId;
+
+
+        /**
+         * @effects crea uno scrittore sul canale 'channel' (vuoto), che comprime le sezioni col codec
+         *          'codec', e scrive l'header del file.
+         * @throws IOException se avviene un errore di scrittura.
+         */
+        public Writer(FileChannel channel, Compression.Codec codec) throws IOException {
+            this.channel = channel;
+            this.codec = codec;
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).put(codec.id());
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header);
+        }
+
+
+        /**
+         * @effects chiude la sezione corrente (se aperta) e apre la sezione 'id', restituendo
+         *          l'output su cui scriverne il payload.
+         * @throws IOException se avviene un errore di scrittura.
+         */
+        public DataOutputStream section(byte id) throws IOException {
+            endSection();
+            sectionId = id;
+            sectionStart = channel.position();
+            ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_SIZE);
+            while (header.hasRemaining())
+                channel.write(header);
+            crc.reset();
+            raw = new Compression.CountingOutputStream(codec.compress(new CheckedOutputStream(
+                    Compression.unclosable(Channels.newOutputStream(channel)), crc)));
+            out = new DataOutputStream(new BufferedOutputStream(raw, BUFFER_SIZE));
+            return out;
+        }
+
+
+        /**
+         * @effects restituisce l'indice della stringa 's' nella tabella delle stringhe (inserendola
+         *          se assente) oppure -1 se 's' e' null.
+         */
+        public int string(String s) {
+            if (s == null)
+                return -1;
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(s, index);
+                strings.add(s);
+            }
+            return index;
+        }
+
+
+        /**
+         * @effects chiude la sezione corrente scrivendone lunghezza e crc nell'header.
+         * @throws IOException se avviene un errore di scrittura.
+         */
+        private void endSection() throws IOException {
+            if (out == null)
+                return;
+            out.close();
+            rawBytes += raw.getCount();
+            long length = channel.position() - sectionStart - SECTION_HEADER_SIZE;
+            ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_SIZE)
+                    .put(sectionId).putInt((int) length).putInt((int) crc.getValue());
+            header.flip();
+            long position = sectionStart;
+            while (header.hasRemaining())
+                position += channel.write(header, position);
+            out = null;
+        }
+
+
+        /**
+         * @effects chiude la sezione corrente e scrive la tabella delle stringhe (il canale non
+         *          viene chiuso).
+         * @throws IOException se avviene un errore di scrittura.
+         */
+        public void close() throws IOException {
+            DataOutputStream table = section(STRINGS);
+            table.writeInt(strings.size());
+            for (String s : strings)
+                table.writeUTF(s);
+            endSection();
+        }
+
+
+        /**
+         * @effects restituisce il numero di byte delle sezioni chiuse prima della compressione.
+         */
+        public long getRawBytes() {
+            return rawBytes;
+        }
+    }
+
+
+
+    /*******************************
+     ***** CLASSE READER *****
+     *******************************/
+    public static class Reader {
+        /**
+         * OVERVIEW: lettore di un file in formato binario gia' letto o mappato in memoria. Alla creazione
+         *           vengono verificati header e crc di tutte le sezioni e viene decodificata la
+         *           tabella delle stringhe. Il payload delle sezioni viene decompresso in lettura.
+         */
+        // contenuto del file e codec di compressione delle sezioni
+        private final ByteBuffer data;
+        private final Compression.Codec codec;
+        // posizione e lunghezza del payload di ogni sezione
+        private final Map<Byte,int[]> sections = new HashMap<>();
+        // tabella delle stringhe
+        private final String[] strings;
+
+
+        /**
+         * @effects crea il lettore del contenuto 'data' di un file in formato binario.
+         * @throws IOException se il file non e' nel formato binario, ha una versione non supportata o
+         *         se il crc di una sezione non corrisponde (file corrotto).
+         */
+        public Reader(ByteBuffer data) throws IOException {
+            this.data = data;
+            if (data.remaining() < FILE_HEADER_SIZE_V1 || data.getInt(0) != MAGIC)
+                throw new IOException("not a binary snapshot file");
+            int version = data.getInt(4);
+            if (version > VERSION)
+                throw new IOException("unsupported snapshot version " + version);
+            codec = version == 1 ? Compression.NONE : Compression.get(data.get(8));
+
+            // verifica delle sezioni
+            CRC32 crc = new CRC32();
+            int position = version == 1 ? FILE_HEADER_SIZE_V1 : FILE_HEADER_SIZE;
+            while (position + SECTION_HEADER_SIZE <= data.limit()) {
+                byte id = data.get(position);
+                int length = data.getInt(position+1);
+                int checksum = data.getInt(position+5);
+                position += SECTION_HEADER_SIZE;
+                if (length < 0 || position + length > data.limit())
+                    throw new IOException("truncated section " + id);
+                crc.reset();
+                crc.update(data.duplicate().position(position).limit(position+length));
+                if ((int) crc.getValue() != checksum)
+                    throw new IOException("corrupted section " + id);
+                sections.put(id, new int[]{position, length});
+                position += length;
+            }
+
+            // decodifica della tabella delle stringhe
+            DataInputStream table = section(STRINGS);
+            if (table == null)
+                throw new IOException("missing string table");
+            strings = new String[table.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = table.readUTF();
+        }
+
+
+        /**
+         * @effects restituisce l'input da cui leggere il payload (decompresso) della sezione 'id' oppure
+         *          null se la sezione e' assente.
+         * @throws IOException se avviene un errore nella decompressione.
+         */
+        public DataInputStream section(byte id) throws IOException {
+            int[] section = sections.get(id);
+            if (section == null)
+                return null;
+            ByteBuffer payload = data.duplicate().position(section[0]).limit(section[0]+section[1]);
+            return new DataInputStream(new BufferedInputStream(
+                    codec.decompress(new ByteBufferInputStream(payload)), BUFFER_SIZE));
+        }
+
+
+        /**
+         * @effects restituisce la stringa con indice 'index' nella tabella delle stringhe (null se
+         *          'index' e' -1).
+         * @throws IOException se l'indice non e' valido.
+         */
+        public String string(int index) throws IOException {
+            if (index == -1)
+                return null;
+            if (index < 0 || index >= strings.length)
+                throw new IOException("bad string index " + index);
+            return strings[index];
+        }
+    }
+
+
+
+    /*****************************************
+     ***** CLASSE PRIVATA BYTE BUFFER INPUT *****
+     *****************************************/
+    private static class ByteBufferInputStream extends InputStream {
+        /**
+         * OVERVIEW: input stream che legge i byte di un ByteBuffer (senza copiarli).
+         */
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce true se il contenuto 'data' inizia con l'header del formato binario,
+     *          false altrimenti (formato JSON).
+     */
+    public static boolean isBinary(ByteBuffer data) {
+        return data.remaining() >= 4 && data.getInt(0) == MAGIC;
+    }
+
+
+
+    /**
+     * @effects restituisce il contenuto 'data' di un file in formato JSON (decompresso se il file e'
+     *          compresso) come stream di caratteri.
+     * @throws IOException se il file e' compresso con un codec sconosciuto.
+     */
+    public static java.io.Reader jsonReader(ByteBuffer data) throws IOException {
+        InputStream in = input(data);
+        if (data.remaining() >= 5 && data.getInt(0) == COMPRESSED_MAGIC) {
+            in.skipNBytes(5);
+            in = Compression.get(data.get(4)).decompress(in);
+        }
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+
+
+    /**
+     * @effects restituisce lo stream su cui scrivere un file in formato JSON su 'out', compresso col
+     *          codec 'codec' (scrivendo prima l'header dei file compressi) se diverso da NONE.
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    public static OutputStream jsonOutput(OutputStream out, Compression.Codec codec) throws IOException {
+        if (codec == Compression.NONE)
+            return out;
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(COMPRESSED_MAGIC);
+        header.writeByte(codec.id());
+        header.flush();
+        return codec.compress(out);
+    }
+
+
+
+    /**
+     * @effects restituisce uno stream che legge (senza copiarli) i byte di 'data' dalla posizione
+     *          corrente al limite.
+     */
+    public static InputStream input(ByteBuffer data) {
+        return new ByteBufferInputStream(data.duplicate());
+    }
+}
@@ -0,0 +1,663 @@
+package WinsomeServer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+public class SnapshotStore {
+    /**
+     * OVERVIEW: classe statica che gestisce lo snapshot incrementale dello stato del social network.
+     *           Gli utenti sono suddivisi in SHARDS segmenti (shard) in base al loro id denso
+     *           (shard = id % SHARDS) e ogni shard contiene tutti i dati dei suoi utenti (registrazione,
+     *           followers, following, post, wallet e tag). Le operazioni che modificano i dati di un
+     *           utente segnano il suo shard come "sporco" e ad ogni snapshot vengono riscritti solo gli
+     *           shard sporchi, ognuno in un nuovo file con versione incrementata. Il manifest elenca la
+     *           versione corrente di ogni shard e viene sostituito in modo atomico (scrittura su file
+     *           temporaneo e rename) solo dopo la scrittura di tutti gli shard: i file delle versioni
+     *           precedenti vengono eliminati solo dopo il rename.
+     *           Ogni file viene scritto in streaming direttamente su un file temporaneo (con un buffer
+     *           di dimensione fissa, senza costruirne il contenuto in memoria), reso persistente (force)
+     *           e rinominato in modo atomico: un crash durante la scrittura lascia sempre intatta la
+     *           versione precedente.
+     *           Il manifest registra anche la prima generazione del journal non inclusa nello snapshot
+     *           (vedi Journal.rotate()), da cui riparte il replay all'avvio.
+     *           Gli shard vengono scritti nel formato scelto (vedi Format) e letti nel formato in cui
+     *           sono stati scritti (riconosciuto dall'header del file), quindi il cambio di formato
+     *           non richiede la conversione degli shard esistenti. In lettura i file degli shard
+     *           vengono mappati in memoria (senza copiarne il contenuto nello heap), decodificati in
+     *           parallelo e consegnati in ordine di shard.
+     */
+
+    /*******************************
+     ***** FORMATO DEGLI SHARD *****
+     *******************************/
+    public enum Format {
+        /**
+         * OVERVIEW: formato dei file degli shard:
+         *              - JSON: JSON compatto scritto tramite Gson;
+         *              - BINARY: formato binario a sezioni con tabella delle stringhe (vedi SnapshotFormat).
+         */
+        JSON, BINARY
+    }
+
+
+
+    /*********************************
+     ***** INTERFACCIA DEL CODEC *****
+     *********************************/
+    public interface Codec<T> {
+        /**
+         * OVERVIEW: interfaccia implementata da chi definisce il contenuto di uno shard: tipo del
+         *           contenuto e oggetto Gson che lo codifica (per il formato JSON) e
+         *           codifica/decodifica nel formato binario.
+         */
+        Type type();
+        Gson gson();
+        void write(T content, SnapshotFormat.Writer out) throws IOException;
+        T read(SnapshotFormat.Reader in) throws IOException;
+    }
+
+
+
+    /** numero di shard **/
+    public static final int SHARDS = 64;
+
+    /** directory contenente manifest e shard **/
+    private static final String snapshotDirName = "WinsomeServer/Database/snapshot";
+
+    /** nome del manifest **/
+    private static final String manifestFileName = snapshotDirName + "/manifest";
+
+    /** dimensione del buffer di scrittura dei file **/
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** oggetto Gson (thread-safe) usato per la lettura e la scrittura del manifest **/
+    private static final Gson gson = new Gson();
+
+    /** formato in cui vengono scritti gli shard **/
+    private static volatile Format format = Format.JSON;
+
+    /** codec di compressione con cui vengono scritti gli shard **/
+    private static volatile Compression.Codec compression = Compression.NONE;
+
+    /** bit degli shard sporchi (un bit per shard) **/
+    private static final AtomicLongArray dirty = new AtomicLongArray((SHARDS + 63) / 64);
+
+    /** versione corrente di ogni shard (0 se lo shard non e' mai stato scritto) **/
+    private static long[] versions = new long[SHARDS];
+
+    /** prima generazione del journal non inclusa nello snapshot corrente (0 se non nota) **/
+    private static long journalGeneration = 0;
+
+    /** epoca delle ricompense al momento del taglio dello snapshot corrente (0 se non nota) **/
+    private static int epoch = 0;
+
+    /** ultimo periodo calcolato dal worker esterno e applicato al momento del taglio (0 se nessuno) **/
+    private static long rewardCycle = 0;
+
+    /** versioni scritte ma non ancora registrate nel manifest **/
+    private static final Map<Integer,Long> pending = new HashMap<>();
+
+    /** metriche dell'ultimo snapshot **/
+    private static int lastShards = 0;
+    private static long lastBytes = 0;
+    private static long lastMillis = 0;
+    private static long lastCutMicros = 0;
+    private static long loadMillis = 0;
+    private static long loadBytes = 0;
+    private static long[] loadShardMillis = new long[0];
+
+    /** metriche di compressione dei file dell'ultimo snapshot: [shard, byte non compressi, byte scritti,
+     *  durata in ns della codifica e scrittura (force esclusa)] **/
+    private static final List<long[]> lastFiles = new ArrayList<>();
+
+
+
+    /*******************************
+     ***** CLASSE PRIVATA MANIFEST *****
+     *******************************/
+    private static class Manifest {
+        /**
+         * OVERVIEW: contenuto del manifest: numero di shard, versione corrente di ognuno, prima
+         *           generazione del journal non inclusa nello snapshot, epoca delle ricompense e
+         *           ultimo periodo applicato del worker esterno al momento del taglio.
+         */
+        int shards;
+        long[] versions;
+        long journal;
+        int epoch;
+        long cycle;
+    }
+
+
+
+    /**
+     * @effects setta il formato 'f' in cui verranno scritti gli shard.
+     * @param f formato degli shard.
+     *          [f != null]
+     */
+    public static void setFormat(Format f) {
+        if (f == null)
+            throw new IllegalArgumentException();
+        format = f;
+    }
+
+
+
+    /**
+     * @effects restituisce il formato in cui vengono scritti gli shard.
+     */
+    public static Format getFormat() {
+        return format;
+    }
+
+
+
+    /**
+     * @effects setta il codec di compressione con cui vengono scritti gli shard.
+     * @param codec codec di compressione.
+     *              [codec != null]
+     */
+    public static void setCompression(Compression.Codec codec) {
+        if (codec == null)
+            throw new NullPointerException();
+        compression = codec;
+    }
+
+
+
+    /**
+     * @effects restituisce lo shard dell'utente 'username'.
+     */
+    public static int shardOf(String username) {
+        return UserIndex.idOf(username) % SHARDS;
+    }
+
+
+
+    /**
+     * @effects segna come sporco lo shard dell'utente 'username'.
+     */
+    public static void markDirty(String username) {
+        markDirty(shardOf(username));
+    }
+
+
+
+    /**
+     * @effects segna come sporco lo shard 'shard'.
+     */
+    public static void markDirty(int shard) {
+        long bit = 1L << (shard & 63);
+        int word = shard >>> 6;
+        long old;
+        do {
+            old = dirty.get(word);
+        } while ((old & bit) == 0 && !dirty.compareAndSet(word, old, old | bit));
+    }
+
+
+
+    /**
+     * @effects segna come sporchi tutti gli shard.
+     */
+    public static void markAllDirty() {
+        for (int shard = 0; shard < SHARDS; shard++)
+            markDirty(shard);
+    }
+
+
+
+    /**
+     * @effects restituisce gli shard sporchi e li segna come puliti (le modifiche successive li
+     *          segneranno nuovamente come sporchi).
+     */
+    public static int[] takeDirtyShards() {
+        int[] shards = new int[SHARDS];
+        int n = 0;
+        for (int word = 0; word < dirty.length(); word++) {
+            long bits = dirty.getAndSet(word, 0);
+            while (bits != 0) {
+                shards[n++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return Arrays.copyOf(shards, n);
+    }
+
+
+
+    /**
+     * @effects restituisce true se almeno uno shard e' sporco, false altrimenti.
+     */
+    public static boolean hasDirtyShards() {
+        for (int word = 0; word < dirty.length(); word++)
+            if (dirty.get(word) != 0)
+                return true;
+        return false;
+    }
+
+
+
+    /**
+     * @effects restituisce true se esiste un manifest (e quindi uno snapshot per shard), false
+     *          altrimenti.
+     */
+    public static boolean hasManifest() {
+        return new File(manifestFileName).exists();
+    }
+
+
+
+    /**
+     * @effects legge il manifest e passa a 'consumer' il contenuto (decodificato tramite 'codec') di
+     *          ogni shard scritto almeno una volta. Gli shard vengono letti e decodificati in parallelo
+     *          (sull'executor 'executor') ma passati a 'consumer' uno alla volta in ordine di shard
+     *          (dal thread chiamante). Viene registrata la durata di lettura di ogni shard.
+     *          Se il manifest e' stato scritto con un numero di shard diverso da SHARDS, tutti gli
+     *          shard vengono segnati come sporchi (e quindi riscritti con la nuova suddivisione al
+     *          prossimo snapshot).
+     */
+    public static synchronized <T> void loadShards(Codec<T> codec, Consumer<T> consumer, Executor executor) {
+        long start = System.currentTimeMillis();
+        Manifest manifest;
+        try (Reader reader = Files.newBufferedReader(Paths.get(manifestFileName), StandardCharsets.UTF_8)) {
+            manifest = gson.fromJson(reader, Manifest.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (manifest == null || manifest.versions == null)
+            return;
+        journalGeneration = manifest.journal;
+        epoch = manifest.epoch;
+        rewardCycle = manifest.cycle;
+
+        // decodifica in parallelo degli shard
+        List<CompletableFuture<T>> shards = new ArrayList<>();
+        long[] bytes = new long[manifest.versions.length];
+        long[] millis = new long[manifest.versions.length];
+        Arrays.fill(millis, -1);
+        for (int shard = 0; shard < manifest.versions.length; shard++) {
+            if (manifest.versions[shard] == 0)
+                continue;
+            final int i = shard;
+            Path file = Paths.get(shardFileName(shard, manifest.versions[shard]));
+            shards.add(CompletableFuture.supplyAsync(() -> {
+                long shardStart = System.nanoTime();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    bytes[i] = data.remaining();
+                    return readShard(data, codec);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    millis[i] = (System.nanoTime() - shardStart) / 1000000;
+                }
+            }, executor));
+        }
+
+        // consegna degli shard in ordine
+        for (CompletableFuture<T> shard : shards)
+            try {
+                T content = shard.join();
+                if (content != null)
+                    consumer.accept(content);
+            } catch (CompletionException e) {
+                e.getCause().printStackTrace();
+            }
+
+        // caso di suddivisione in shard diversa da quella corrente
+        if (manifest.shards == SHARDS && manifest.versions.length == SHARDS) {
+            versions = manifest.versions;
+        } else {
+            versions = Arrays.copyOf(manifest.versions, Math.max(SHARDS, manifest.versions.length));
+            markAllDirty();
+        }
+        loadBytes = Arrays.stream(bytes).sum();
+        loadShardMillis = millis;
+        loadMillis = System.currentTimeMillis() - start;
+    }
+
+
+
+    /**
+     * @effects decodifica tramite 'codec' il contenuto 'data' di uno shard, nel formato binario o
+     *          JSON a seconda dell'header.
+     * @throws IOException se il contenuto non e' decodificabile.
+     */
+    private static <T> T readShard(ByteBuffer data, Codec<T> codec) throws IOException {
+        if (SnapshotFormat.isBinary(data))
+            return codec.read(new SnapshotFormat.Reader(data));
+        try (Reader reader = SnapshotFormat.jsonReader(data)) {
+            return codec.gson().fromJson(reader, codec.type());
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+
+    /**
+     * @effects restituisce la prima generazione del journal non inclusa nello snapshot caricato da
+     *          loadShards() (0 se non nota).
+     */
+    public static synchronized long getJournalGeneration() {
+        return journalGeneration;
+    }
+
+
+
+    /**
+     * @effects restituisce l'epoca delle ricompense al momento del taglio dello snapshot caricato da
+     *          loadShards() o dell'ultimo snapshot scritto (0 se non nota).
+     */
+    public static synchronized int getEpoch() {
+        return epoch;
+    }
+
+
+
+    /**
+     * @effects restituisce l'ultimo periodo calcolato dal worker esterno e applicato al momento del
+     *          taglio dello snapshot caricato da loadShards() o dell'ultimo snapshot scritto (0 se
+     *          nessuno).
+     */
+    public static synchronized long getRewardCycle() {
+        return rewardCycle;
+    }
+
+
+
+    /**
+     * @effects restituisce la durata (in ms) dell'ultimo caricamento dello snapshot (loadShards()).
+     */
+    public static synchronized long getLoadMillis() {
+        return loadMillis;
+    }
+
+
+
+    /**
+     * @effects restituisce una stringa con le metriche dell'ultimo caricamento dello snapshot: numero
+     *          di shard letti, byte letti, durata totale, durata media e massima della lettura di uno
+     *          shard (con lo shard piu' lento).
+     */
+    public static synchronized String getLoadStats() {
+        int read = 0, slowest = 0;
+        long sum = 0;
+        for (int shard = 0; shard < loadShardMillis.length; shard++) {
+            if (loadShardMillis[shard] < 0)
+                continue;
+            read++;
+            sum += loadShardMillis[shard];
+            if (loadShardMillis[shard] > loadShardMillis[slowest])
+                slowest = shard;
+        }
+        return "Snapshot load | shards=" + read + " bytes=" + loadBytes + " time=" + loadMillis + " ms" +
+                " avgShard=" + (read > 0 ? sum / read : 0) + " ms maxShard=" +
+                (read > 0 ? loadShardMillis[slowest] : 0) + " ms (shard " + slowest + ")";
+    }
+
+
+
+    /**
+     * @effects registra la durata (in us) della sospensione delle modifiche per il taglio dello
+     *          snapshot in corso.
+     */
+    public static synchronized void recordCut(long micros) {
+        lastCutMicros = micros;
+    }
+
+
+
+    /**
+     * @effects restituisce il nome del file della versione 'version' dello shard 'shard'.
+     */
+    private static String shardFileName(int shard, long version) {
+        return snapshotDirName + "/shard-" + shard + "-" + version;
+    }
+
+
+
+    /**
+     * @effects scrive il contenuto 'content' dello shard 'shard' (codificato tramite 'codec' nel
+     *          formato corrente) in un nuovo file (versione successiva a quella corrente), che
+     *          diventera' quello corrente con commit().
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    public static synchronized <T> void writeShard(int shard, T content, Codec<T> codec) throws IOException {
+        Files.createDirectories(Paths.get(snapshotDirName));
+        if (pending.isEmpty()) {
+            lastShards = 0;
+            lastBytes = 0;
+            lastMillis = System.currentTimeMillis();
+            lastFiles.clear();
+        }
+
+        long version = versions[shard] + 1;
+        Path file = Paths.get(shardFileName(shard, version));
+        long start = System.nanoTime();
+        long[] raw = new long[2];
+        long size;
+        if (format == Format.BINARY)
+            size = writeAtomically(file, channel -> {
+                SnapshotFormat.Writer writer = new SnapshotFormat.Writer(channel, compression);
+                codec.write(content, writer);
+                writer.close();
+                raw[0] = writer.getRawBytes();
+                raw[1] = System.nanoTime();
+            });
+        else
+            size = writeAtomically(file, content, codec.type(), codec.gson(), compression, raw);
+        lastBytes += size;
+        lastFiles.add(new long[]{shard, raw[0], size, raw[1] - start});
+        pending.put(shard, version);
+        lastShards++;
+    }
+
+
+
+    /**
+     * @effects scrive il contenuto 'content' (di tipo 'type') in formato JSON compatto tramite 'gson'
+     *          nel file 'target', compresso col codec 'codec': la scrittura avviene in streaming su un
+     *          file temporaneo che, dopo la force, sostituisce 'target' con un rename atomico.
+     *          Restituisce il numero di byte scritti e, se 'raw' non e' null, scrive in raw[0] il
+     *          numero di byte prima della compressione e in raw[1] il momento (in ns) di fine della
+     *          scrittura (prima della force).
+     * @throws IOException se avviene un errore di scrittura (in tal caso 'target' non viene modificato).
+     */
+    private static long writeAtomically(Path target, Object content, Type type, Gson gson,
+                                        Compression.Codec codec, long[] raw) throws IOException {
+        return writeAtomically(target, channel -> {
+            Compression.CountingOutputStream counter = new Compression.CountingOutputStream(SnapshotFormat.jsonOutput(
+                    Compression.unclosable(Channels.newOutputStream(channel)), codec));
+            JsonWriter writer = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(counter, StandardCharsets.UTF_8), BUFFER_SIZE));
+            gson.toJson(content, type, writer);
+            writer.close();
+            if (raw != null) {
+                raw[0] = counter.getCount();
+                raw[1] = System.nanoTime();
+            }
+        });
+    }
+
+
+
+    /*********************************************
+     ***** INTERFACCIA PRIVATA CHANNEL WRITER *****
+     *********************************************/
+    private interface ChannelWriter {
+        /**
+         * OVERVIEW: scrittura del contenuto di un file sul suo canale.
+         */
+        void write(FileChannel channel) throws IOException;
+    }
+
+
+
+    /**
+     * @effects scrive tramite 'writer' il file 'target': la scrittura avviene su un file temporaneo
+     *          che, dopo la force, sostituisce 'target' con un rename atomico. Restituisce il numero
+     *          di byte scritti.
+     * @throws IOException se avviene un errore di scrittura (in tal caso 'target' non viene modificato).
+     */
+    private static long writeAtomically(Path target, ChannelWriter writer) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        long size;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.write(channel);
+            channel.force(true);
+            size = channel.position();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return size;
+    }
+
+
+
+    /**
+     * @effects rende persistente il contenuto della directory degli snapshot (e quindi i rename
+     *          effettuati), dove il sistema operativo lo permette.
+     */
+    private static void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(Paths.get(snapshotDirName), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // non supportato su alcuni sistemi operativi
+        }
+    }
+
+
+
+    /**
+     * @effects rende correnti le versioni degli shard scritte con writeShard() sostituendo il
+     *          manifest in modo atomico ed elimina i file delle versioni precedenti. Il manifest
+     *          registra 'generation' come prima generazione del journal non inclusa nello snapshot,
+     *          'epoch' come epoca delle ricompense e 'cycle' come ultimo periodo applicato del worker
+     *          esterno al momento del taglio.
+     * @throws IOException se avviene un errore di scrittura (in tal caso lo snapshot precedente resta
+     *         valido e va invocato abort()).
+     */
+    public static synchronized void commit(long generation, int epoch, long cycle) throws IOException {
+        Files.createDirectories(Paths.get(snapshotDirName));
+        if (pending.isEmpty()) {
+            lastShards = 0;
+            lastBytes = 0;
+            lastMillis = System.currentTimeMillis();
+            lastFiles.clear();
+        }
+
+        // nuovo manifest
+        Manifest manifest = new Manifest();
+        manifest.shards = SHARDS;
+        manifest.journal = generation;
+        manifest.epoch = epoch;
+        manifest.cycle = cycle;
+        manifest.versions = Arrays.copyOf(versions, SHARDS);
+        for (Map.Entry<Integer,Long> shard : pending.entrySet())
+            manifest.versions[shard.getKey()] = shard.getValue();
+
+        // scrittura su file temporaneo e rename atomico (in caso di errore vedi abort())
+        writeAtomically(Paths.get(manifestFileName), manifest, Manifest.class, gson, Compression.NONE, null);
+        syncDirectory();
+
+        // eliminazione delle versioni precedenti (e delle versioni di shard non piu' esistenti)
+        long[] old = versions;
+        versions = manifest.versions;
+        for (int shard = 0; shard < old.length; shard++)
+            if (old[shard] != 0 && (shard >= SHARDS || old[shard] != versions[shard]))
+                Files.deleteIfExists(Paths.get(shardFileName(shard, old[shard])));
+        pending.clear();
+        journalGeneration = generation;
+        SnapshotStore.epoch = epoch;
+        rewardCycle = cycle;
+        lastMillis = System.currentTimeMillis() - lastMillis;
+    }
+
+
+
+    /**
+     * @effects scarta le versioni degli shard scritte ma non registrate nel manifest (snapshot
+     *          fallito) e segna i relativi shard come sporchi.
+     */
+    public static synchronized void abort() {
+        for (Map.Entry<Integer,Long> shard : pending.entrySet()) {
+            markDirty(shard.getKey());
+            try {
+                Files.deleteIfExists(Paths.get(shardFileName(shard.getKey(), shard.getValue())));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        pending.clear();
+    }
+
+
+
+    /**
+     * @effects restituisce una stringa con le metriche dell'ultimo snapshot.
+     */
+    public static synchronized String getStats() {
+        long raw = 0, nanos = 0;
+        for (long[] file : lastFiles) {
+            raw += file[1];
+            nanos += file[3];
+        }
+        return "Snapshot | format=" + format + " compression=" + Compression.describe(compression) +
+                " shards written=" + lastShards + "/" + SHARDS + " size=" + lastBytes + " bytes" +
+                String.format(Locale.ROOT, " (raw=%d ratio=%.2f %.1f MB/s)", raw, ratio(raw, lastBytes), mbPerSecond(raw, nanos)) +
+                " time=" + lastMillis + " ms cut=" + lastCutMicros + " us load=" + loadMillis + " ms (" +
+                loadBytes + " bytes)";
+    }
+
+
+
+    /**
+     * @effects restituisce una stringa con le metriche di compressione di ogni file scritto
+     *          dall'ultimo snapshot: shard, byte scritti, rapporto di compressione e throughput
+     *          (byte non compressi codificati, compressi e scritti al secondo, force esclusa).
+     */
+    public static synchronized String getFileStats() {
+        StringBuilder stats = new StringBuilder("Snapshot files |");
+        for (long[] file : lastFiles)
+            stats.append(String.format(Locale.ROOT, " shard-%d=%d bytes/%.2fx/%.1f MB/s",
+                    file[0], file[2], ratio(file[1], file[2]), mbPerSecond(file[1], file[3])));
+        return stats.toString();
+    }
+
+
+
+    /**
+     * @effects restituisce il rapporto di compressione tra 'raw' byte non compressi e 'stored' byte scritti.
+     */
+    private static double ratio(long raw, long stored) {
+        return stored > 0 ? (double) raw / stored : 0;
+    }
+
+
+
+    /**
+     * @effects restituisce il throughput (in MB/s) di 'bytes' byte elaborati in 'nanos' ns.
+     */
+    private static double mbPerSecond(long bytes, long nanos) {
+        return nanos > 0 ? bytes / 1048576.0 / (nanos / 1e9) : 0;
+    }
+}
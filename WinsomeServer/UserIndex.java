@@ -0,0 +1,93 @@
+package WinsomeServer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class UserIndex {
+    /**
+     * OVERVIEW: classe statica che associa ad ogni username un id intero denso (1, 2, 3, ...)
+     *           in modo da poter rappresentare gli utenti nelle strutture dati compatte (es: insiemi
+     *           di votanti dei post) tramite interi primitivi invece che tramite stringhe.
+     *           Gli id vengono memorizzati insieme agli utenti registrati e restano quindi stabili
+     *           tra un riavvio e l'altro del server.
+     */
+
+    /** ids(username) = id  t.c. [forall u1 != u2 . ids(u1) != ids(u2)] **/
+    private static final Map<String,Integer> ids = new ConcurrentHashMap<>();
+
+    /** names[id] = username  (names[0] non e' usato) **/
+    private static volatile String[] names = new String[64];
+
+    /** massimo id assegnato **/
+    private static int maxId = 0;
+
+
+
+    /**
+     * @effects restituisce l'id dell'utente 'username' se gia' presente, altrimenti gli assegna
+     *          il primo id libero e lo restituisce.
+     * @param username nome dell'utente.
+     *                 [username != null]
+     */
+    protected static synchronized int register(String username) {
+        Integer id = ids.get(username);
+        if (id != null)
+            return id;
+        put(username, maxId+1);
+        return maxId;
+    }
+
+
+
+    /**
+     * @effects associa l'id 'id' all'utente 'username' (usato al caricamento dei dati memorizzati).
+     * @param username nome dell'utente.
+     *                 [username != null]
+     * @param id id dell'utente.
+     *           [id > 0]
+     */
+    protected static synchronized void put(String username, int id) {
+        if (username == null || id <= 0)
+            return;
+
+        // caso di array dei nomi da ingrandire
+        String[] current = names;
+        if (id >= current.length)
+            current = Arrays.copyOf(current, Math.max(id+1, current.length*2));
+        current[id] = username;
+        names = current;
+
+        ids.put(username, id);
+        maxId = Math.max(maxId, id);
+    }
+
+
+
+    /**
+     * @effects restituisce l'id dell'utente 'username' oppure 0 se l'utente non ha un id.
+     */
+    public static int idOf(String username) {
+        Integer id = username != null ? ids.get(username) : null;
+        return id != null ? id : 0;
+    }
+
+
+
+    /**
+     * @effects restituisce l'username dell'utente con id 'id' oppure null se non presente.
+     */
+    public static String nameOf(int id) {
+        String[] current = names;
+        return (id > 0 && id < current.length) ? current[id] : null;
+    }
+
+
+
+    /**
+     * @effects restituisce il massimo id assegnato (0 se nessun utente ha un id).
+     */
+    public static synchronized int maxId() {
+        return maxId;
+    }
+}
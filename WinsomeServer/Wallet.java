@@ -0,0 +1,366 @@
+package WinsomeServer;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Wallet {
+    /**
+     * OVERVIEW: classe che modella il portafogli (ledger) dell'utente 'username'. Gli importi sono
+     *           memorizzati in virgola fissa come long in micro-wincoin (1 wincoin = MICROS) e
+     *           convertiti in testo solo in visualizzazione (vedi format()).
+     *           Il saldo e' un contatore atomico e la history delle transazioni e' colonnare: blocchi
+     *           (chunk) di CHUNK_SIZE transazioni con un array di primitivi per il momento (ms) e uno
+     *           per l'importo (piu' un array di note creato solo se necessario).
+     *           Le transazioni vengono solo aggiunte: credit() e' serializzato sul monitor del wallet
+     *           e pubblica la nuova transazione con una scrittura volatile della dimensione, percio' i
+     *           lettori (visualizzazione e snapshot) leggono le prime size() transazioni senza lock e
+     *           senza bloccare gli accrediti. Una copia (vedi Wallet(Wallet)) condivide i chunk con
+     *           l'originale e ne memorizza solo dimensione e saldo.
+     */
+
+    /** micro-wincoin in un wincoin **/
+    public static final long MICROS = 1000000;
+
+    /** numero di transazioni di un chunk della history (potenza di 2) **/
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // username utente
+    public final String username;
+    // saldo in micro-wincoin
+    private final AtomicLong balance;
+    // chunk della history (chunks[i] contiene le transazioni da i*CHUNK_SIZE)
+    private volatile Chunk[] chunks;
+    // numero di transazioni pubblicate
+    private volatile int size;
+
+
+
+    /*********************************
+     ***** CLASSE PRIVATA CHUNK *****
+     *********************************/
+    private static class Chunk {
+        /**
+         * OVERVIEW: classe privata che contiene CHUNK_SIZE transazioni della history in colonne.
+         */
+        final long[] times = new long[CHUNK_SIZE];
+        final long[] amounts = new long[CHUNK_SIZE];
+        // note delle transazioni (null se nessuna transazione del chunk ha una nota)
+        String[] notes = null;
+    }
+
+
+
+    /**
+     * @effects costruttore che crea il portafogli vuoto dell'utente 'username'.
+     * @param username stringa identificativa dell'utente che possiede il portafogli.
+     *                 [username != null]
+     */
+    public Wallet(String username) {
+        if (username == null)
+            throw new NullPointerException();
+        this.username = username;
+        balance = new AtomicLong();
+        chunks = new Chunk[0];
+        size = 0;
+    }
+
+
+
+    /**
+     * @effects costruttore che crea una copia del portafogli 'w' (usata dagli snapshot) in O(1): la
+     *          copia condivide i chunk di 'w' ma vede solo le transazioni gia' presenti.
+     * @param w portafogli da copiare.
+     *          [w != null]
+     */
+    public Wallet(Wallet w) {
+        username = w.username;
+        synchronized (w) {
+            balance = new AtomicLong(w.balance.get());
+            chunks = w.chunks;
+            size = w.size;
+        }
+    }
+
+
+
+    /**
+     * @effects aggiunge la transazione di 'amount' micro-wincoin avvenuta al momento 'time' (in ms)
+     *          con nota 'note' (null o vuota se assente) e aggiorna il saldo.
+     */
+    public synchronized void credit(long time, long amount, String note) {
+        int i = size;
+        int c = i >>> CHUNK_SHIFT;
+
+        // caso di history piena: aggiunta di un chunk
+        Chunk[] current = chunks;
+        if (c == current.length) {
+            current = Arrays.copyOf(current, Math.max(4, c * 2));
+            chunks = current;
+        }
+        if (current[c] == null)
+            current[c] = new Chunk();
+
+        // scrittura della transazione nelle colonne e pubblicazione
+        Chunk chunk = current[c];
+        int j = i & (CHUNK_SIZE - 1);
+        chunk.times[j] = time;
+        chunk.amounts[j] = amount;
+        if (note != null && !note.isEmpty()) {
+            if (chunk.notes == null)
+                chunk.notes = new String[CHUNK_SIZE];
+            chunk.notes[j] = note;
+        }
+        size = i + 1;
+        balance.addAndGet(amount);
+    }
+
+
+
+    /**
+     * @effects restituisce il saldo in micro-wincoin.
+     */
+    public long getBalance() {
+        return balance.get();
+    }
+
+
+
+    /**
+     * @effects restituisce il numero di transazioni della history.
+     */
+    public int size() {
+        return size;
+    }
+
+
+
+    /**
+     * @effects restituisce il chunk che contiene la transazione 'i'.
+     *          [0 <= i < size()]
+     */
+    private Chunk chunkOf(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException();
+        return chunks[i >>> CHUNK_SHIFT];
+    }
+
+
+
+    /**
+     * @effects restituisce il momento (in ms) della transazione 'i' (0 = la piu' vecchia).
+     *          [0 <= i < size()]
+     */
+    public long timeAt(int i) {
+        return chunkOf(i).times[i & (CHUNK_SIZE - 1)];
+    }
+
+
+
+    /**
+     * @effects restituisce l'importo (in micro-wincoin) della transazione 'i'.
+     *          [0 <= i < size()]
+     */
+    public long amountAt(int i) {
+        return chunkOf(i).amounts[i & (CHUNK_SIZE - 1)];
+    }
+
+
+
+    /**
+     * @effects restituisce la nota della transazione 'i' (stringa vuota se assente).
+     *          [0 <= i < size()]
+     */
+    public String noteAt(int i) {
+        String[] notes = chunkOf(i).notes;
+        String note = notes != null ? notes[i & (CHUNK_SIZE - 1)] : null;
+        return note != null ? note : "";
+    }
+
+
+
+    /**
+     * @effects restituisce l'importo 'value' in wincoin convertito in micro-wincoin (arrotondato).
+     */
+    public static long toMicros(double value) {
+        return Math.round(value * MICROS);
+    }
+
+
+
+    /**
+     * @effects restituisce il testo dell'importo 'micros' in wincoin (es: 1354519 -> "1.354519").
+     */
+    public static String format(long micros) {
+        StringBuilder sb = new StringBuilder();
+        if (micros < 0) {
+            sb.append('-');
+            micros = -micros;
+        }
+        String fraction = Long.toString(MICROS + micros % MICROS).substring(1);
+        return sb.append(micros / MICROS).append('.').append(fraction).toString();
+    }
+
+
+
+    /**
+     * @effects restituisce il portafogli dell'utente 'username' con saldo 'wincoins' e history
+     *          'history' nel formato testuale delle versioni precedenti ("<timestamp>: +<valore> $<nota>").
+     *          Le transazioni in un formato non riconosciuto vengono ignorate.
+     */
+    static Wallet fromLegacy(String username, double wincoins, List<String> history) {
+        Wallet w = new Wallet(username);
+        for (String s : history) {
+            int sign = s.indexOf(": +");
+            int end = sign < 0 ? -1 : s.indexOf(" $", sign);
+            try {
+                if (end < 0)
+                    throw new IllegalArgumentException(s);
+                w.credit(Timestamp.valueOf(s.substring(0, sign)).getTime(),
+                        toMicros(Double.parseDouble(s.substring(sign + 3, end))), s.substring(end + 2));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Wallet Error: bad transaction \"" + s + "\" of " + username);
+            }
+        }
+        w.balance.set(toMicros(wincoins));
+        return w;
+    }
+
+
+
+    /**
+     * @effects scrive il portafogli sull'output 'out' nel formato binario degli snapshot (username
+     *          come indice nella tabella delle stringhe di 'strings'):
+     *          [username][saldo][n][time, importo, nota]*n
+     * @throws IOException se avviene un errore di scrittura.
+     */
+    void writeTo(DataOutput out, SnapshotFormat.Writer strings) throws IOException {
+        int n = size;
+        out.writeInt(strings.string(username));
+        out.writeLong(balance.get());
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeLong(timeAt(i));
+            out.writeLong(amountAt(i));
+            out.writeUTF(noteAt(i));
+        }
+    }
+
+
+
+    /**
+     * @effects legge dall'input 'in' un portafogli scritto da writeTo() e lo restituisce.
+     * @throws IOException se avviene un errore di lettura.
+     */
+    static Wallet readFrom(DataInput in, SnapshotFormat.Reader strings) throws IOException {
+        Wallet w = new Wallet(strings.string(in.readInt()));
+        long balance = in.readLong();
+        for (int n = in.readInt(); n > 0; n--)
+            w.credit(in.readLong(), in.readLong(), in.readUTF());
+        w.balance.set(balance);
+        return w;
+    }
+
+
+
+
+    /********************************
+     ***** CLASSE JSON ADAPTER *****
+     ********************************/
+    static class JsonAdapter extends TypeAdapter<Wallet> {
+        /**
+         * OVERVIEW: adapter Gson (senza reflection) che codifica un portafogli come
+         *           {"u":username,"b":saldo,"t":[time],"a":[importi],"n":[note]} (importi in
+         *           micro-wincoin, note omesse se nessuna transazione ha una nota).
+         *           In lettura sono accettati anche i portafogli delle versioni precedenti
+         *           ({"u","w","wb","h","hb"} o i nomi dei campi scritti tramite reflection).
+         */
+        public void write(JsonWriter out, Wallet w) throws IOException {
+            if (w == null) {
+                out.nullValue();
+                return;
+            }
+            int n = w.size;
+            boolean notes = false;
+            out.beginObject();
+            out.name("u").value(w.username);
+            out.name("b").value(w.balance.get());
+            out.name("t").beginArray();
+            for (int i = 0; i < n; i++)
+                out.value(w.timeAt(i));
+            out.endArray();
+            out.name("a").beginArray();
+            for (int i = 0; i < n; i++) {
+                out.value(w.amountAt(i));
+                notes |= !w.noteAt(i).isEmpty();
+            }
+            out.endArray();
+            if (notes) {
+                out.name("n").beginArray();
+                for (int i = 0; i < n; i++)
+                    out.value(w.noteAt(i));
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        public Wallet read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String username = null;
+            long balance = 0;
+            double wincoins = 0;
+            boolean legacy = false;
+            List<Long> times = new ArrayList<>(), amounts = new ArrayList<>();
+            List<String> notes = new ArrayList<>(), history = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "u": case "username": username = in.nextString(); break;
+                    case "b": balance = in.nextLong(); break;
+                    case "t": in.beginArray(); while (in.hasNext()) times.add(in.nextLong()); in.endArray(); break;
+                    case "a": in.beginArray(); while (in.hasNext()) amounts.add(in.nextLong()); in.endArray(); break;
+                    case "n": in.beginArray(); while (in.hasNext()) notes.add(in.nextString()); in.endArray(); break;
+                    case "w": case "wincoins": wincoins = in.nextDouble(); legacy = true; break;
+                    case "h": case "history": readStrings(in, history); legacy = true; break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            if (legacy)
+                return fromLegacy(username, wincoins, history);
+            Wallet w = new Wallet(username);
+            for (int i = 0; i < times.size() && i < amounts.size(); i++)
+                w.credit(times.get(i), amounts.get(i), i < notes.size() ? notes.get(i) : null);
+            w.balance.set(balance);
+            return w;
+        }
+
+        /**
+         * @effects legge un array JSON di stringhe (o null) aggiungendone gli elementi a 'strings'.
+         */
+        private static void readStrings(JsonReader in, List<String> strings) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return;
+            }
+            in.beginArray();
+            while (in.hasNext())
+                strings.add(in.nextString());
+            in.endArray();
+        }
+    }
+}
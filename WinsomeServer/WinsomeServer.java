@@ -3,19 +3,24 @@ package WinsomeServer;
 import WinsomeClient.WinsomeClientInterface;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import javax.naming.LimitExceededException;
 import java.io.*;
 import java.lang.reflect.Type;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.rmi.RemoteException;
 import java.rmi.server.RemoteObject;
 import java.security.InvalidParameterException;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class WinsomeServer extends RemoteObject implements WinsomeServerInterface {
     /**
@@ -31,8 +36,20 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
     /***** STRUTTURE DATI CONDIVISE *****/
-    /** postMap(username) = postsSet = {(ID1,Post1),...,(IDn,Postn)} t.c. [forall IDi != IDj . Posti != Postj] **/
-    private static final Map<String, Map<String,Post>> postMap = new ConcurrentHashMap<>();
+    /** postMap(username) = postsList = [(ID1,Post1),...,(IDn,Postn)] t.c. [forall i < j . IDi < IDj] **/
+    private static final Map<String,AuthorPosts> postMap = new ConcurrentHashMap<>();
+
+    /** numero di post restituiti di default da una pagina del blog **/
+    private static final int BLOG_PAGE_SIZE = 20;
+
+    /** numero di transazioni restituite di default da una pagina del wallet **/
+    private static final int WALLET_PAGE_SIZE = 20;
+
+    /** numero di commenti restituiti di default da "show post" **/
+    private static final int COMMENTS_PAGE_SIZE = 20;
+
+    /** numero massimo di elementi (post, commenti o transazioni) restituiti da una pagina **/
+    private static final int MAX_PAGE_SIZE = 50 * BLOG_PAGE_SIZE;
 
     /** followersMap(username) = {follower1,...,followerN} t.c. [forall i != j . followeri != followerj] **/
     private static final Map<String, Set<String>> followersMap = new HashMap<>();
@@ -49,8 +66,11 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
     /** registeredUsers = {(username1,password1), ... ,(usernameN,passwordN)} **/
     private static final List<User> registeredUsers = new LinkedList<>();
 
-    /** walletMap(username) = <total_money, [transaction1,...,transactionN]> **/
-    private static final Map<String,Wallet> walletMap = new HashMap<>();
+    /** usersMap(username) = utente registrato con nome 'username' **/
+    private static final Map<String,User> usersMap = new ConcurrentHashMap<>();
+
+    /** walletMap(username) = <total_money, [transaction1,...,transactionN]> (vedi Wallet) **/
+    private static final Map<String,Wallet> walletMap = new ConcurrentHashMap<>();
 
     /** loggedMap(username) = Bool      t.c. Bool appartiene a {true,false} **/
     private static final Map<String,Boolean> loggedMap = new HashMap<>();
@@ -58,7 +78,8 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
     /** oggetto usato per invocare i metodi utili al calcolo delle ricompense **/
     private static final PeriodicRewardsTask periodicRewards = new PeriodicRewardsTask();
 
-    /** nome dei file usati per la memorizzazione dei dati **/
+    /** nome dei file usati per la memorizzazione dei dati nelle versioni precedenti del server
+     *  (letti solo in assenza di uno snapshot per shard, vedi SnapshotStore) **/
     private static final String usersFileName = "WinsomeServer/Database/registeredUsers";
     private static final String followersFileName = "WinsomeServer/Database/usersFollowers";
     private static final String followsFileName = "WinsomeServer/Database/usersFollows";
@@ -66,8 +87,30 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
     private static final String tagsFileName = "WinsomeServer/Database/usersTags";
     private static final String walletsFileName = "WinsomeServer/Database/usersWallet";
 
-    /** contatore di oggetti di tipo WinsomeServer **/
-    private static int counter = 0;
+    /** indica se lo stato e' gia' stato caricato da disco (vedi bootstrap()) **/
+    private static volatile boolean bootstrapped = false;
+
+    /** lock che coordina le modifiche allo stato (lock in lettura: modifica e scrittura del record
+     *  nel journal) con il taglio consistente dello stato di uno snapshot (lock in scrittura, vedi Cut) **/
+    private static final ReentrantReadWriteLock persistenceLock = new ReentrantReadWriteLock();
+
+    /** taglio dello snapshot in corso (null se nessuno snapshot e' in corso) **/
+    private static volatile Cut cut = null;
+
+    /** numero di sequenza dell'ultimo periodo calcolato dal worker esterno e applicato ai wallet
+     *  (0 se nessuno, vedi addTransactionsOnWallets()) **/
+    private static volatile long rewardCycle = 0;
+
+    /** oggetto Gson (thread-safe) condiviso per la lettura e la scrittura in formato JSON, con gli
+     *  adapter (senza reflection) di utenti, wallet e post **/
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(User.class, new UserAdapter())
+            .registerTypeAdapter(Wallet.class, new Wallet.JsonAdapter())
+            .registerTypeAdapter(Post.class, new Post.JsonAdapter())
+            .create();
+
+    /** codec degli shard dello snapshot **/
+    private static final ShardCodec shardCodec = new ShardCodec();
 
     /***** STRUTTURE DATI LOCALI *****/
     // oggetto che permette di inviare messaggi di testo
@@ -83,7 +126,7 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
     /*******************************
      ***** CLASSE PRIVATA USER *****
      *******************************/
-    private class User {
+    private static class User {
         /**
          * OVERVIEW: classe privata immutable che modella un utente identificato da username e password.
          */
@@ -91,16 +134,361 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         public final String username;
         // password dell'utente
         public final String password;
+        // id intero denso dell'utente (vedi UserIndex)
+        public final int id;
 
 
         /**
-         * @effects inizializza i campi 'username' e 'password' della classe.
+         * @effects inizializza i campi 'username', 'password' e 'id' della classe.
          * @param username stringa univoca identificativa dell'utente.
          * @param password stringa che permette all'utente la registrazione e il login.
+         * @param id id intero denso dell'utente (0 se non ancora assegnato).
          */
-        public User(String username, String password) {
+        public User(String username, String password, int id) {
             this.username = username;
             this.password = password;
+            this.id = id;
+        }
+    }
+
+
+
+
+    /***************************************
+     ***** CLASSE PRIVATA USER ADAPTER *****
+     ***************************************/
+    private static class UserAdapter extends TypeAdapter<User> {
+        /**
+         * OVERVIEW: adapter Gson (senza reflection) che codifica un utente come {"u","p","id"}.
+         *           In lettura sono accettati anche i nomi dei campi delle versioni precedenti.
+         */
+        public void write(JsonWriter out, User u) throws IOException {
+            if (u == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("u").value(u.username);
+            out.name("p").value(u.password);
+            out.name("id").value(u.id);
+            out.endObject();
+        }
+
+        public User read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String username = null, password = null;
+            int id = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "u": case "username": username = in.nextString(); break;
+                    case "p": case "password": password = in.nextString(); break;
+                    case "id": id = in.nextInt(); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return new User(username, password, id);
+        }
+    }
+
+
+
+
+    /*******************************
+     ***** CLASSE PRIVATA SHARD *****
+     *******************************/
+    private static class Shard {
+        /**
+         * OVERVIEW: classe privata che contiene i dati degli utenti di uno shard (vedi SnapshotStore)
+         *           e che viene memorizzata come file dello snapshot.
+         */
+        final List<User> users = new ArrayList<>();
+        final Map<String,Set<String>> followers = new HashMap<>();
+        final Map<String,Set<String>> follows = new HashMap<>();
+        final Map<String,List<Post>> posts = new HashMap<>();
+        final Map<String,Wallet> wallets = new HashMap<>();
+        final Map<String,List<String>> tags = new HashMap<>();
+        // epoca delle ricompense al momento del taglio (0 nelle versioni precedenti)
+        int epoch;
+    }
+
+
+
+
+    /*************************************
+     ***** CLASSE PRIVATA SHARD CODEC *****
+     *************************************/
+    private static class ShardCodec implements SnapshotStore.Codec<Shard> {
+        /**
+         * OVERVIEW: classe privata che codifica e decodifica uno shard nel formato binario degli
+         *           snapshot (vedi SnapshotFormat), con una sezione per tipo di dato. Username e tag
+         *           sono scritti come indici nella tabella delle stringhe.
+         */
+        // id delle sezioni
+        private static final byte USERS = 1;
+        private static final byte FOLLOWERS = 2;
+        private static final byte FOLLOWS = 3;
+        private static final byte POSTS = 4;
+        private static final byte WALLETS = 5;
+        private static final byte TAGS = 6;
+        private static final byte LEDGER = 7;
+        private static final byte EPOCH = 8;
+
+        public Type type() {
+            return Shard.class;
+        }
+
+        public Gson gson() {
+            return gson;
+        }
+
+        public void write(Shard s, SnapshotFormat.Writer w) throws IOException {
+            DataOutputStream out = w.section(EPOCH);
+            out.writeInt(s.epoch);
+
+            out = w.section(USERS);
+            out.writeInt(s.users.size());
+            for (User u : s.users) {
+                out.writeInt(w.string(u.username));
+                out.writeUTF(u.password);
+                out.writeInt(u.id);
+            }
+            writeSets(w, FOLLOWERS, s.followers);
+            writeSets(w, FOLLOWS, s.follows);
+
+            out = w.section(POSTS);
+            out.writeInt(s.posts.size());
+            for (Map.Entry<String,List<Post>> posts : s.posts.entrySet()) {
+                out.writeInt(w.string(posts.getKey()));
+                out.writeInt(posts.getValue().size());
+                for (Post p : posts.getValue())
+                    p.writeTo(out, w);
+            }
+
+            out = w.section(LEDGER);
+            out.writeInt(s.wallets.size());
+            for (Wallet wallet : s.wallets.values())
+                wallet.writeTo(out, w);
+
+            out = w.section(TAGS);
+            out.writeInt(s.tags.size());
+            for (Map.Entry<String,List<String>> tags : s.tags.entrySet()) {
+                out.writeInt(w.string(tags.getKey()));
+                out.writeByte(tags.getValue().size());
+                for (String tag : tags.getValue())
+                    out.writeInt(w.string(tag));
+            }
+        }
+
+        public Shard read(SnapshotFormat.Reader r) throws IOException {
+            Shard s = new Shard();
+            DataInputStream in = r.section(EPOCH);
+            s.epoch = in != null ? in.readInt() : 0;
+
+            in = r.section(USERS);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--)
+                s.users.add(new User(r.string(in.readInt()), in.readUTF(), in.readInt()));
+            readSets(r, FOLLOWERS, s.followers);
+            readSets(r, FOLLOWS, s.follows);
+
+            in = r.section(POSTS);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--) {
+                String author = r.string(in.readInt());
+                List<Post> posts = new ArrayList<>();
+                for (int m = in.readInt(); m > 0; m--)
+                    posts.add(Post.readFrom(in, r));
+                s.posts.put(author, posts);
+            }
+
+            in = r.section(LEDGER);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--) {
+                Wallet wallet = Wallet.readFrom(in, r);
+                s.wallets.put(wallet.username, wallet);
+            }
+
+            // portafogli delle versioni precedenti (saldo double e history testuale)
+            in = r.section(WALLETS);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--) {
+                String username = r.string(in.readInt());
+                double wincoins = in.readDouble();
+                in.readDouble();
+                List<String> history = new ArrayList<>();
+                for (int m = in.readInt(); m > 0; m--)
+                    history.add(in.readUTF());
+                for (int m = in.readInt(); m > 0; m--)
+                    in.readUTF();
+                s.wallets.put(username, Wallet.fromLegacy(username, wincoins, history));
+            }
+
+            in = r.section(TAGS);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--) {
+                String username = r.string(in.readInt());
+                List<String> tags = new LinkedList<>();
+                for (int m = in.readByte(); m > 0; m--)
+                    tags.add(r.string(in.readInt()));
+                s.tags.put(username, tags);
+            }
+            return s;
+        }
+
+        /**
+         * @effects scrive nella sezione 'id' gli insiemi di username 'sets' (followers o follows).
+         */
+        private static void writeSets(SnapshotFormat.Writer w, byte id, Map<String,Set<String>> sets) throws IOException {
+            DataOutputStream out = w.section(id);
+            out.writeInt(sets.size());
+            for (Map.Entry<String,Set<String>> set : sets.entrySet()) {
+                out.writeInt(w.string(set.getKey()));
+                out.writeInt(set.getValue().size());
+                for (String username : set.getValue())
+                    out.writeInt(w.string(username));
+            }
+        }
+
+        /**
+         * @effects legge dalla sezione 'id' gli insiemi di username scritti da writeSets() in 'sets'.
+         */
+        private static void readSets(SnapshotFormat.Reader r, byte id, Map<String,Set<String>> sets) throws IOException {
+            DataInputStream in = r.section(id);
+            for (int n = in != null ? in.readInt() : 0; n > 0; n--) {
+                String username = r.string(in.readInt());
+                Set<String> set = new HashSet<>();
+                for (int m = in.readInt(); m > 0; m--)
+                    set.add(r.string(in.readInt()));
+                sets.put(username, set);
+            }
+        }
+    }
+
+
+
+    /************************************
+     ***** CLASSE PRIVATA USER IMAGE *****
+     ************************************/
+    private static class UserImage {
+        /**
+         * OVERVIEW: classe privata che contiene la copia dei dati di un utente (registrazione,
+         *           followers, following, post, wallet e tag) al momento del taglio di uno snapshot.
+         *           I post sono copie dei soli metadati (vedi Post.snapshot()).
+         */
+        // utente (null se non ancora registrato al momento del taglio)
+        final User user;
+        Set<String> followers = null;
+        Set<String> follows = null;
+        List<Post> posts = null;
+        Wallet wallet = null;
+        List<String> tags = null;
+        // indica se la scrittura su disco del body di almeno un post non e' andata a buon fine
+        boolean failed = false;
+
+
+        /**
+         * @effects crea la copia dei dati correnti dell'utente 'username' per il taglio avvenuto
+         *          nell'epoca delle ricompense 'epoch'.
+         */
+        UserImage(String username, int epoch) {
+            user = usersMap.get(username);
+            if (user == null)
+                return;
+            synchronized (followersMap) {
+                if (followersMap.containsKey(username))
+                    followers = new HashSet<>(followersMap.get(username));
+            }
+            synchronized (followsMap) {
+                if (followsMap.containsKey(username))
+                    follows = new HashSet<>(followsMap.get(username));
+            }
+            AuthorPosts authorPosts = postMap.get(username);
+            if (authorPosts != null) {
+                posts = new ArrayList<>(authorPosts.size());
+                authorPosts.forEach(p -> {
+                    try {
+                        posts.add(p.snapshot(epoch));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failed = true;
+                    }
+                });
+            }
+            Wallet w = walletMap.get(username);
+            if (w != null)
+                wallet = new Wallet(w);
+            synchronized (tagsMap) {
+                if (tagsMap.containsKey(username))
+                    tags = new ArrayList<>(tagsMap.get(username));
+            }
+        }
+    }
+
+
+
+
+    /*****************************
+     ***** CLASSE PRIVATA CUT *****
+     *****************************/
+    private static class Cut {
+        /**
+         * OVERVIEW: classe privata che rappresenta il taglio consistente dello stato su cui viene
+         *           scritto uno snapshot. Il taglio viene creato in O(1) col lock in scrittura
+         *           'persistenceLock' (nessuna modifica in corso) e non copia nessun dato: l'immagine
+         *           dei dati di un utente (UserImage) viene creata dal primo tra il thread dello
+         *           snapshot, che la serializza, e il primo thread che modifica i dati dell'utente
+         *           dopo il taglio (copy-on-write, vedi preserve()). L'immagine contiene quindi sempre
+         *           lo stato dell'utente al momento del taglio, che corrisponde a tutti e soli i record
+         *           del journal precedenti alla generazione 'generation'.
+         */
+        // shard da scrivere (sporchi al momento del taglio) e non ancora scritti
+        final Set<Integer> shards = ConcurrentHashMap.newKeySet();
+        // id massimo degli utenti al momento del taglio
+        final int maxId;
+        // prima generazione del journal successiva al taglio
+        final long generation;
+        // epoca delle ricompense al momento del taglio
+        final int epoch;
+        // ultimo periodo applicato del worker esterno al momento del taglio
+        final long cycle;
+        // immagini degli utenti degli shard ancora da scrivere
+        final Map<String,UserImage> images = new ConcurrentHashMap<>();
+
+
+        /**
+         * @effects crea il taglio degli shard 'dirtyShards' con id massimo degli utenti 'maxId',
+         *          generazione del journal successiva 'generation', epoca delle ricompense 'epoch' e
+         *          ultimo periodo applicato del worker esterno 'cycle'.
+         */
+        Cut(int[] dirtyShards, int maxId, long generation, int epoch, long cycle) {
+            for (int shard : dirtyShards)
+                shards.add(shard);
+            this.maxId = maxId;
+            this.generation = generation;
+            this.epoch = epoch;
+            this.cycle = cycle;
+        }
+
+
+        /**
+         * @effects restituisce l'immagine dell'utente 'username' al momento del taglio (creandola se
+         *          assente) oppure null se lo shard dell'utente non e' da scrivere.
+         */
+        UserImage preserve(String username) {
+            int id = UserIndex.idOf(username);
+            if (id <= 0 || id > maxId || !shards.contains(id % SnapshotStore.SHARDS))
+                return null;
+            return images.computeIfAbsent(username, u -> new UserImage(u, epoch));
+        }
+
+
+        /**
+         * @effects segna lo shard 'shard' come scritto e rilascia le immagini dei suoi utenti.
+         */
+        void release(int shard, List<String> usernames) {
+            shards.remove(shard);
+            for (String username : usernames)
+                images.remove(username);
         }
     }
 
@@ -108,93 +496,197 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
     /**
-     * @effects costruttore che inizializza i campi privati della classe e recupera (a ogni riavvio)
-     *          le informazioni degli utenti (registrazioni, followers, following, wallet, tags e
-     *          post condivisi).
+     * @effects costruttore che inizializza i campi privati della classe (una sessione). Lo stato del
+     *          social network viene caricato una sola volta da bootstrap(): se non e' ancora stato
+     *          caricato (es. programmi diversi da ServerMain) viene caricato dal primo costruttore.
      */
     public WinsomeServer() {
         super();
+        if (!bootstrapped)
+            bootstrap(ForkJoinPool.commonPool());
+    }
 
-        // incremento contatore di oggetti Winsome Server
-        counter++;
 
-        // caso in cui non e' il primo oggetto della classe
-        if (counter != 1)
-            return;
 
-        // oggetto Gson per la lettura dei file in formato JSON
-        Gson gson = new Gson();
 
-        // recupero dati utenti registrati
-        try (BufferedReader reader = new BufferedReader(new FileReader(usersFileName))) {
-            Type ListUsersType = new TypeToken<List<User>>(){}.getType();
-            List<User> users = gson.fromJson(reader, ListUsersType);
-            if (users != null)
-                synchronized (registeredUsers) { registeredUsers.addAll(users); }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * @effects carica (una sola volta, le invocazioni successive non hanno effetto) lo stato del
+     *          social network: registrazioni, followers, following, wallet, tags e post condivisi.
+     *          I file (shard dello snapshot o file della versione precedente del server) vengono
+     *          letti e decodificati in parallelo sul pool 'pool' e le durate di caricamento vengono
+     *          stampate. Infine vengono riapplicate le modifiche registrate nel journal.
+     * @param pool pool su cui leggere i file.
+     *             [pool != null]
+     */
+    public static synchronized void bootstrap(ForkJoinPool pool) {
+        if (bootstrapped)
+            return;
+        long start = System.currentTimeMillis();
+
+        // recupero dello stato dall'ultimo snapshot (per shard se presente il manifest, altrimenti
+        // dai file della versione precedente del server)
+        if (SnapshotStore.hasManifest()) {
+            SnapshotStore.loadShards(shardCodec, WinsomeServer::loadShard, pool);
+            System.out.println("Bootstrap | " + SnapshotStore.getLoadStats());
+        } else {
+            loadLegacyFiles(pool);
         }
 
-        // recupero dati followers
-        try (BufferedReader reader = new BufferedReader(new FileReader(followersFileName))) {
-            Type MapSetStringType = new TypeToken<Map<String,Set<String>>>(){}.getType();
-            Map<String,Set<String>> followers = gson.fromJson(reader, MapSetStringType);
-            if (followers != null)
-                synchronized (followersMap) { followersMap.putAll(followers); }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // gestione dei body dei post da parte del PostStore (caricati da disco al primo accesso)
+        for (AuthorPosts usersPosts : postMap.values())
+            usersPosts.forEach(PostStore::register);
 
-        // recupero dati following
-        try (BufferedReader reader = new BufferedReader(new FileReader(followsFileName))) {
-            Type MapSetStringType = new TypeToken<Map<String,Set<String>>>(){}.getType();
-            Map<String,Set<String>> following = gson.fromJson(reader, MapSetStringType);
-            if (following != null)
-                synchronized (followsMap) { followsMap.putAll(following); }
+        // recupero del maggiore id dei post precedentemente inseriti
+        long maxId = 0;
+        for (AuthorPosts usersPosts : postMap.values())
+            maxId = Math.max(maxId, usersPosts.lastId());
+        Post.setNextId(maxId+1);
+
+        // riapplicazione delle modifiche successive all'ultima memorizzazione completa
+        // (senza journal le modifiche non verrebbero registrate: il server non viene avviato)
+        rewardCycle = SnapshotStore.getRewardCycle();
+        try {
+            Journal.open(SnapshotStore.getJournalGeneration(), new JournalReplayer());
         } catch (IOException e) {
+            System.err.println("Bootstrap Error: unable to open the journal (" + e.getMessage() + ")");
             e.printStackTrace();
+            System.exit(1);
         }
 
+        bootstrapped = true;
+        System.out.println("Bootstrap | state loaded in " + (System.currentTimeMillis() - start) + " ms (" +
+                usersMap.size() + " users)");
+    }
 
-        // recupero dati post
-        try (BufferedReader reader = new BufferedReader(new FileReader(postsFileName))) {
-            Type PostMapType = new TypeToken<Map<String,Map<String,Post>>>(){}.getType();
-            Map<String,Map<String,Post>> posts = gson.fromJson(reader, PostMapType);
-            if (posts != null)
-                postMap.putAll(posts);
-        } catch (IOException e) {
-            e.printStackTrace();
+
+
+
+    /**
+     * @effects restituisce l'oggetto Gson condiviso (con gli adapter di utenti, wallet e post).
+     */
+    static Gson getGson() {
+        return gson;
+    }
+
+
+
+
+    /**
+     * @effects aggiunge alle strutture dati i dati degli utenti contenuti nello shard 's'. I post
+     *          contati nell'epoca delle ricompense dello shard restano contati solo se questa e'
+     *          l'epoca dell'ultimo snapshot (altrimenti e' iniziata una nuova iterazione dopo la
+     *          scrittura dello shard).
+     */
+    private static void loadShard(Shard s) {
+        synchronized (registeredUsers) {
+            for (User u : s.users) {
+                UserIndex.put(u.username, u.id);
+                registeredUsers.add(u);
+                usersMap.put(u.username, u);
+            }
+        }
+        synchronized (followersMap) { followersMap.putAll(s.followers); }
+        synchronized (followsMap) { followsMap.putAll(s.follows); }
+        Post.restoreEpoch(SnapshotStore.getEpoch());
+        boolean current = s.epoch == SnapshotStore.getEpoch();
+        for (Map.Entry<String,List<Post>> usersPosts : s.posts.entrySet()) {
+            for (Post p : usersPosts.getValue())
+                p.restoreCounted(current);
+            postMap.put(usersPosts.getKey(), new AuthorPosts(usersPosts.getValue()));
         }
+        walletMap.putAll(s.wallets);
+        synchronized (tagsMap) { tagsMap.putAll(s.tags); }
+    }
 
-        // recupero del maggiore id dei post precedentemente inseriti
-        int maxId = 0;
-        for (Map.Entry<String,Map<String,Post>> usersPosts : postMap.entrySet())
-            for (Map.Entry<String, Post> post : usersPosts.getValue().entrySet()) {
-                int idValue = Integer.parseInt(post.getValue().getId());
-                if (idValue > maxId) maxId = idValue;
+
+
+
+    /**
+     * @effects recupera i dati degli utenti dai file (uno per struttura dati) usati dalle versioni
+     *          precedenti del server, letti in parallelo sul pool 'pool', e segna tutti gli shard
+     *          come sporchi (in modo che il prossimo snapshot li riscriva per shard).
+     */
+    private static void loadLegacyFiles(ForkJoinPool pool) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        // recupero dati utenti registrati
+        tasks.add(loadLegacyFile(pool, usersFileName, new TypeToken<List<User>>(){}.getType(), (List<User> users) -> {
+            synchronized (registeredUsers) {
+                // assegnazione degli id (nel caso di utenti memorizzati senza id si usa l'ordine di registrazione)
+                for (User u : users) {
+                    if (u.id > 0)
+                        UserIndex.put(u.username, u.id);
+                    else
+                        u = new User(u.username, u.password, UserIndex.register(u.username));
+                    registeredUsers.add(u);
+                    usersMap.put(u.username, u);
+                }
             }
-        Post.setNextId(maxId+1);
+        }));
+
+        // recupero dati followers
+        tasks.add(loadLegacyFile(pool, followersFileName, new TypeToken<Map<String,Set<String>>>(){}.getType(),
+                (Map<String,Set<String>> followers) -> {
+                    synchronized (followersMap) { followersMap.putAll(followers); }
+                }));
+
+        // recupero dati following
+        tasks.add(loadLegacyFile(pool, followsFileName, new TypeToken<Map<String,Set<String>>>(){}.getType(),
+                (Map<String,Set<String>> following) -> {
+                    synchronized (followsMap) { followsMap.putAll(following); }
+                }));
+
+        // recupero dati post
+        tasks.add(loadLegacyFile(pool, postsFileName, new TypeToken<Map<String,List<Post>>>(){}.getType(),
+                (Map<String,List<Post>> posts) -> {
+                    for (Map.Entry<String,List<Post>> usersPosts : posts.entrySet()) {
+                        for (Post p : usersPosts.getValue())
+                            p.restoreCounted(true);
+                        postMap.put(usersPosts.getKey(), new AuthorPosts(usersPosts.getValue()));
+                    }
+                }));
 
         // recupero dati wallet
-        try (BufferedReader reader = new BufferedReader(new FileReader(walletsFileName))) {
-            Type WalletMapType = new TypeToken<Map<String,Wallet>>(){}.getType();
-            Map<String,Wallet> wallets = gson.fromJson(reader, WalletMapType);
-            if (wallets != null)
-                synchronized (walletMap) { walletMap.putAll(wallets); }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        tasks.add(loadLegacyFile(pool, walletsFileName, new TypeToken<Map<String,Wallet>>(){}.getType(),
+                (Map<String,Wallet> wallets) -> {
+                    walletMap.putAll(wallets);
+                }));
 
         // recupero dati tags
-        try (BufferedReader reader = new BufferedReader(new FileReader(tagsFileName))) {
-            Type TagsMapType = new TypeToken<Map<String,List<String>>>(){}.getType();
-            Map<String,List<String>> tags = gson.fromJson(reader, TagsMapType);
-            if (tags != null)
-                synchronized (tagsMap) { tagsMap.putAll(tags); }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        tasks.add(loadLegacyFile(pool, tagsFileName, new TypeToken<Map<String,List<String>>>(){}.getType(),
+                (Map<String,List<String>> tags) -> {
+                    synchronized (tagsMap) { tagsMap.putAll(tags); }
+                }));
+
+        // attesa del caricamento di tutti i file
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+
+        SnapshotStore.markAllDirty();
+    }
 
+
+
+
+    /**
+     * @effects avvia sul pool 'pool' la lettura del file 'fileName' (in formato JSON, con contenuto di
+     *          tipo 'type') e passa a 'consumer' il contenuto letto (se presente), stampando la durata
+     *          del caricamento. Restituisce il task avviato.
+     */
+    private static <T> ForkJoinTask<?> loadLegacyFile(ForkJoinPool pool, String fileName, Type type, Consumer<T> consumer) {
+        return pool.submit(() -> {
+            long start = System.nanoTime();
+            File file = new File(fileName);
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                T content = gson.fromJson(reader, type);
+                if (content != null)
+                    consumer.accept(content);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.out.println("Bootstrap | " + file.getName() + ": " + file.length() + " bytes loaded in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        });
     }
 
 
@@ -313,82 +805,145 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
     /**
-     * @effects restituisce true se la memorizzazione dei dati e' andata a buon fine,
-     *          altrimenti false.
+     * @effects memorizza lo stato completo del social network (snapshot) e svuota il journal delle
+     *          modifiche (checkpoint), solo se ci sono state modifiche dall'ultima memorizzazione.
+     *          Le modifiche allo stato sono sospese solo per il taglio consistente dello stato (O(1),
+     *          vedi Cut): la serializzazione avviene mentre i client continuano a modificare i dati.
+     *          Restituisce true se la memorizzazione dei dati e' andata a buon fine, altrimenti false.
      */
     protected synchronized static boolean updateMemory() {
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        // caso di nessuna modifica dall'ultima memorizzazione
+        if (!Journal.hasChanges() && !SnapshotStore.hasDirtyShards())
+            return true;
 
-        // memorizzazione utenti registrati
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(usersFileName))) {
-            Type RegisteredUsersType = new TypeToken<List<User>>(){}.getType();
-            String users = gson.toJson(registeredUsers, RegisteredUsersType);
-            writer.write(users);
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // compattazione dei segmenti e scrittura su disco dei body modificati (prima del taglio)
+        prepareBodies();
 
-        // memorizzazione followers
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(followersFileName))) {
-            Type FollowersMapType = new TypeToken<Map<String,Set<String>>>(){}.getType();
-            String followers = gson.toJson(followersMap, FollowersMapType);
-            if (followers != null) {
-                writer.write(followers);
-                writer.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        // taglio consistente dello stato (con le modifiche sospese)
+        long start = System.nanoTime();
+        Cut c;
+        persistenceLock.writeLock().lock();
+        try {
+            c = new Cut(SnapshotStore.takeDirtyShards(), UserIndex.maxId(), Journal.rotate(), Post.currentEpoch(), rewardCycle);
+            cut = c;
+        } finally {
+            persistenceLock.writeLock().unlock();
         }
+        SnapshotStore.recordCut((System.nanoTime() - start) / 1000);
+
+        // scrittura dello snapshot e checkpoint del journal
+        // (se il checkpoint fallisce lo snapshot resta valido: le generazioni successive al taglio
+        // vengono riapplicate a partire da quella indicata nel manifest)
+        boolean done = writeSnapshot(c);
+        cut = null;
+        if (done && !Journal.checkpoint(c.generation))
+            System.err.println("Snapshot Error: journal checkpoint failed (old generations kept)");
+        return done;
+    }
 
-        // memorizzazione following
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(followsFileName))) {
-            Type FollowsMapType = new TypeToken<Map<String,Set<String>>>(){}.getType();
-            String follows = gson.toJson(followsMap, FollowsMapType);
-            if (follows != null) {
-                writer.write(follows);
-                writer.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        // memorizzazione post
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(postsFileName))) {
-            Type PostMapType = new TypeToken<Map<String,Map<String,Post>>>(){}.getType();
-            String posts = gson.toJson(postMap, PostMapType);
-            if (posts != null) {
-                writer.write(posts);
-                writer.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        // memorizzazione wallet
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(walletsFileName))) {
-            Type WalletMapType = new TypeToken<Map<String,Wallet>>(){}.getType();
-            String wallets = gson.toJson(walletMap, WalletMapType);
-            if (wallets != null) {
-                writer.write(wallets);
-                writer.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+
+    /**
+     * @effects se e' in corso uno snapshot, salva l'immagine dei dati dell'utente 'username' (se non
+     *          gia' salvata) prima della loro modifica. Deve essere invocato col lock in lettura
+     *          'persistenceLock' prima di ogni modifica ai dati dell'utente.
+     */
+    private static void preserve(String username) {
+        Cut c = cut;
+        if (c != null)
+            c.preserve(username);
+    }
+
+
+
+
+    /**
+     * @effects sposta i body dei post contenuti nei segmenti da compattare e scrive su disco i body
+     *          modificati, in modo che al momento del taglio restino pochi body da scrivere.
+     */
+    private static void prepareBodies() {
+        Set<Integer> segments = PostStore.segmentsToCompact();
+        if (!segments.isEmpty())
+            for (AuthorPosts usersPosts : postMap.values())
+                usersPosts.forEach(p -> {
+                    if (p.getBodyRef() >= 0 && segments.contains(PostStore.segmentOf(p.getBodyRef())))
+                        try {
+                            p.relocateBody();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                });
+        PostStore.flush();
+    }
+
+
+
+
+    /**
+     * @effects crea e restituisce lo shard 'shard' con i dati di tutti gli utenti che vi appartengono
+     *          al momento del taglio 'c' e rilascia le relative immagini.
+     * @throws IOException se non e' stato possibile scrivere su disco il body di un post.
+     */
+    private static Shard buildShard(Cut c, int shard) throws IOException {
+        Shard s = new Shard();
+        s.epoch = c.epoch;
+        List<String> usernames = new ArrayList<>();
+        for (int id = shard; id <= c.maxId; id += SnapshotStore.SHARDS) {
+            String username = UserIndex.nameOf(id);
+            UserImage image = username != null ? c.preserve(username) : null;
+            if (image == null)
+                continue;
+            usernames.add(username);
+            if (image.user == null)
+                continue;
+            if (image.failed)
+                throw new IOException("unable to write the posts of " + username);
+
+            s.users.add(image.user);
+            if (image.followers != null)
+                s.followers.put(username, image.followers);
+            if (image.follows != null)
+                s.follows.put(username, image.follows);
+            if (image.posts != null)
+                s.posts.put(username, image.posts);
+            if (image.wallet != null)
+                s.wallets.put(username, image.wallet);
+            if (image.tags != null)
+                s.tags.put(username, image.tags);
         }
+        c.release(shard, usernames);
+        return s;
+    }
 
-        // memorizzazione tags
-        try (BufferedWriter writer = new BufferedWriter(new PrintWriter(tagsFileName))) {
-            Type WalletMapType = new TypeToken<Map<String,List<String>>>(){}.getType();
-            String tags = gson.toJson(tagsMap, WalletMapType);
-            if (tags != null) {
-                writer.write(tags);
-                writer.flush();
-            }
+
+
+
+    /**
+     * @effects memorizza su file lo stato del social network al momento del taglio 'c' riscrivendo
+     *          solo gli shard modificati dall'ultimo snapshot. Restituisce true se la memorizzazione
+     *          dei dati e' andata a buon fine, altrimenti false.
+     */
+    private static boolean writeSnapshot(Cut c) {
+        int[] shards = c.shards.stream().mapToInt(Integer::intValue).sorted().toArray();
+        try {
+            for (int shard : shards)
+                SnapshotStore.writeShard(shard, buildShard(c, shard), shardCodec);
+
+            // i body dei post e il testo dei commenti a cui fanno riferimento gli shard devono essere
+            // su disco prima del manifest (il checkpoint del journal elimina i record che li contengono)
+            PostStore.sync();
+            CommentStore.sync();
+            SnapshotStore.commit(c.generation, c.epoch, c.cycle);
         } catch (IOException e) {
             e.printStackTrace();
+            for (int shard : shards)
+                SnapshotStore.markDirty(shard);
+            SnapshotStore.abort();
+            return false;
         }
+        PostStore.releaseSegments();
 
         return true;
     }
@@ -417,17 +972,16 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             return false;
         }
 
-        // creazione dell'utente
-        user = new User(username,password);
-
         // caso di utente gia' registrato
-        if(registeredContains(user) || loggedIn) {
-            this.user = null;
+        if(registeredContains(new User(username,password,0)) || loggedIn) {
             out.println("Registration Error: username already exists (Suggestions: are you already registered?)");
             out.flush();
             return false;
         }
 
+        // creazione dell'utente (con assegnazione dell'id denso)
+        user = new User(username, password, UserIndex.register(username));
+
         // selezione dei tags (max 5)
         LinkedList<String> tagsList = new LinkedList<>();
         if(tags != null) {
@@ -447,13 +1001,16 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             }
         }
 
-        // aggiornamento delle strutture dati
-        registeredUsers.add(user);
-        tagsMap.put(username, tagsList);
-        followersMap.put(username, new HashSet<>());
-        followsMap.put(username, new HashSet<>());
-        walletMap.put(username, new Wallet(username));
-        loggedMap.put(username, false);
+        // aggiornamento delle strutture dati e registrazione nel journal
+        long seq;
+        persistenceLock.readLock().lock();
+        try {
+            applyRegister(user, tagsList);
+            seq = Journal.logRegister(user.id, username, password, tagsList);
+        } finally {
+            persistenceLock.readLock().unlock();
+        }
+        Journal.await(seq);
 
         // messaggio di risposta al client
         out.println("Registration confirmed");
@@ -465,6 +1022,24 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
 
+    /**
+     * @effects aggiunge l'utente 'u' (con i tag 'tags') alle strutture dati del social network.
+     */
+    private static void applyRegister(User u, List<String> tags) {
+        preserve(u.username);
+        synchronized (registeredUsers) { registeredUsers.add(u); }
+        usersMap.put(u.username, u);
+        synchronized (tagsMap) { tagsMap.put(u.username, tags); }
+        synchronized (followersMap) { followersMap.put(u.username, new HashSet<>()); }
+        synchronized (followsMap) { followsMap.put(u.username, new HashSet<>()); }
+        walletMap.put(u.username, new Wallet(u.username));
+        synchronized (loggedMap) { loggedMap.put(u.username, false); }
+        SnapshotStore.markDirty(u.username);
+    }
+
+
+
+
     /**
      * @effects restituisce l'username dell'utente o null se non e' ancora stato inserito.
      */
@@ -604,11 +1179,15 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         }
 
         // controllo della password
+        User registered = null;
         for (User u : registeredUsers)
-            if (u.username.equals(username) && !u.password.equals(password)) {
-                out.println("Login Error: password isn't correct.");
-                out.flush();
-                return;
+            if (u.username.equals(username)) {
+                if (!u.password.equals(password)) {
+                    out.println("Login Error: password isn't correct.");
+                    out.flush();
+                    return;
+                }
+                registered = u;
             }
 
         // caso di utente gia' loggato su un altro dispositivo
@@ -620,7 +1199,7 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
         // caso di utente registrato precedentemente (che quindi non ha ripetuto la registrazione)
         if (user == null)
-            user = new User(username, password);
+            user = registered;
         walletMap.putIfAbsent(username, new Wallet(username));
 
         // aggiornamento della logged map
@@ -804,35 +1383,31 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         }
 
 
-        // Aggiornamento della FOLLOWS MAP
-        // caso in cui e' il primo utente a seguire
-        followsMap.putIfAbsent(user.username, new HashSet<>());
-
         // caso in cui l'utente segue gia' l'utente identificato da 'username'
-        if (followsMap.get(user.username).contains(username)) {
+        if (followsMap.containsKey(user.username) && followsMap.get(user.username).contains(username)) {
             out.println("You are already following [" + username + "]");
             out.flush();
             return false;
         }
 
-        // aggiunta dell'utente tra i follows
-        followsMap.get(user.username).add(username);
-
-
-        // Aggiornamento della FOLLOWERS MAP
-        // caso in cui e' il primo utente a seguire
-        followersMap.putIfAbsent(username, new HashSet<>());
-
-        // caso in cui l'utente segue gia' l'utente identificato da 'username'
-        if (followersMap.get(username).contains(user.username)) {
+        // caso in cui l'utente e' gia' tra i followers dell'utente identificato da 'username'
+        if (followersMap.containsKey(username) && followersMap.get(username).contains(user.username)) {
             System.err.println("FollowUser Error: a memory inconsistency occurred");
             out.println("FollowUser Error: something goes wrong");
             out.flush();
             return false;
         }
 
-        // aggiunta dell'utente tra i follows
-        followersMap.get(username).add(user.username);
+        // aggiornamento di FOLLOWS MAP e FOLLOWERS MAP e registrazione nel journal
+        long seq;
+        persistenceLock.readLock().lock();
+        try {
+            applyFollow(user.username, username);
+            seq = Journal.logFollow(user.username, username);
+        } finally {
+            persistenceLock.readLock().unlock();
+        }
+        Journal.await(seq);
 
 
         // messaggio di risposta al client
@@ -861,11 +1436,16 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             return false;
         }
 
-        // rimozione dell'utente dai follows dell'utente "this"
-        followsMap.get(user.username).remove(username);
-
-        // rimozione dell'utente "this" dai followers dell'utente
-        followersMap.get(username).remove(user.username);
+        // rimozione dell'utente dai follows dell'utente "this" (e di "this" dai followers dell'utente)
+        long seq;
+        persistenceLock.readLock().lock();
+        try {
+            applyUnfollow(user.username, username);
+            seq = Journal.logUnfollow(user.username, username);
+        } finally {
+            persistenceLock.readLock().unlock();
+        }
+        Journal.await(seq);
 
         // messaggio di risposta al client
         out.println("[" + username + "] has been removed from your follows");
@@ -877,6 +1457,44 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
 
+    /**
+     * @effects aggiunge l'utente 'followed' ai follows dell'utente 'follower' e 'follower' ai
+     *          followers di 'followed' (creando gli insiemi se assenti).
+     */
+    private static void applyFollow(String follower, String followed) {
+        preserve(follower);
+        preserve(followed);
+        synchronized (followsMap) { followsMap.computeIfAbsent(follower, k -> new HashSet<>()).add(followed); }
+        synchronized (followersMap) { followersMap.computeIfAbsent(followed, k -> new HashSet<>()).add(follower); }
+        SnapshotStore.markDirty(follower);
+        SnapshotStore.markDirty(followed);
+    }
+
+
+
+
+    /**
+     * @effects rimuove l'utente 'followed' dai follows dell'utente 'follower' e 'follower' dai
+     *          followers di 'followed'.
+     */
+    private static void applyUnfollow(String follower, String followed) {
+        preserve(follower);
+        preserve(followed);
+        synchronized (followsMap) {
+            if (followsMap.containsKey(follower))
+                followsMap.get(follower).remove(followed);
+        }
+        synchronized (followersMap) {
+            if (followersMap.containsKey(followed))
+                followersMap.get(followed).remove(follower);
+        }
+        SnapshotStore.markDirty(follower);
+        SnapshotStore.markDirty(followed);
+    }
+
+
+
+
     /**
      * @effects crea un nuovo post che sara' visible dall'autore del post e da tutti i suoi followers.
      * @param text stringa di lunghezza limitata che rappresenta il testo del post.
@@ -895,13 +1513,16 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
         // creazione post
         Post p = null;
+        long seq;
+        title = title.startsWith(" ")? title.substring(1) : title;
+        text = text.startsWith(" ")? text.substring(1) : text;
+        persistenceLock.readLock().lock();
         try {
-            p = new Post(
-            	user.username,
-            	title.startsWith(" ")? title.substring(1) : title,
-            	text.startsWith(" ")? text.substring(1) : text,
-            	null
-            );
+            p = new Post(user.username, title, text);
+
+            // aggiunta del post alla postMap e registrazione nel journal
+            applyAddPost(p);
+            seq = Journal.logCreatePost(p, title, text);
         } catch (LimitExceededException | NullPointerException | InvalidPropertiesFormatException e) {
             out.println(
                     "CreatePost Error: bad parameters (Suggestions: is text's length between 1 and 500" +
@@ -909,13 +1530,10 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             );
             out.flush();
             return;
+        } finally {
+            persistenceLock.readLock().unlock();
         }
-
-        // caso di creazione del primo post
-        postMap.putIfAbsent(user.username, new HashMap<>());
-
-        // aggiunta del post alla postMap
-        postMap.get(user.username).put(p.getId(), p);
+        Journal.await(seq);
 
         // messaggio di risposta al client
         out.println("The post [" + p.getId() + "] is now visible on Winsome");
@@ -925,26 +1543,131 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
 
+    /**
+     * @effects aggiunge il post (o rewin) 'p' alla postMap (con creazione della lista in caso di
+     *          primo post dell'autore) e lo affida a PostStore.
+     */
+    private static void applyAddPost(Post p) {
+        preserve(p.getAuthor());
+        postMap.computeIfAbsent(p.getAuthor(), k -> new AuthorPosts()).add(p);
+        PostStore.register(p);
+        SnapshotStore.markDirty(p.getAuthor());
+    }
+
+
+
+
+    /**
+     * @effects restituisce il post originale a cui fa riferimento il rewin 'p', 'p' stesso se non
+     *          e' un rewin oppure null se il post originale non e' piu' presente.
+     * @param p post di cui si vuole risolvere il contenuto.
+     *          [p != null]
+     */
+    private Post getOriginalOf(Post p) {
+
+        // caso di post che non e' un rewin
+        if (!p.isRewin())
+            return p;
+
+        // ricerca del post originale tra i post del suo autore
+        return getPost(p.getRewinnedAuthor(), p.getRewinnedId());
+    }
+
+
+
+
+    /**
+     * @effects restituisce il post con id 'id' dell'autore 'author' oppure null se non presente.
+     * @param author autore del post.
+     * @param id id del post.
+     */
+    private static Post getPost(String author, long id) {
+        AuthorPosts authorPosts = author != null ? postMap.get(author) : null;
+        return authorPosts != null ? authorPosts.get(id) : null;
+    }
+
+
+
+
+    /**
+     * @effects restituisce il valore numerico dell'id di post 'postId' oppure 0 se la stringa
+     *          non rappresenta un id valido.
+     * @param postId stringa contenente l'id del post.
+     */
+    private static long parsePostId(String postId) {
+        try {
+            return postId != null ? Long.parseLong(postId.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+
+
+    /**
+     * @effects restituisce il titolo da visualizzare per il post 'p'. Nel caso di rewin il titolo
+     *          e' quello del post originale preceduto da "{autore}" (ed eventualmente troncato).
+     * @param p post di cui si vuole il titolo.
+     *          [p != null]
+     */
+    private String getTitleOf(Post p) {
+
+        // caso di post che non e' un rewin
+        if (!p.isRewin())
+            return p.getTitle();
+
+        // caso di post originale non piu' presente
+        Post original = getOriginalOf(p);
+        if (original == null)
+            return "{" + p.getRewinnedAuthor() + "} [deleted]";
+
+        // title.length - author.length - "{}".length - "...".length
+        String title = "{" + original.getAuthor() + "} " + original.getTitle();
+        return title.length() > 50 ? title.substring(0, 47) + "..." : title;
+    }
+
+
+
+
+    /**
+     * @effects restituisce il testo da visualizzare per il post 'p' (nel caso di rewin e' il
+     *          testo del post originale).
+     * @param p post di cui si vuole il testo.
+     *          [p != null]
+     */
+    private String getTextOf(Post p) {
+        Post original = getOriginalOf(p);
+        return original != null ? original.getText() : "";
+    }
+
+
+
+
     /**
      * @effects permette di visualizzare il contenuto del post con id uguale alla stringa
-     *          passata come parametro.
+     *          passata come parametro insieme ad una pagina dei suoi commenti (il testo dei
+     *          commenti viene letto da disco solo per i commenti della pagina).
      * @param postId id del post che si vuole visionare.
      *               [(postId != null) && (postMap.contains(postId)) && (postMap.get(postId).author == this.user)]
+     * @param commentsFrom posizione del primo commento da visualizzare.
+     *                     [commentsFrom >= 0]
+     * @param limit numero massimo di commenti da visualizzare (se <= 0 si usa la dimensione di default,
+     *              al piu' MAX_PAGE_SIZE).
      */
-    public void showPost(String postId) {
+    public void showPost(String postId, int commentsFrom, int limit) {
 
         // controllo parametro + controllo condizioni utente
-        if (postId == null || !loggedIn) {
+        if (postId == null || commentsFrom < 0 || !loggedIn) {
             out.println("ShowPost Error: bad parameter or not registered yet");
             out.flush();
             return;
         }
 
-        Post post = null;
+        long id = parsePostId(postId);
 
         // caso di post di cui l'utente e' autore
-        if (postMap.containsKey(user.username) && postMap.get(user.username).containsKey(postId))
-            post = postMap.get(user.username).get(postId);
+        Post post = getPost(user.username, id);
 
 
         // caso in cui l'utente non segue l'utente di cui vuole visionare il post
@@ -952,36 +1675,39 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
             // ricerca del post tra i post condivisi dai follows dell'utente
             for (String followed : followsMap.get(user.username))
-                if (postMap.containsKey(followed) && postMap.get(followed).containsKey(postId)) {
-                    post = postMap.get(followed).get(postId);
-                    break;
-                }
+                if (post == null)
+                    post = getPost(followed, id);
         }
 
         // caso di post trovato
         if (post != null) {
 
-            // concatenazione dei commenti
-            List<String> commentsList = post.getComments();
-            String comments = "";
+            // concatenazione dei commenti della pagina richiesta
+            if (limit <= 0)
+                limit = COMMENTS_PAGE_SIZE;
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+            int total = post.getCommentsCount();
+            StringBuilder comments = new StringBuilder();
             int i = 0;
-            if (commentsList != null)
-                for (String s : commentsList) {
-                    if (i == 0)
-                        comments = comments + s + "/";
-                    else
-                        comments = comments + " |          | " + s + "/";
-                    i++;
-                }
-            comments = comments + "/";
+            for (CommentLog.Comment c : post.getComments(commentsFrom, limit)) {
+                comments.append(i == 0 ? "" : " |          | ")
+                        .append(c.getAuthor()).append(": ").append(c.getText()).append("/");
+                i++;
+            }
+
+            // caso di commenti successivi alla pagina
+            if (commentsFrom + i < total)
+                comments.append(" |          | (").append(total - commentsFrom - i).append(" more: show post ")
+                        .append(postId).append(" ").append(commentsFrom + i).append(" ").append(limit).append(")/");
+            comments.append("/");
 
             // messaggio di risposta al client con le informazioni del post
             out.println(
                     "/ | WHEN     | " + post.getTimestamp() +
                     "/ | ID       | " + postId +
                     "/ | AUTHOR   | " + post.getAuthor() +
-                    "/ | TITLE    | " + post.getTitle() +
-                    "/ | TEXT     | " + post.getText() +
+                    "/ | TITLE    | " + getTitleOf(post) +
+                    "/ | TEXT     | " + getTextOf(post) +
                     "/ | LIKES    | " + post.getLikes() +
                     "/ | DISLIKES | " + post.getDislikes() +
                     "/ | COMMENTS | " + comments
@@ -1001,9 +1727,15 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
     /**
-     * @effects permette all'utente di visualizzare tutti i post da lui condivisi.
+     * @effects permette all'utente di visualizzare i post da lui condivisi una pagina alla volta,
+     *          partendo dal piu' recente. Se ci sono altri post oltre a quelli della pagina viene
+     *          indicato il comando per visualizzare la pagina successiva.
+     * @param limit numero massimo di post da visualizzare (se <= 0 si usa la dimensione di default,
+     *              al piu' MAX_PAGE_SIZE).
+     * @param beforeId id del post a partire dal quale (escluso) mostrare i post meno recenti.
+     *                 Se = a null si parte dal post piu' recente.
      */
-    public void viewBlog() {
+    public void viewBlog(int limit, String beforeId) {
 
         // controllo login
         if (!loggedIn) {
@@ -1012,17 +1744,40 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             return;
         }
 
+        // controllo parametri
+        long before = beforeId != null ? parsePostId(beforeId) : Long.MAX_VALUE;
+        if (before <= 0) {
+            out.println("ViewBlog Error: bad parameters");
+            out.flush();
+            return;
+        }
+        if (limit <= 0)
+            limit = BLOG_PAGE_SIZE;
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
         // messaggio da restituire al client
-        String message = "/\tBlog:/\t";
+        StringBuilder message = new StringBuilder("/\tBlog:/\t");
 
         // caso in cui l'utente ha condiviso almeno un post
-        if (postMap.containsKey(user.username))
+        AuthorPosts posts = postMap.get(user.username);
+        if (posts != null) {
+
+            // lettura di un post in piu' per sapere se esiste una pagina successiva
+            List<Post> page = posts.page(limit+1, before);
+
             // aggiunta delle informazioni dei post al messaggio
-            for (Map.Entry<String,Post> posts : postMap.get(user.username).entrySet()) {
-                Post p = posts.getValue();
-                message = message + "| " + p.getId() + " | " + p.getAuthor() + " | " + p.getTitle() + " |/\t";
+            for (int i = 0; i < page.size() && i < limit; i++) {
+                Post p = page.get(i);
+                message.append("| ").append(p.getId()).append(" | ").append(p.getAuthor())
+                        .append(" | ").append(getTitleOf(p)).append(" |/\t");
             }
-        message = message + "/";
+
+            // caso di pagina successiva presente
+            if (page.size() > limit)
+                message.append("(more: blog ").append(limit).append(" before ")
+                        .append(page.get(limit-1).getId()).append(")/\t");
+        }
+        message.append("/");
 
         // messaggio di risposta al client
         out.println(message);
@@ -1054,11 +1809,9 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             for (String user : followsMap.get(user.username))
                 // caso di utente che ha condiviso almeno un post
                 if (postMap.containsKey(user))
-                    for (Map.Entry<String, Post> post : postMap.get(user).entrySet()) {
-                        Post p = post.getValue();
+                    for (Post p : postMap.get(user).toList())
                         // concatenazione delle informazioni del post nel messaggio
-                        message = message + " | " + p.getId() + " | " + p.getAuthor() + " | " + p.getTitle() + " |/\t";
-                    }
+                        message = message + " | " + p.getId() + " | " + p.getAuthor() + " | " + getTitleOf(p) + " |/\t";
         }
         message = message + "/";
 
@@ -1087,33 +1840,67 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
             return;
         }
 
+        // rimozione del post (e dei suoi rewin) e registrazione nel journal
+        long id = parsePostId(idPost);
+        Post post;
+        long seq = 0;
+        persistenceLock.readLock().lock();
+        try {
+            post = applyDeletePost(user.username, id);
+            if (post != null)
+                seq = Journal.logDeletePost(user.username, id);
+        } finally {
+            persistenceLock.readLock().unlock();
+        }
+        Journal.await(seq);
+
         // caso di post inesistente
-        if (!postMap.containsKey(user.username) || !postMap.get(user.username).containsKey(idPost)) {
+        if (post == null) {
             out.println("DeletePost Error: post doesn't exist or you aren't post's author");
             out.flush();
             return;
         }
 
-        // rimozione del post dai post recenti
-        periodicRewards.deletePostFromRecentPosts(postMap.get(user.username).get(idPost));
+        // messaggio di risposta al client
+        out.println("The post [" + idPost + "] has been removed correctly");
+        out.flush();
+    }
 
-        // rimozione del post dalla postMap
-        postMap.get(user.username).remove(idPost);
 
 
-        // rimozione dei post che hanno fatto il rewin del post da eliminare
-        for (Map.Entry<String,Map<String,Post>> usersPosts : postMap.entrySet())
-            for (Map.Entry<String,Post> post : usersPosts.getValue().entrySet()) {
-                Post p = post.getValue().getRewinned();
-                if (p != null && p.getId().equals(idPost)){
-                    periodicRewards.deletePostFromRecentPosts(post.getValue());
-                    usersPosts.getValue().remove(post.getValue().getId());
-                }
-            }
 
-        // messaggio di risposta al client
-        out.println("The post [" + idPost + "] has been removed correctly");
-        out.flush();
+    /**
+     * @effects rimuove il post con id 'id' dell'utente 'author' dalla postMap (in O(log n)), dai
+     *          post recenti e da PostStore insieme a tutti i rewin che vi fanno riferimento.
+     *          Restituisce il post rimosso oppure null se non presente.
+     */
+    private static Post applyDeletePost(String author, long id) {
+
+        // rimozione del post dalla postMap
+        preserve(author);
+        AuthorPosts posts = postMap.get(author);
+        Post post = posts != null ? posts.remove(id) : null;
+        if (post == null)
+            return null;
+
+        // rimozione del post dai post recenti e dal PostStore
+        periodicRewards.deletePostFromRecentPosts(post);
+        PostStore.unregister(post);
+        SnapshotStore.markDirty(author);
+
+        // rimozione dei post che hanno fatto il rewin del post da eliminare (confronto dei soli riferimenti)
+        if (!post.isRewin())
+            for (AuthorPosts usersPosts : postMap.values())
+                usersPosts.removeIf(p -> {
+                    if (!p.isRewin() || p.getRewinnedId() != id)
+                        return false;
+                    preserve(p.getAuthor());
+                    periodicRewards.deletePostFromRecentPosts(p);
+                    PostStore.unregister(p);
+                    SnapshotStore.markDirty(p.getAuthor());
+                    return true;
+                });
+        return post;
     }
 
 
@@ -1135,11 +1922,12 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         }
 
         // ricerca del post di cui fare il rewin
-        for (Map.Entry<String,Map<String,Post>> userPosts : postMap.entrySet()) {
+        long id = parsePostId(idPost);
+        for (Map.Entry<String,AuthorPosts> userPosts : postMap.entrySet()) {
 
             // caso di post trovato e di conseguente ricondivisione
-            if (userPosts.getValue().containsKey(idPost)) {
-                Map<String,Post> posts = userPosts.getValue();
+            Post original = userPosts.getValue().get(id);
+            if (original != null) {
 
                 // caso di post creato da un utente non seguito
                 synchronized (followsMap) {
@@ -1151,67 +1939,29 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
                 }
 
 
-                String title = posts.get(idPost).getTitle();
-                String author = posts.get(idPost).getAuthor();
-
                 // caso di rewin di un rewin in cui il post ricondiviso e' dello stesso autore
-                if (posts.get(idPost).getRewinned() != null && posts.get(idPost).getRewinned().getAuthor().equals(user.username)) {
+                if (original.isRewin() && original.getRewinnedAuthor().equals(user.username)) {
                     out.println("RewinPost Error: you can't rewin one of your posts.");
                     out.flush();
                     return;
                 }
 
-                // creazione del nuovo post
-                Post post = null;
+                // creazione del nuovo post (riferimento al post originale, senza copia di titolo e testo)
+                long seq;
+                persistenceLock.readLock().lock();
                 try {
-                    title = posts.get(idPost).getTitle();
-                    if (!posts.get(idPost).getTitle().startsWith("{")) {
-                        title = "{" + author + "} " + title;
-                        post = new Post(
-                                user.username,
-                                title,
-                                posts.get(idPost).getText(),
-                                posts.get(idPost)
-                        );
-                    } else {
-                        post = new Post(
-                                user.username,
-                                title,
-                                posts.get(idPost).getText(),
-                                posts.get(idPost).getRewinned()
-                        );
-                    }
-                } catch (LimitExceededException | InvalidPropertiesFormatException e) {
-                    try {
-                        // title.length - author.length - "{}".length - "...".length
-                        title = "{" + author + "} " + posts.get(idPost).getTitle();
-                        title = title.substring(0, Math.min(title.length(), 47)) + "...";
-                        if (!posts.get(idPost).getTitle().startsWith("{")) {
-                            post = new Post(
-                                    user.username,
-                                    title,
-                                    posts.get(idPost).getText(),
-                                    posts.get(idPost)
-                            );
-                        } else {
-                            post = new Post(
-                                    user.username,
-                                    title,
-                                    posts.get(idPost).getText(),
-                                    posts.get(idPost).getRewinned()
-                            );
-                        }
-                    } catch (LimitExceededException | InvalidPropertiesFormatException e1) {
-                        e1.printStackTrace();
-                        return;
-                    }
-                }
+                    Post post = new Post(user.username, original);
 
-                // caso di creazione del primo post
-                postMap.putIfAbsent(user.username, new HashMap<>());
-
-                // condivisione del nuovo post
-                postMap.get(user.username).put(post.getId(),post);
+                    // condivisione del nuovo post e registrazione nel journal
+                    applyAddPost(post);
+                    seq = Journal.logRewinPost(post);
+                } catch (LimitExceededException e) {
+                    e.printStackTrace();
+                    return;
+                } finally {
+                    persistenceLock.readLock().unlock();
+                }
+                Journal.await(seq);
 
                 // messaggio di risposta al client
                 out.println("You rewin the post [" + idPost + "] correctly");
@@ -1245,17 +1995,19 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         }
 
         // caso di tentativo di rate del proprio post
-        if (postMap.containsKey(user.username) && postMap.get(user.username).containsKey(idPost)) {
+        long id = parsePostId(idPost);
+        if (getPost(user.username, id) != null) {
             out.println("Rate Error: you can't rate your posts");
             out.flush();
             return;
         }
 
         // ricerca del post nella postMap
-        for (Map.Entry<String,Map<String,Post>> userPosts : postMap.entrySet()) {
+        for (Map.Entry<String,AuthorPosts> userPosts : postMap.entrySet()) {
 
             // caso di post trovato e di conseguente assegnazione del voto
-            if (userPosts.getValue().containsKey(idPost)) {
+            Post post = userPosts.getValue().get(id);
+            if (post != null) {
 
                 // caso di post creato da un utente non seguito
                 synchronized (followsMap) {
@@ -1266,31 +2018,32 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
                     }
                 }
 
-                // assegnazione del voto
-                if (vote.equals("+1")) {
-                    // caso di voto gia' effettuato precedentemente
-                    if (!userPosts.getValue().get(idPost).putLike(user.username)) {
-                        out.println("Rate Error: you have already vote this post");
-                        out.flush();
-                        return;
-                    }
-                } else if (vote.equals("-1")) {
+                // caso di formato del voto errato
+                if (!vote.equals("+1") && !vote.equals("-1")) {
+                    out.println("Rate Error: the vote's format has to be \"+1\" or \"-1\"");
+                    out.flush();
+                    return;
+                }
+
+                // assegnazione del voto e registrazione nel journal
+                boolean like = vote.equals("+1");
+                long seq;
+                persistenceLock.readLock().lock();
+                try {
                     // caso di voto gia' effettuato precedentemente
-                    if (!userPosts.getValue().get(idPost).putDislike(user.username)) {
+                    if (!applyRate(post, user.id, like)) {
                         out.println("Rate Error: you have already vote this post");
                         out.flush();
                         return;
                     }
-                } else {
-                    // caso di formato del voto errato
-                    out.println("Rate Error: the vote's format has to be \"+1\" or \"-1\"");
-                    out.flush();
-                    return;
+                    seq = Journal.logRate(user.id, userPosts.getKey(), id, like);
+                } finally {
+                    persistenceLock.readLock().unlock();
                 }
+                Journal.await(seq);
 
                 // aggiunta like/dislike al post recente
-                userPosts.getValue().get(idPost).incrementIterationsCounter();
-                periodicRewards.rateRecentPost(userPosts.getValue().get(idPost), user.username, vote);
+                periodicRewards.rateRecentPost(post, user.id, like);
 
                 // messaggio di risposta al client
                 out.println("You vote \"" + vote + "\" to the post [" + idPost + "] correctly");
@@ -1307,6 +2060,38 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
 
+    /**
+     * @effects assegna al post 'p' il voto ('like' = true se positivo) dell'utente con id 'userId'
+     *          e restituisce true, oppure false se l'utente ha gia' votato il post.
+     */
+    private static boolean applyRate(Post p, int userId, boolean like) {
+        preserve(p.getAuthor());
+        if (!(like ? p.putLike(userId) : p.putDislike(userId)))
+            return false;
+        p.incrementIterationsCounter();
+        SnapshotStore.markDirty(p.getAuthor());
+        return true;
+    }
+
+
+
+
+    /**
+     * @effects aggiunge al post 'p' il commento 'text' scritto al momento 'time' dall'utente con id
+     *          'userId'.
+     * @throws LimitExceededException se il commento e' vuoto o troppo lungo.
+     * @throws IOException se avviene un errore nella scrittura del testo su disco.
+     */
+    private static void applyComment(Post p, int userId, long time, String text) throws LimitExceededException, IOException {
+        preserve(p.getAuthor());
+        p.addComment(userId, time, text);
+        p.incrementIterationsCounter();
+        SnapshotStore.markDirty(p.getAuthor());
+    }
+
+
+
+
     /**
      * @effects aggiunge il commento 'comment' al post con id passato come parametro.
      * @param idPost id del post che si vuole commentare.
@@ -1324,17 +2109,19 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
         }
 
         // caso in cui l'autore del post e l'utente che vuole commentare coincidono
-        if (postMap.containsKey(user.username) && postMap.get(user.username).containsKey(idPost)) {
+        long id = parsePostId(idPost);
+        if (getPost(user.username, id) != null) {
             out.println("AddComment Error: you can't comment a post that you have created");
             out.flush();
             return;
         }
 
         // ricerca del post nella postMap
-        for (Map.Entry<String, Map<String, Post>> userPosts : postMap.entrySet()) {
+        for (Map.Entry<String,AuthorPosts> userPosts : postMap.entrySet()) {
 
             // caso di post trovato e di conseguente assegnazione del voto
-            if (userPosts.getValue().containsKey(idPost)) {
+            Post post = userPosts.getValue().get(id);
+            if (post != null) {
 
                 // caso di post creato da un utente non seguito
                 synchronized (followsMap) {
@@ -1345,21 +2132,29 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
                     }
                 }
 
+                long seq;
+                persistenceLock.readLock().lock();
                 try {
-                    // aggiunta del commento al post
-                    userPosts.getValue().get(idPost).addComment(user.username + ": " + comment);
-
-                    // aggiunta del commento al post recente
-                    userPosts.getValue().get(idPost).incrementIterationsCounter();
-                    periodicRewards.addCommentToRecentPost(
-                            user.username+": "+comment,
-                            userPosts.getValue().get(idPost)
-                    );
+                    // aggiunta del commento al post e registrazione nel journal
+                    long time = System.currentTimeMillis();
+                    applyComment(post, user.id, time, comment);
+                    seq = Journal.logComment(user.id, userPosts.getKey(), id, time, comment);
                 } catch (LimitExceededException e) {
                     out.println("AddComment Error: bad comment's format");
                     out.flush();
                     return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    out.println("AddComment Error: something goes wrong");
+                    out.flush();
+                    return;
+                } finally {
+                    persistenceLock.readLock().unlock();
                 }
+                Journal.await(seq);
+
+                // aggiunta del commento al post recente
+                periodicRewards.addCommentToRecentPost(user.id, post);
 
                 // messaggio di risposta al client
                 out.println("You have commented the post [" + idPost + "] correctly");
@@ -1377,206 +2172,215 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
 
-    /**********************************
-     ****** CLASSE PRIVATA WALLET *****
-     **********************************/
-    private class Wallet {
-        /**
-         * OVERVIEW: classe privata mutable che modella il portafogli dell'utente 'username'
-         *           con la relativa lista di transazioni di incremento del conto.
-         */
-
-        // username utente
-        public final String username;
-        // lista di transazioni (ognuna con: quantita' di denaro e timestamp)
-        public final List<String> history;
-        // lista di transazioni in bitcoin (ognuna con: quantita' di btc e timestamp)
-        public final List<String> historyBtc;
-        // valore totale di denaro presente nel portafogli
-        public double wincoins;
-        // valore totale di denaro presente nel portafogli in bitcoin
-        public double wincoinsBtc;
-
-
-        /**
-         * @effects costruttore che crea un oggetto di tipo wallet associato all'utente 'username'
-         * @param username stringa identificativa dell'utente che possiede il portafogli.
-         *                 [username != null]
-         */
-        public Wallet(String username) {
-
-            // controllo parametro
-            if (username == null)
-                throw new NullPointerException();
-
-            // inizializzazioni
-            wincoins = wincoinsBtc = 0;
-            history = new LinkedList<>();
-            historyBtc = new LinkedList<>();
-            this.username = username;
-        }
-
-
-        /**
-         * @effects converte il parametro 'newMoney' in Bitcoin e aggiorna le informazioni
-         *          relative alla history e al portafogli in formato Btc.
-         * @param newMoney valore double che indica la quantita' di soldi da aggiungere al conto (in btc).
-         *                 [newMoney > 0]
-         * @param timestamp oggetto che identifica il momento in cui avviene la transazione (data, ora, ecc..).
-         *                  [timestamp != null]
-         */
-        private void addInBitcoin(double newMoney, Timestamp timestamp) throws MalformedURLException {
+    /**
+     * @effects applica ai wallet gli accrediti 'credits' di un periodo di calcolo delle ricompense
+     *          in un'unica passata: ogni utente riceve una sola transazione (con la somma dei propri
+     *          accrediti) registrata nel journal. Gli accrediti non bloccano le letture dei wallet
+     *          (vedi Wallet). Restituisce il numero di wallet aggiornati.
+     *          Gli accrediti calcolati dal worker esterno (credits.seq > 0) vengono applicati solo se
+     *          il periodo e' successivo all'ultimo applicato (altrimenti sono un reinvio e vengono
+     *          ignorati) e registrati nel journal insieme al numero del periodo (vedi
+     *          Journal.logRewardCycle()).
+     * @param credits accrediti del periodo per utente.
+     *                [credits != null]
+     */
+    protected int addTransactionsOnWallets(PeriodicRewardsTask.CycleCredits credits) {
 
-            // controllo parametro
-            if (newMoney <= 0 || timestamp == null)
-                return;
+        // controllo parametri
+        if (credits == null)
+            throw new InvalidParameterException();
 
-            // creazione oggetto URL
-            URL url = null;
-            URLConnection urlConnection = null;
-            try {
-                url = new URL("https://www.random.org/integers/?num=1&min=1&max=100&col=1&base=10&format=plain&rnd=new");
-                urlConnection = url.openConnection();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            }
+        // nessuna conversione in bitcoin: il valore viene convertito in lettura (vedi getWalletInBitcoin())
+        long time = System.currentTimeMillis();
+        int[] wallets = {0};
 
-            // invio richiesta al sito RANDOM.ORG
-            double random;
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()))) {
-                String inputString;
+        // accrediti del periodo del worker (registrati nel journal tutti insieme)
+        boolean remote = credits.seq > 0;
+        String[] usernames = new String[remote ? credits.totals.size() : 0];
+        double[] values = new double[usernames.length];
+        String[] notes = new String[usernames.length];
 
-                // lettura del valore ricevuto
-                if ((inputString = reader.readLine()) == null)
+        // aggiornamento dei wallet e registrazione nel journal
+        persistenceLock.readLock().lock();
+        try {
+            // caso di periodo del worker gia' applicato (reinvio)
+            if (remote && credits.seq <= rewardCycle)
+                return 0;
+
+            credits.totals.forEach((userId, sum, count) -> {
+                String username = UserIndex.nameOf(userId);
+                if (username != null)
+                    preserve(username);
+            });
+            credits.totals.forEach((userId, sum, count) -> {
+                String username = UserIndex.nameOf(userId);
+                long amount = Wallet.toMicros(sum);
+                if (username == null || amount <= 0)
                     return;
-
-                // conversione del valore
-                random = Integer.parseInt(inputString);
-
-            } catch (NumberFormatException e) {
-                System.out.println("Something goes wrong with RANDOM.ORG");
-                return;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
+                String note = credits.note(userId, count);
+                walletMap.computeIfAbsent(username, Wallet::new).credit(time, amount, note);
+                SnapshotStore.markDirty(username);
+                if (remote) {
+                    usernames[wallets[0]] = username;
+                    values[wallets[0]] = sum;
+                    notes[wallets[0]] = note;
+                } else
+                    Journal.logReward(username, time, sum, 0, note);
+                wallets[0]++;
+            });
+            if (remote) {
+                int n = wallets[0];
+                Journal.logRewardCycle(credits.seq, time, Arrays.copyOf(usernames, n), Arrays.copyOf(values, n), Arrays.copyOf(notes, n));
+                rewardCycle = credits.seq;
             }
-
-            // calcolo del valore in bitcoin
-            random = random * newMoney;
-
-            // aggiornamento strutture dati
-            wincoinsBtc += random;
-            historyBtc.add(timestamp + ": +" + random + " BTC");
-
+        } finally {
+            persistenceLock.readLock().unlock();
         }
+        return wallets[0];
+    }
 
 
-        /**
-         * @effects aggiunge la nuova transazione del saldo 'newMoney' all'utente 'username'.
-         * @param newMoney valore double che indica il saldo da aggiungere al conto.
-         *                 [newMoney > 0]
-         */
-        public void addTransaction(double newMoney) {
-
-            // controllo parametro
-            if (newMoney <= 0)
-                return;
 
-            // aggiornamento strutture dati
-            Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-            wincoins += newMoney;
-            history.add(timestamp + ": +" + newMoney + " $");
-            try {
-                addInBitcoin(newMoney, timestamp);
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-            }
-        }
 
+    /**
+     * @effects restituisce il numero di sequenza dell'ultimo periodo calcolato dal worker esterno e
+     *          applicato ai wallet (0 se nessuno).
+     */
+    static long getRewardCycle() {
+        return rewardCycle;
     }
 
 
 
 
-
     /**
-     * @effects incrementa il portafogli dell'utente con username 'username', passato come
-     *          parametro, del valore 'value', passato anch'esso come parametro.
-     * @param username stringa univoca e identificativa dell'utente.
-     *                 [(username != null) && (0 < username.lenght < 21) && hasAtLeastOnePost(username)]
-     * @param value valore che rappresenta il saldo della transazione da aggiungere al portafogli.
-     *              [value > 0]
+     * @effects aggiunge al wallet dell'utente 'username' (creandolo in caso di prima transazione)
+     *          la transazione di valore 'value' avvenuta al momento 'time' con descrizione 'note'
+     *          (il valore in bitcoin 'valueBtc' dei record delle versioni precedenti viene ignorato:
+     *          la conversione avviene in lettura).
      */
-    protected void addTransactionOnWallet(String username, double value) {
+    private static void applyTransaction(String username, long time, double value, double valueBtc, String note) {
+        long amount = Wallet.toMicros(value);
+        if (amount <= 0)
+            return;
+        preserve(username);
+        walletMap.computeIfAbsent(username, Wallet::new).credit(time, amount, note);
+        SnapshotStore.markDirty(username);
+    }
 
-        // controllo parametri
-        if (username == null || !(value > 0))
-            throw new InvalidParameterException();
 
-        // aggiornamento del wallet
-        synchronized (walletMap) {
+    
 
-            // caso di prima transazione
-            walletMap.putIfAbsent(username, new Wallet(username));
+    /**
+     * @effects invia al client le informazioni relative al proprio portafoglio: il conto totale e
+     *          una pagina della history delle transazioni (partendo dalla piu' recente). Se ci sono
+     *          altre transazioni oltre a quelle della pagina viene indicato il comando per
+     *          visualizzare la pagina successiva.
+     * @param limit numero massimo di transazioni da visualizzare (se <= 0 si usa la dimensione di default,
+     *              al piu' MAX_PAGE_SIZE).
+     * @param before numero della transazione a partire dalla quale (esclusa) mostrare le transazioni
+     *               meno recenti. Se = a null si parte dalla transazione piu' recente.
+     */
+    public void getWallet(int limit, String before) {
 
-            // aggiunta della transazione
-            walletMap.get(username).addTransaction(value);
+        // controllo login
+        if (!loggedIn) {
+            out.println("GetWallet Error: you aren't logged.");
+            out.flush();
+            return;
         }
+
+        renderWallet(limit, before, 0, "GetWallet");
     }
 
 
-    
+
 
     /**
-     * @effects invia al client le informazioni relative al proprio portafoglio (che comprende
-     *          il conto totale e la history delle transazioni).
+     * @effects invia al client le informazioni relative al proprio portafoglio (come getWallet())
+     *          convertite in bitcoin con il tasso in cache (vedi ExchangeRates), senza operazioni
+     *          di rete.
+     * @param limit numero massimo di transazioni da visualizzare (se <= 0 si usa la dimensione di default,
+     *              al piu' MAX_PAGE_SIZE).
+     * @param before numero della transazione a partire dalla quale (esclusa) mostrare le transazioni
+     *               meno recenti. Se = a null si parte dalla transazione piu' recente.
      */
-    public synchronized void getWallet() {
+    public void getWalletInBitcoin(int limit, String before) {
 
         // controllo login
         if (!loggedIn) {
-            out.println("GetWallet Error: you aren't logged.");
+            out.println("GetWalletInBitcoin Error: you aren't logged.");
             out.flush();
             return;
         }
 
-        Wallet w = walletMap.get(user.username);
-
-        // creazione del messaggio
-        String message = "/\tWallet Value: " + w.wincoins + " $/" +
-                "\tTransactions History:/" + (w.history.isEmpty()? "\tEMPTY" : "");
-        for (String s : w.history)
-            message = message + "\t- " + s + "/";
+        // caso di tasso non ancora disponibile
+        double rate = ExchangeRates.getRate();
+        if (rate <= 0) {
+            out.println("GetWalletInBitcoin Error: exchange rate not available, try again later");
+            out.flush();
+            return;
+        }
 
-        // invio del messaggio al client
-        out.println(message);
-        out.flush();
+        renderWallet(limit, before, rate, "GetWalletInBitcoin");
     }
 
 
 
 
     /**
-     * @effects invia al client le informazioni relative al proprio portafoglio (che comprende
-     *          il conto totale e la history delle transazioni) convertite in bitcoin.
+     * @effects invia al client il conto e una pagina della history del portafoglio dell'utente
+     *          loggato, convertiti in bitcoin con il tasso 'rate' (se 'rate' = 0 in wincoin). Le
+     *          transazioni sono numerate a partire da 1 (la meno recente) e vengono lette senza
+     *          lock, percio' la visualizzazione non blocca gli accrediti delle ricompense; il
+     *          testo degli importi viene creato solo per le transazioni della pagina.
+     * @param error prefisso del messaggio di errore.
      */
-    public void getWalletInBitcoin() {
+    private void renderWallet(int limit, String before, double rate, String error) {
 
-        // controllo login
-        if (!loggedIn) {
-            out.println("GetWalletInBitcoin Error: you aren't logged.");
+        // controllo parametri
+        int end = Integer.MAX_VALUE;
+        if (before != null)
+            try {
+                end = Integer.parseInt(before) - 1;
+            } catch (NumberFormatException e) {
+                end = -1;
+            }
+        if (end < 0) {
+            out.println(error + " Error: bad parameters");
             out.flush();
             return;
         }
+        if (limit <= 0)
+            limit = WALLET_PAGE_SIZE;
+        limit = Math.min(limit, MAX_PAGE_SIZE);
 
+        // lettura (unica) di saldo e dimensione della history
         Wallet w = walletMap.get(user.username);
+        long balance = w != null ? w.getBalance() : 0;
+        int size = w != null ? w.size() : 0;
+        end = Math.min(end, size);
 
         // creazione del messaggio
-        String message = "/\tWallet Value: " + w.wincoinsBtc + " BTC/" +
-                "\tTransactions History:/" + (w.historyBtc.isEmpty()? "\tEMPTY" : "");
-        for (String s : w.historyBtc)
-            message = message + "\t" + s + "/";
+        StringBuilder message = new StringBuilder("/\tWallet Value: ");
+        if (rate > 0)
+            message.append(balance / (double) Wallet.MICROS * rate).append(" BTC (1 wincoin = ").append(rate).append(" BTC)/");
+        else
+            message.append(Wallet.format(balance)).append(" $/");
+        message.append("\tTransactions History:/").append(size == 0 ? "\tEMPTY" : "");
+        int i = end - 1;
+        for (; i >= 0 && i >= end - limit; i--) {
+            message.append("\t[").append(i + 1).append("] ").append(new Timestamp(w.timeAt(i))).append(": +");
+            if (rate > 0)
+                message.append(w.amountAt(i) / (double) Wallet.MICROS * rate).append(" BTC/");
+            else
+                message.append(Wallet.format(w.amountAt(i))).append(" $").append(w.noteAt(i)).append("/");
+        }
+
+        // caso di pagina successiva presente
+        if (i >= 0)
+            message.append("\t(more: wallet ").append(rate > 0 ? "btc " : "").append(limit)
+                    .append(" before ").append(i + 2).append(")/");
 
         // invio del messaggio al client
         out.println(message);
@@ -1585,13 +2389,135 @@ public class WinsomeServer extends RemoteObject implements WinsomeServerInterfac
 
 
     /**
-     * @effects setta tutti i post della post map come ancora non aggiunti ai post recenti
-     *          in modo tale da permettere una nuova iterazione per il calcolo delle ricompense.
+     * @effects inizia una nuova iterazione per il calcolo delle ricompense incrementando l'epoca
+     *          delle ricompense (vedi Post.nextEpoch()): ogni post verra' contato di nuovo alla
+     *          prima interazione successiva. Non visita i post, percio' la durata non dipende dal
+     *          numero di post del social network.
      */
     protected void startNewIteration() {
-        for (Map.Entry<String, Map<String,Post>> posts : postMap.entrySet())
-            for (Map.Entry<String,Post> post : posts.getValue().entrySet())
-                post.getValue().lastIter = false;
+        persistenceLock.readLock().lock();
+        try {
+            Post.nextEpoch();
+            Journal.logNewIteration();
+        } finally {
+            persistenceLock.readLock().unlock();
+        }
+    }
+
+
+
+
+    /*****************************************
+     ***** CLASSE PRIVATA JOURNAL REPLAYER *****
+     *****************************************/
+    private static class JournalReplayer implements Journal.Replayer {
+        /**
+         * OVERVIEW: classe privata che riapplica allo stato del social network (appena caricato
+         *           dall'ultima memorizzazione completa) le modifiche registrate nel journal.
+         *           Usa gli stessi metodi "apply" usati dalle operazioni richieste dai client.
+         *           Gli accrediti di un periodo del worker esterno vengono applicati solo dopo averne
+         *           letto l'ultimo record (un periodo registrato solo in parte non viene applicato e
+         *           verra' reinviato dal worker).
+         */
+
+        // periodo del worker in corso di lettura e suoi record letti (accrediti di ogni record)
+        private long pendingCycle = 0;
+        private final List<String[]> pendingUsernames = new ArrayList<>();
+        private final List<double[]> pendingValues = new ArrayList<>();
+        private final List<String[]> pendingNotes = new ArrayList<>();
+
+        public void register(int id, String username, String password, List<String> tags) {
+            UserIndex.put(username, id);
+            applyRegister(new User(username, password, id), tags);
+        }
+
+        public void follow(String follower, String followed) {
+            applyFollow(follower, followed);
+        }
+
+        public void unfollow(String follower, String followed) {
+            applyUnfollow(follower, followed);
+        }
+
+        public void createPost(long id, long time, String author, String title, String text) {
+            try {
+                applyAddPost(new Post(id, time, author, title, text));
+            } catch (LimitExceededException | InvalidPropertiesFormatException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void rewinPost(long id, long time, String author, String originalAuthor, long originalId) {
+            Post original = getPost(originalAuthor, originalId);
+            if (original == null) {
+                System.err.println("Journal Error: missing original post " + originalId);
+                return;
+            }
+            try {
+                applyAddPost(new Post(id, time, author, original));
+            } catch (LimitExceededException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void deletePost(String author, long id) {
+            applyDeletePost(author, id);
+        }
+
+        public void rate(int userId, String author, long id, boolean like) {
+            Post post = getPost(author, id);
+            if (post != null)
+                applyRate(post, userId, like);
+        }
+
+        public void comment(int userId, String author, long id, long time, String text) {
+            Post post = getPost(author, id);
+            if (post == null)
+                return;
+            try {
+                applyComment(post, userId, time, text);
+            } catch (LimitExceededException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void transaction(String username, long time, double value, double valueBtc) {
+            applyTransaction(username, time, value, valueBtc, "");
+        }
+
+        public void reward(String username, long time, double value, double valueBtc, String note) {
+            applyTransaction(username, time, value, valueBtc, note);
+        }
+
+        public void newIteration() {
+            Post.nextEpoch();
+        }
+
+        public void rewardCycle(long cycle, long time, boolean last, String[] usernames, double[] values, String[] notes) {
+            if (cycle != pendingCycle) {
+                pendingUsernames.clear();
+                pendingValues.clear();
+                pendingNotes.clear();
+                pendingCycle = cycle;
+            }
+            pendingUsernames.add(usernames);
+            pendingValues.add(values);
+            pendingNotes.add(notes);
+            if (!last)
+                return;
+
+            // ultimo record del periodo: applicazione di tutti gli accrediti (se non gia' applicati)
+            if (cycle > rewardCycle) {
+                for (int r = 0; r < pendingUsernames.size(); r++)
+                    for (int i = 0; i < pendingUsernames.get(r).length; i++)
+                        applyTransaction(pendingUsernames.get(r)[i], time, pendingValues.get(r)[i], 0, pendingNotes.get(r)[i]);
+                rewardCycle = cycle;
+            }
+            pendingUsernames.clear();
+            pendingValues.clear();
+            pendingNotes.clear();
+            pendingCycle = 0;
+        }
     }
 
 